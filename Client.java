@@ -1,29 +1,78 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import java.util.Scanner;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
 
 public class Client {
+    // Plain sockets, or TLS ones from a single context so reconnects resume the TLS session
+    private static SocketFactory sockets = SocketFactory.getDefault();
+
     public static void main(String[] args) {
-        String host = "localhost";
-        int port = 12345;
+        // "--host=" and "--port=" pick the server, e.g. another node of a cluster
+        String host = Server.option(args, "host", "localhost");
+        int port = Integer.parseInt(Server.option(args, "port", "12345"));
+        // "--deflate" compresses the connection both ways, in either protocol
+        boolean deflate = Arrays.asList(args).contains("--deflate");
+        // "--tls" connects to the server's --tls-port, trusting the certificates in --tls-trust
+        // (the server's generated chat-data/tls/server.crt when it is there, else the JVM's defaults)
+        if (Arrays.asList(args).contains("--tls")) {
+            try {
+                String trustOption = Server.option(args, "tls-trust", null);
+                Path trust = trustOption != null ? Paths.get(trustOption) : Paths.get("chat-data", "tls", "server.crt");
+                sockets = Tls.clientContext(trustOption != null || Files.exists(trust) ? trust : null).getSocketFactory();
+            } catch (IOException | GeneralSecurityException e) {
+                System.out.println("Could not set up TLS: " + e.getMessage());
+                return;
+            }
+        }
+
+        // "--binary" talks the framed protocol instead of walking the menus
+        if (args.length > 0 && args[0].equals("--binary")) {
+            runBinary(host, port, deflate);
+            return;
+        }
+
+        // "--load" runs scripted bots instead of a console session, see LoadGenerator for the options
+        if (args.length > 0 && args[0].equals("--load")) {
+            try {
+                LoadGenerator.run(args);
+            } catch (IOException | InterruptedException e) {
+                System.out.println("Load test failed: " + e);
+            }
+            return;
+        }
 
         Socket socket = null;
         Scanner scanner = null;
         PrintWriter out = null;
         Thread readerThread = null;
+        Session session = new Session();
 
         try {
             // Connect to server
-            socket = new Socket(host, port);
+            Link link = connect(host, port, deflate);
+            socket = link.socket;
             scanner = new Scanner(System.in);
 
             // Setup input/output streams
-            InputStream is = socket.getInputStream();
-            BufferedReader in = new BufferedReader(new InputStreamReader(is));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(link.in, StandardCharsets.UTF_8));
+            out = new PrintWriter(new OutputStreamWriter(link.out, StandardCharsets.UTF_8), true);
 
             // === ADDED: Check first server response for "Maximum users" ===
-            String firstResponse = in.readLine();
+            String firstResponse = link.greeting;
             if (firstResponse == null || firstResponse.contains("Maximum users")) {
                 System.out.println(firstResponse != null ? firstResponse : "Server rejected connection");
                 System.out.println("Disconnecting...");
@@ -43,6 +92,10 @@ public class Client {
                     System.out.println("Server closed connection.");
                     return;
                 }
+                if (response.equals(Server.PING)) {
+                    out.println(Server.PONG);
+                    continue;
+                }
 
                 System.out.println(response);
                 if (response.toLowerCase().contains("login successful")) break;
@@ -53,32 +106,21 @@ public class Client {
                 }
             }
 
-            // Reader thread (removed Maximum users check from here)
+            // Reader thread (removed Maximum users check from here), reconnects if the connection drops
+            session.socket = socket;
+            session.out = out;
             BufferedReader finalIn = in;
-            readerThread = new Thread(() -> {
-                try {
-                    String response;
-                    while ((response = finalIn.readLine()) != null) {
-                        if (response.endsWith(":") || response.endsWith(": ")) {
-                            System.out.print(response + " ");
-                            System.out.flush();
-                        } else {
-                            System.out.println(response);
-                        }
-                    }
-                } catch (IOException e) {
-                    System.out.println("Connection closed by server.");
-                }
-            });
+            readerThread = new Thread(() -> readSession(finalIn, session, host, port, deflate));
             readerThread.start();
 
-            // Console input loop (unchanged)
+            // Console input loop, always writing to the current connection
             String msg;
             while (scanner.hasNextLine()) {
                 msg = scanner.nextLine();
                 if ("/exit".equalsIgnoreCase(msg)) break;
-                out.println(msg);
+                session.out.println(msg);
             }
+            session.ended = true;
 
         } catch (ConnectException e) {
             System.out.println("Could not connect to server. It may be full or offline.");
@@ -91,6 +133,7 @@ public class Client {
                 if (scanner != null) scanner.close();
                 if (out != null) out.close();
                 if (socket != null) socket.close();
+                if (session.socket != null) session.socket.close();
                 if (readerThread != null) readerThread.join();
             } catch (Exception e) {
                 System.out.println("Cleanup error: " + e.getMessage());
@@ -98,4 +141,283 @@ public class Client {
             System.out.println("Client shut down.");
         }
     }
-}
\ No newline at end of file
+
+    // One connection to the server, with --deflate both directions are compressed after the greeting
+    private static final class Link {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        final String greeting;          // First prompt, null if the server hung up right away
+
+        Link(Socket socket, InputStream in, OutputStream out, String greeting) {
+            this.socket = socket;
+            this.in = in;
+            this.out = out;
+            this.greeting = greeting;
+        }
+    }
+
+    // Connect and read the greeting, negotiating compression first if asked to
+    private static Link connect(String host, int port, boolean deflate) throws IOException {
+        Socket socket = sockets.createSocket(host, port);
+        if (socket instanceof SSLSocket) {
+            // Check the certificate is for the host we meant to reach
+            SSLParameters parameters = ((SSLSocket) socket).getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            ((SSLSocket) socket).setSSLParameters(parameters);
+        }
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        String greeting = readTextLine(in);
+        if (deflate && greeting != null && !greeting.contains("Maximum users")) {
+            out.write((Server.COMPRESS + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String answer = readTextLine(in);
+            if (Server.COMPRESSED.equals(answer)) {
+                // Sync flush on every flush(), so each line or frame goes out whole
+                in = new InflaterInputStream(in, new Inflater(true)) {
+                    // The default always claims more is available, so readers would block past a complete line
+                    @Override
+                    public int available() {
+                        return 0;
+                    }
+                };
+                out = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, true), true);
+            } else if (answer != null) {
+                System.out.println(answer);     // Not available, carry on uncompressed
+            }
+            greeting = readTextLine(in);        // Asked for the username again
+        }
+        return new Link(socket, in, out, greeting);
+    }
+
+    // What the text client needs to get its session back after the connection drops
+    private static final class Session {
+        volatile Socket socket;         // Current connection, replaced on reconnect
+        volatile PrintWriter out;
+        volatile boolean ended;         // Quit on purpose, don't reconnect
+        String token;                   // Resume token from the server, reader thread only
+        long received;                  // Bytes received after the token, where a resume picks up
+    }
+
+    private static final long RESUME_TIMEOUT_MILLIS = 60_000;
+
+    // Print server output; if the connection drops after login, reconnect and carry on where it stopped
+    private static void readSession(BufferedReader in, Session session, String host, int port, boolean deflate) {
+        while (in != null) {
+            try {
+                String response;
+                while ((response = in.readLine()) != null) {
+                    if (response.startsWith(Server.SESSION_PREFIX)) {
+                        session.token = response.substring(Server.SESSION_PREFIX.length());
+                        session.received = 0;
+                        continue;
+                    }
+                    if (response.equals(Server.PING)) {
+                        session.out.println(Server.PONG);     // Not session output, the server doesn't count it either
+                        continue;
+                    }
+                    session.received += response.getBytes(StandardCharsets.UTF_8).length + 1;
+                    if (response.startsWith("[Server] Goodbye")) session.ended = true;
+
+                    if (response.endsWith(":") || response.endsWith(": ")) {
+                        System.out.print(response + " ");
+                        System.out.flush();
+                    } else {
+                        System.out.println(response);
+                    }
+                }
+            } catch (IOException e) {
+                // Dropped, same as the server closing it
+            }
+            if (session.ended || session.token == null) break;
+            System.out.println("[Connection lost, reconnecting...]");
+            in = resume(host, port, deflate, session);
+        }
+        if (!session.ended) System.out.println("Connection closed by server.");
+    }
+
+    // Dial again and ask for the session back, with backoff while the server is unreachable
+    private static BufferedReader resume(String host, int port, boolean deflate, Session session) {
+        long delay = 250;
+        long deadline = System.currentTimeMillis() + RESUME_TIMEOUT_MILLIS;
+        while (!session.ended && System.currentTimeMillis() < deadline) {
+            try {
+                Link link = connect(host, port, deflate);
+                Socket socket = link.socket;
+                BufferedReader in = new BufferedReader(new InputStreamReader(link.in, StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(link.out, StandardCharsets.UTF_8), true);
+                if (link.greeting != null && !link.greeting.contains("Maximum users")) {
+                    out.println(Server.RESUME + " " + session.token + " " + session.received);
+                    String answer = in.readLine();
+                    if (Server.RESUMED.equals(answer)) {
+                        session.socket = socket;
+                        session.out = out;
+                        System.out.println("[Reconnected]");
+                        return in;
+                    }
+                    if (Server.EXPIRED.equals(answer)) {
+                        System.out.println(answer + " Type /exit to quit.");
+                        socket.close();
+                        session.ended = true;
+                        return null;
+                    }
+                }
+                socket.close();     // Full, or the old connection is still being torn down
+            } catch (IOException e) {
+                // Server unreachable, try again
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return null;
+            }
+            delay = Math.min(delay * 2, 4000);
+        }
+        return null;
+    }
+
+    // Binary protocol client: commands are turned into frames, incoming frames are printed
+    private static void runBinary(String host, int port, boolean deflate) {
+        Socket socket = null;
+        try (Scanner scanner = new Scanner(System.in)) {
+            Link link = connect(host, port, deflate);
+            socket = link.socket;
+            OutputStream out = link.out;
+
+            // Negotiate in text: skip the username prompt, ask for frames, wait for the answer
+            String firstResponse = link.greeting;
+            if (firstResponse == null || firstResponse.contains("Maximum users")) {
+                System.out.println(firstResponse != null ? firstResponse : "Server rejected connection");
+                return;
+            }
+            out.write((Frames.NEGOTIATE + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String answer = readTextLine(link.in);
+            if (!Frames.ACCEPTED.equals(answer)) {
+                System.out.println("Server does not support the binary protocol: " + answer);
+                return;
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(link.in));
+
+            System.out.println("Connected to chat server (binary protocol).");
+            System.out.println("Commands: /login <user> <password>, /join <room> [password], /create <room> [password],");
+            System.out.println("          /leave, /friend <user>, /dm <user> <message>, /exit; anything else goes to the room.");
+
+            Thread readerThread = new Thread(() -> printFrames(in, out));
+            readerThread.setDaemon(true);
+            readerThread.start();
+
+            while (scanner.hasNextLine()) {
+                String line = scanner.nextLine();
+                if ("/exit".equalsIgnoreCase(line.trim())) break;
+                ByteBuffer frame = toFrame(line);
+                if (frame == null) {
+                    System.out.println("Invalid command.");
+                    continue;
+                }
+                write(out, frame);
+            }
+        } catch (ConnectException e) {
+            System.out.println("Could not connect to server. It may be full or offline.");
+        } catch (IOException e) {
+            System.out.println("Connection closed by server.");
+        } finally {
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException e) {
+                System.out.println("Cleanup error: " + e.getMessage());
+            }
+        }
+        System.out.println("Client shut down.");
+    }
+
+    // Turn one console line into a request frame, null if the command is incomplete
+    private static ByteBuffer toFrame(String line) {
+        String[] parts = line.trim().split("\\s+", 3);
+        switch (parts[0].toLowerCase()) {
+            case "/login":
+                return parts.length == 3 ? Frames.encode(Frames.LOGIN, parts[1], parts[2]) : null;
+            case "/join":
+            case "/create":
+                if (parts.length < 2) return null;
+                return Frames.join(parts[0].equalsIgnoreCase("/create"), parts[1], parts.length == 3 ? parts[2] : "");
+            case "/leave":
+                return Frames.encode(Frames.LEAVE);
+            case "/friend":
+                return parts.length >= 2 ? Frames.encode(Frames.PRESENCE, parts[1]) : null;
+            case "/dm":
+                return parts.length == 3 ? Frames.encode(Frames.DM, parts[1], parts[2]) : null;
+            default:
+                return Frames.encode(Frames.MESSAGE, line);
+        }
+    }
+
+    // Reader loop of the binary client, acknowledges DMs once they are printed
+    private static void printFrames(DataInputStream in, OutputStream out) {
+        try {
+            while (true) {
+                byte type = in.readByte();
+                byte[] bytes = new byte[in.readUnsignedShort()];
+                in.readFully(bytes);
+                ByteBuffer payload = ByteBuffer.wrap(bytes);
+
+                switch (type) {
+                    case Frames.MESSAGE:
+                    case Frames.HISTORY:
+                        String room = Frames.readString(payload);
+                        String sender = Frames.readString(payload);
+                        System.out.println("[" + room + "] [" + sender + "]: " + Frames.readString(payload));
+                        break;
+                    case Frames.DM:
+                        String from = Frames.readString(payload);
+                        System.out.println("[DM from " + from + "]: " + Frames.readString(payload));
+                        write(out, Frames.delivered(payload.getInt()));
+                        break;
+                    case Frames.PRESENCE:
+                        String user = Frames.readString(payload);
+                        System.out.println("- " + user + " [" + (payload.get() != 0 ? "Online" : "Offline") + "]");
+                        break;
+                    case Frames.ACK:
+                        payload.get();      // Request type, requests are answered in order
+                        boolean ok = payload.get() == Frames.STATUS_OK;
+                        System.out.println((ok ? "[OK] " : "[Error] ") + Frames.readString(payload));
+                        break;
+                    case Frames.NOTICE:
+                        System.out.println(Frames.readString(payload));
+                        break;
+                    case Frames.SESSION:
+                        break;      // Resume token, only the text client reconnects
+                    case Frames.PING:
+                        write(out, Frames.encode(Frames.PING));
+                        break;
+                    default:
+                        System.out.println("(Unknown frame type " + type + ")");
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Connection closed by server.");
+        }
+    }
+
+    // The console and reader threads both send frames
+    private static void write(OutputStream out, ByteBuffer frame) throws IOException {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        synchronized (out) {
+            out.write(bytes);
+            out.flush();
+        }
+    }
+
+    // One newline-terminated text line, read byte by byte so no frame bytes are consumed
+    private static String readTextLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) return null;
+        return line.toString(StandardCharsets.UTF_8.name()).replace("\r", "");
+    }
+}
@@ -0,0 +1,629 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Cluster mode: several server processes sharing one chat.
+ *
+ * Every node is started with the same node list (--cluster=a@host:port,b@host:port,...) and its
+ * own id (--node=a). Rooms are assigned to a home node by consistent hashing of the room name;
+ * the home owns the password, the room count and the seats, other nodes keep a replica with
+ * just their local members. Users stay on the node they connected to, and every node keeps a
+ * directory of which node each online user is on.
+ *
+ * Nodes talk over one TCP link per direction using the same framing as the binary client
+ * protocol: [u8 type][u16 length][payload]. Each node dials every peer and only writes to the
+ * connections it dialed, so a link is a single writer thread draining a bounded outbox.
+ * The only bytes going the other way are a random nonce the accepting node sends first; the
+ * HELLO answers it with an HMAC keyed by the secret every node shares (--cluster-secret-file),
+ * and a link whose HELLO doesn't check out is closed before anything on it is believed.
+ */
+final class Cluster {
+    // Link frame types                 payload
+    static final byte HELLO = 1;        // node id, u64 epoch, HMAC-SHA256 of nonce, node id and epoch (raw, 32 bytes)
+    static final byte USER_ONLINE = 2;  // username
+    static final byte USER_OFFLINE = 3; // username
+    static final byte ACCOUNT = 4;      // username, password hash
+    static final byte ROOM_ADDED = 5;   // room                                  from the home
+    static final byte ROOM_REQUEST = 6; // u32 id, u8 create, room, password, username   to the home
+    static final byte ROOM_REPLY = 7;   // u32 id, refusal (empty when granted)  from the home
+    static final byte ROOM_LEAVE = 8;   // room, username                        to the home
+    static final byte ROOM_MESSAGE = 9; // room, username, text
+    static final byte DIRECT = 10;      // sender, recipient, text, u8 forwarded  to the recipient's node or mailbox
+    static final byte FRIEND = 11;      // username, friend's username
+
+    private static final int VIRTUAL_NODES = 128;       // Ring points per node, evens out the shares
+    private static final int OUTBOX_FRAMES = 65536;     // Frames queued per link before dropping
+    private static final long RETRY_MILLIS = 1000;
+    private static final long REQUEST_TIMEOUT_MILLIS = 5000;
+    private static final int NONCE_BYTES = 16;
+    private static final int MAC_BYTES = 32;
+    static final int MIN_SECRET_BYTES = 16;
+
+    /**
+     * Consistent hash ring. Each node is placed at many points, a key belongs to the
+     * first node point at or after its own hash.
+     */
+    static final class Ring {
+        private final TreeMap<Long, String> points = new TreeMap<>();
+
+        Ring(Iterable<String> nodes, int virtualNodes) {
+            for (String node : nodes) {
+                for (int i = 0; i < virtualNodes; i++) {
+                    points.put(hash(node + "#" + i), node);
+                }
+            }
+        }
+
+        String nodeFor(String key) {
+            Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+            return (point != null ? point : points.firstEntry()).getValue();
+        }
+
+        // 64-bit FNV-1a over the UTF-8 bytes, then a finalizer so similar names spread out
+        static long hash(String key) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+                h ^= b & 0xFF;
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+    // A room request waiting for the home's answer
+    private static final class Pending {
+        final String node;
+        final String room;
+        final String username;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Pending(String node, String room, String username) {
+            this.node = node;
+            this.room = room;
+            this.username = username;
+        }
+    }
+
+    private final String self;
+    private final long epoch = System.nanoTime();       // Tells peers this process restarted
+    private final byte[] secret;                        // Shared by all nodes, keys the HELLO's HMAC
+    private final SecureRandom nonces = new SecureRandom();
+    private final InetSocketAddress linkAddress;
+    private final Ring ring;
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+
+    private final Map<String, String> directory = new ConcurrentHashMap<>();    // Online user -> node, for remote users
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>();      // Node -> link it writes to us on
+    private final Map<String, Long> epochs = new ConcurrentHashMap<>();         // Node -> epoch of its last HELLO
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequest = new AtomicInteger();
+
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder framesReceived = new LongAdder();
+    private final LongAdder framesDropped = new LongAdder();
+
+    private Cluster(String self, Map<String, InetSocketAddress> nodes, byte[] secret) {
+        this.self = self;
+        this.secret = secret;
+        this.linkAddress = nodes.get(self);
+        this.ring = new Ring(nodes.keySet(), VIRTUAL_NODES);
+        nodes.forEach((id, address) -> {
+            if (!id.equals(self)) {
+                peers.put(id, new Peer(id, address));
+            }
+        });
+    }
+
+    // Parses "a@host:port,b@host:port" into the cluster as seen from node `self`
+    static Cluster configure(String self, String nodeList, byte[] secret) {
+        if (secret.length < MIN_SECRET_BYTES) {
+            throw new IllegalArgumentException("the cluster secret needs at least " + MIN_SECRET_BYTES + " bytes");
+        }
+        Map<String, InetSocketAddress> nodes = new LinkedHashMap<>();
+        for (String entry : nodeList.split(",")) {
+            int at = entry.indexOf('@');
+            int colon = entry.lastIndexOf(':');
+            if (at <= 0 || colon < at) {
+                throw new IllegalArgumentException("Expected id@host:port, got '" + entry + "'");
+            }
+            nodes.put(entry.substring(0, at).trim(), new InetSocketAddress(entry.substring(at + 1, colon).trim(),
+                    Integer.parseInt(entry.substring(colon + 1).trim())));
+        }
+        if (!nodes.containsKey(self)) {
+            throw new IllegalArgumentException("--node=" + self + " is not in the node list");
+        }
+
+        return new Cluster(self, nodes, secret);
+    }
+
+    // Opens this node's link port and starts dialing the others
+    void start() throws IOException {
+        listen();
+        for (Peer peer : peers.values()) {
+            daemon("cluster-link-" + peer.id, peer).start();
+        }
+        registerMetrics();
+        Log.info("cluster_started", "node", self, "nodes", peers.size() + 1, "link", linkAddress);
+    }
+
+    String self() {
+        return self;
+    }
+
+    // Node that owns a room
+    String homeOf(String room) {
+        return ring.nodeFor(room);
+    }
+
+    // Node a user is connected to, null when they are not online on another node
+    String locate(String username) {
+        return directory.get(username);
+    }
+
+    // Users online on a node, as far as this node knows
+    List<String> usersOn(String node) {
+        List<String> users = new ArrayList<>();
+        directory.forEach((username, at) -> {
+            if (at.equals(node)) users.add(username);
+        });
+        return users;
+    }
+
+    // Where DMs for a user go: the node they are on, or the node keeping their mail while offline
+    String mailNode(String username) {
+        String node = directory.get(username);
+        return node != null ? node : ring.nodeFor("mailbox/" + username);
+    }
+
+    // ===== Outgoing =====
+
+    void userOnline(String username) {
+        sendAll(Frames.encode(USER_ONLINE, username));
+    }
+
+    void userOffline(String username) {
+        sendAll(Frames.encode(USER_OFFLINE, username));
+    }
+
+    void accountCreated(String username, String hash) {
+        sendAll(Frames.encode(ACCOUNT, username, hash));
+    }
+
+    // Friend edges travel by username, every node keeps them under its own user ids
+    void friendAdded(String username, String friend) {
+        sendAll(Frames.encode(FRIEND, username, friend));
+    }
+
+    void roomAdded(String room) {
+        sendAll(Frames.encode(ROOM_ADDED, room));
+    }
+
+    void leaveRoom(String home, String room, String username) {
+        send(home, Frames.encode(ROOM_LEAVE, room, username));
+    }
+
+    // A DM for another node's mailbox; forwarded mail was already stored in a history once.
+    // False when the link is down or backed up, the caller keeps the mail instead
+    boolean directMessage(String node, String from, String to, String text, boolean forwarded) {
+        byte[][] fields = utf8(from, to, text);
+        ByteBuffer frame = header(DIRECT, size(fields) + 1);
+        putStrings(frame, fields).put((byte) (forwarded ? 1 : 0));
+        return send(node, frame.flip());
+    }
+
+    // Ask a room's home for a seat, creating the room first if asked to.
+    // Completes with null when granted or the refusal, and exceptionally when the home can't be reached.
+    CompletableFuture<String> requestRoom(String home, boolean create, String room, String password, String username) {
+        Peer peer = peers.get(home);
+        Pending request = new Pending(home, room, username);
+        if (peer == null || !peer.connected) {
+            request.result.completeExceptionally(new IOException("node " + home + " is unavailable"));
+            return request.result;
+        }
+
+        // Encoded before the request is registered, so a frame that doesn't fit leaves nothing behind
+        int id = nextRequest.incrementAndGet();
+        ByteBuffer frame = roomRequest(id, create, room, password, username);
+        pending.put(id, request);
+        if (!peer.send(frame)) {
+            pending.remove(id, request);
+            request.result.completeExceptionally(new IOException("link to node " + home + " is backed up"));
+            return request.result;
+        }
+
+        // A request that timed out stays registered, so a late grant can still be given back
+        request.result.orTimeout(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .whenComplete((refusal, error) -> {
+                    if (!(error instanceof TimeoutException)) pending.remove(id, request);
+                });
+        return request.result;
+    }
+
+    // False when the frame was dropped
+    boolean send(String node, ByteBuffer frame) {
+        Peer peer = peers.get(node);
+        return peer != null && peer.send(frame);
+    }
+
+    private void sendAll(ByteBuffer frame) {
+        for (Peer peer : peers.values()) {
+            peer.send(frame);
+        }
+    }
+
+    /**
+     * Outgoing link to one peer. Dials until connected, introduces this node and sends
+     * a snapshot of the state the peer needs, then streams queued frames, flushing once
+     * per batch of whatever is queued.
+     */
+    private final class Peer implements Runnable {
+        final String id;
+        final InetSocketAddress address;
+        final BlockingQueue<ByteBuffer> outbox = new ArrayBlockingQueue<>(OUTBOX_FRAMES);
+        volatile boolean connected = false;
+        private volatile Socket socket;
+
+        Peer(String id, InetSocketAddress address) {
+            this.id = id;
+            this.address = address;
+        }
+
+        // Frames are shared between peers, each link reads its own view; false when dropped
+        boolean send(ByteBuffer frame) {
+            if (!connected || !outbox.offer(frame.duplicate())) {
+                framesDropped.increment();
+                return false;
+            }
+            return true;
+        }
+
+        // Drop the connection and dial again, e.g. after the peer restarted
+        void reconnect() {
+            Socket current = socket;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try (Socket link = new Socket()) {
+                    link.connect(address, (int) RETRY_MILLIS);
+                    link.setTcpNoDelay(true);
+                    socket = link;
+                    // The peer's challenge, answered in the HELLO
+                    byte[] nonce = new byte[NONCE_BYTES];
+                    link.setSoTimeout((int) REQUEST_TIMEOUT_MILLIS);
+                    new DataInputStream(link.getInputStream()).readFully(nonce);
+                    link.setSoTimeout(0);
+                    OutputStream out = new BufferedOutputStream(link.getOutputStream(), 64 * 1024);
+                    WritableByteChannel channel = Channels.newChannel(out);     // Takes read-only buffers too
+
+                    // Anything queued for the previous connection is covered by the snapshot
+                    outbox.clear();
+                    connected = true;
+                    byte[][] hello = utf8(self);
+                    ByteBuffer introduction = header(HELLO, size(hello) + 8 + MAC_BYTES);
+                    putStrings(introduction, hello).putLong(epoch).put(helloMac(nonce, self, epoch));
+                    write(channel, introduction.flip());
+                    for (ByteBuffer frame : Server.clusterSnapshot()) {
+                        write(channel, frame);
+                    }
+                    out.flush();
+                    Log.info("cluster_linked", "node", id);
+                    Server.onNodeLinked(id);     // Mail kept here while the link was down goes out first
+
+                    while (true) {
+                        ByteBuffer frame = outbox.take();
+                        do {
+                            write(channel, frame);
+                        } while ((frame = outbox.poll()) != null);
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    if (connected) {
+                        Log.warn("cluster_link_lost", "node", id, "error", e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                    socket = null;
+                    failPending(id);
+                }
+                sleep(RETRY_MILLIS);
+            }
+        }
+
+        private void write(WritableByteChannel channel, ByteBuffer frame) throws IOException {
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+            framesSent.increment();
+        }
+    }
+
+    // ===== Incoming =====
+
+    private void listen() throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.bind(linkAddress);
+        daemon("cluster-accept", () -> {
+            while (true) {
+                try {
+                    Socket link = server.accept();
+                    link.setTcpNoDelay(true);
+                    daemon("cluster-read", () -> read(link)).start();
+                } catch (IOException e) {
+                    Log.error("cluster_accept_failed", "error", e.getMessage());
+                }
+            }
+        }).start();
+    }
+
+    private void read(Socket link) {
+        String node = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(link.getInputStream(), 64 * 1024))) {
+            // Challenge the dialer, and don't wait long for its answer
+            byte[] nonce = new byte[NONCE_BYTES];
+            nonces.nextBytes(nonce);
+            link.getOutputStream().write(nonce);
+            link.setSoTimeout((int) REQUEST_TIMEOUT_MILLIS);
+            while (true) {
+                byte type = in.readByte();
+                byte[] payload = new byte[in.readUnsignedShort()];
+                in.readFully(payload);
+                ByteBuffer frame = ByteBuffer.wrap(payload);
+                framesReceived.increment();
+
+                if (node == null) {
+                    if (type != HELLO) {
+                        return;
+                    }
+                    String claimed = Frames.readString(frame);
+                    long claimedEpoch = frame.getLong();
+                    byte[] mac = new byte[MAC_BYTES];
+                    frame.get(mac);
+                    if (!MessageDigest.isEqual(mac, helloMac(nonce, claimed, claimedEpoch))) {
+                        Log.warn("cluster_hello_rejected", "node", claimed, "addr", link.getInetAddress().getHostAddress());
+                        return;
+                    }
+                    if (!peers.containsKey(claimed)) {
+                        Log.warn("cluster_unknown_node", "node", claimed);
+                        return;
+                    }
+                    node = claimed;
+                    link.setSoTimeout(0);
+                    hello(node, claimedEpoch, link);
+                    continue;
+                }
+                dispatch(node, type, frame);
+            }
+        } catch (IOException e) {
+            // Link closed, handled below
+        } catch (BufferUnderflowException e) {
+            Log.warn("cluster_malformed_frame", "node", node, "addr", link.getInetAddress().getHostAddress());
+        } finally {
+            if (node != null && inbound.remove(node, link)) {
+                Log.info("cluster_node_disconnected", "node", node);
+                nodeDown(node);
+            }
+        }
+    }
+
+    // A peer (re)connected: forget what it told us before, its snapshot follows
+    private void hello(String node, long nodeEpoch, Socket link) {
+        Socket previous = inbound.put(node, link);
+        if (previous != null) {
+            try {
+                previous.close();
+            } catch (IOException ignored) {
+            }
+        }
+        nodeDown(node);
+
+        // A restarted peer knows nothing about us, so send it our snapshot again
+        Long known = epochs.put(node, nodeEpoch);
+        if (known != null && known != nodeEpoch) {
+            peers.get(node).reconnect();
+        }
+    }
+
+    private void dispatch(String node, byte type, ByteBuffer frame) {
+        switch (type) {
+            case USER_ONLINE: {
+                String username = Frames.readString(frame);
+                directory.put(username, node);
+                Server.onRemoteLogin(username, node);
+                break;
+            }
+            case USER_OFFLINE: {
+                String username = Frames.readString(frame);
+                if (directory.remove(username, node)) {
+                    Server.onRemoteLogout(username);
+                }
+                break;
+            }
+            case ACCOUNT:
+                Server.onRemoteAccount(Frames.readString(frame), Frames.readString(frame));
+                break;
+            case FRIEND:
+                Server.onRemoteFriend(Frames.readString(frame), Frames.readString(frame));
+                break;
+            case ROOM_ADDED:
+                Server.onRemoteRoom(Frames.readString(frame), node);
+                break;
+            case ROOM_REQUEST: {
+                int id = frame.getInt();
+                boolean create = frame.get() != 0;
+                String refusal = Server.onRoomRequest(node, create, Frames.readString(frame),
+                        Frames.readString(frame), Frames.readString(frame));
+                byte[][] fields = utf8(refusal == null ? "" : refusal);
+                ByteBuffer reply = header(ROOM_REPLY, 4 + size(fields));
+                reply.putInt(id);
+                putStrings(reply, fields);
+                send(node, reply.flip());
+                break;
+            }
+            case ROOM_REPLY: {
+                int id = frame.getInt();
+                String refusal = Frames.readString(frame);
+                Pending request = pending.remove(id);
+                if (request != null && !request.result.complete(refusal.isEmpty() ? null : refusal)
+                        && refusal.isEmpty()) {
+                    leaveRoom(node, request.room, request.username);    // Granted after we gave up waiting
+                }
+                break;
+            }
+            case ROOM_LEAVE:
+                Server.onRoomLeave(node, Frames.readString(frame), Frames.readString(frame));
+                break;
+            case ROOM_MESSAGE:
+                Server.onRoomMessage(node, Frames.readString(frame), Frames.readString(frame), Frames.readString(frame));
+                break;
+            case DIRECT:
+                Server.onDirectMessage(Frames.readString(frame), Frames.readString(frame), Frames.readString(frame),
+                        frame.get() != 0);
+                break;
+            default:
+                Log.warn("cluster_unknown_frame", "type", type, "node", node);
+        }
+    }
+
+    // Everything we knew through a node that is gone: its users go offline, its seats are freed
+    private void nodeDown(String node) {
+        directory.forEach((username, at) -> {
+            if (at.equals(node) && directory.remove(username, node)) {
+                Server.onRemoteLogout(username);
+            }
+        });
+        Server.onNodeDown(node);
+    }
+
+    private void failPending(String node) {
+        pending.values().removeIf(request -> {
+            if (!request.node.equals(node)) return false;
+            request.result.completeExceptionally(new IOException("lost link to node " + node));
+            return true;
+        });
+    }
+
+    private void registerMetrics() {
+        Metrics.gauge("chat_cluster_peers_linked", "Peers this node currently has an outgoing link to", () -> {
+            long linked = 0;
+            for (Peer peer : peers.values()) {
+                if (peer.connected) linked++;
+            }
+            return linked;
+        });
+        Metrics.gauge("chat_cluster_remote_users", "Users online on other nodes", directory::size);
+        Metrics.counter("chat_cluster_frames_sent_total", "Frames written to peer links", framesSent::sum);
+        Metrics.counter("chat_cluster_frames_received_total", "Frames read from peer links", framesReceived::sum);
+        Metrics.counter("chat_cluster_frames_dropped_total", "Frames dropped because a link was down or backed up", framesDropped::sum);
+    }
+
+    // ===== Framing helpers =====
+
+    // ROOM_REQUEST, on its own so the longest one the intake allows can be checked to fit
+    static ByteBuffer roomRequest(int id, boolean create, String room, String password, String username) {
+        byte[][] fields = utf8(room, password, username);
+        ByteBuffer frame = header(ROOM_REQUEST, 4 + 1 + size(fields));
+        frame.putInt(id).put((byte) (create ? 1 : 0));
+        return putStrings(frame, fields).flip();
+    }
+
+    // Proves the HELLO comes from a holder of the secret, and answers this very challenge
+    private byte[] helloMac(byte[] nonce, String node, long nodeEpoch) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(nonce);
+            mac.update(node.getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal(ByteBuffer.allocate(8).putLong(nodeEpoch).array());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    private static byte[][] utf8(String... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return encoded;
+    }
+
+    private static int size(byte[][] fields) {
+        int size = 0;
+        for (byte[] field : fields) {
+            size += 2 + field.length;
+        }
+        return size;
+    }
+
+    private static ByteBuffer header(byte type, int payload) {
+        if (payload > Frames.MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Frame payload too large: " + payload);
+        }
+        return ByteBuffer.allocate(Frames.HEADER_BYTES + payload).put(type).putShort((short) payload);
+    }
+
+    private static ByteBuffer putStrings(ByteBuffer frame, byte[][] fields) {
+        for (byte[] field : fields) {
+            frame.putShort((short) field.length).put(field);
+        }
+        return frame;
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
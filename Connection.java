@@ -0,0 +1,45 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Transport side of one client session. The ClientHandler only talks to the client
+ * through this, so the same menu/auth/room flow runs on blocking sockets or on the NIO event loop.
+ */
+interface Connection {
+    // Queue one line of text for the client
+    default void send(String line) {
+        send(encode(line));
+    }
+
+    // Queue an encoded line or frame, the buffer may be shared with other clients and is never modified
+    void send(ByteBuffer encodedLine);
+
+    // Parse everything after the current line as binary frames (see Frames)
+    void switchToBinary();
+
+    // Inflate the client's input after the current line, deflate output queued from now on (see OutputDeflater)
+    void compress();
+
+    // Run a task on the thread that owns this session, for results coming back from worker threads
+    void execute(Runnable task);
+
+    // Feed this transport to another session from now on, when a reconnecting client resumes a dropped one
+    void attach(Server.ClientHandler handler);
+
+    // Close the connection once the pending output has been written
+    void close();
+
+    // Close right away and drop the pending output, for a client that stopped responding
+    void abort();
+
+    // Address of the remote client, used for logging
+    String remoteAddress();
+
+    // Messages waiting to be written to this client
+    OutboundQueue outboundQueue();
+
+    // UTF-8 bytes of the line plus its terminator, as a read-only buffer that can be shared
+    static ByteBuffer encode(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+}
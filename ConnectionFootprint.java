@@ -0,0 +1,90 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares memory per idle connection between the server I/O modes.
+ * Starts the Server as a child process, opens N idle clients that stop at the
+ * username prompt, and reads the server's RSS and thread count from /proc (Linux only).
+ *
+ * Usage: java ConnectionFootprint [connections] [mode ...]
+ *   e.g. java ConnectionFootprint 2000 thread virtual nio
+ */
+public class ConnectionFootprint {
+    private static final int PORT = 12345;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        List<String> modes = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) modes.add(args[i]);
+        if (modes.isEmpty()) modes = List.of("thread", "virtual", "nio");
+
+        System.out.printf("%-8s %12s %10s %14s %10s%n", "mode", "connections", "threads", "RSS delta KB", "KB/conn");
+        for (String mode : modes) {
+            if (mode.equals("virtual") && Runtime.version().feature() < 21) {
+                // The server refuses to start, there is nothing to measure
+                System.out.printf("%-8s needs Java 21 or newer, skipped on Java %s%n", mode, Runtime.version());
+                continue;
+            }
+            measure(mode, connections);
+        }
+    }
+
+    private static void measure(String mode, int connections) throws Exception {
+        String javaBin = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process server = new ProcessBuilder(javaBin, "-cp", System.getProperty("java.class.path"),
+                "Server", "--io=" + mode, "--max-users=" + (connections + 1))
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            waitForPort();
+            Thread.sleep(500);  // Let the JIT and the event loops settle
+            long baseRss = readStatus(server.pid(), "VmRSS");
+
+            for (int i = 0; i < connections; i++) {
+                Socket socket = new Socket("localhost", PORT);
+                // Wait for the username prompt so the session really exists on the server
+                new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+                sockets.add(socket);
+            }
+            Thread.sleep(500);
+
+            long rss = readStatus(server.pid(), "VmRSS");
+            long threads = readStatus(server.pid(), "Threads");
+            long delta = rss - baseRss;
+            System.out.printf("%-8s %12d %10d %14d %10.1f%n", mode, connections, threads, delta,
+                    (double) delta / connections);
+        } finally {
+            for (Socket socket : sockets) socket.close();
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    private static void waitForPort() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("localhost", PORT).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + PORT);
+    }
+
+    // Reads a numeric field from /proc/<pid>/status, e.g. "VmRSS:  123456 kB"
+    private static long readStatus(long pid, String field) throws IOException {
+        for (String line : Files.readAllLines(Paths.get("/proc/" + pid + "/status"))) {
+            if (line.startsWith(field + ":")) {
+                return Long.parseLong(line.substring(field.length() + 1).trim().split("\\s+")[0]);
+            }
+        }
+        throw new IOException(field + " not found for pid " + pid);
+    }
+}
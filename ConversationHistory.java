@@ -0,0 +1,199 @@
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Private chat history as seen by the clients. The newest messages of each conversation
+ * sit in a bounded ring buffer in front of the on-disk MessageLog, so opening a DM only
+ * sends the last page from memory and older pages are read from the log on request.
+ * Entries are evicted by count (ring capacity, and how many rings stay cached) and,
+ * optionally, by age. Conversations are keyed by the pair of user ids, see key().
+ */
+class ConversationHistory {
+    // A run of consecutive messages; firstIndex is the position of the first one in the conversation
+    static final class Page {
+        final List<MessageLog.Entry> entries;
+        final int firstIndex;
+
+        Page(List<MessageLog.Entry> entries, int firstIndex) {
+            this.entries = entries;
+            this.firstIndex = firstIndex;
+        }
+    }
+
+    // Fixed-size circular buffer with the newest messages of one conversation
+    private static final class Ring {
+        final MessageLog.Entry[] entries;
+        int head = 0;       // Index of the oldest entry in the array
+        int size = 0;
+        int total;          // Messages in the whole conversation, the ring holds [total - size, total)
+
+        Ring(int capacity, int total) {
+            this.entries = new MessageLog.Entry[capacity];
+            this.total = total;
+        }
+
+        void add(MessageLog.Entry entry) {
+            entries[(head + size) % entries.length] = entry;
+            if (size < entries.length) {
+                size++;
+            } else {
+                head = (head + 1) % entries.length;     // Full, overwrite the oldest
+            }
+            total++;
+        }
+
+        MessageLog.Entry get(int conversationIndex) {
+            return entries[(head + conversationIndex - (total - size)) % entries.length];
+        }
+
+        // Drop entries older than the cutoff, they are always at the front
+        void evictOlderThan(long cutoff) {
+            while (size > 0 && entries[head].timestamp < cutoff) {
+                entries[head] = null;
+                head = (head + 1) % entries.length;
+                size--;
+            }
+        }
+    }
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final MessageLog log;
+    private final int ringCapacity;
+    private final long maxAgeMillis;    // 0 keeps messages forever
+
+    // Appends and ring loads of one conversation go through the same stripe, so the ring never misses a message
+    private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+
+    // Least recently used rings are dropped once more than maxConversations are cached
+    private final ReentrantLock ringsLock = new ReentrantLock();
+    private final LinkedHashMap<Long, Ring> rings;
+
+    ConversationHistory(MessageLog log, int ringCapacity, long maxAgeMillis, int maxConversations) {
+        this.log = log;
+        this.ringCapacity = ringCapacity;
+        this.maxAgeMillis = maxAgeMillis;
+        this.rings = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Ring> eldest) {
+                return size() > maxConversations;
+            }
+        };
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    // Same key whichever of the two users asks
+    static long key(int userA, int userB) {
+        return userA < userB ? ((long) userA << 32) | userB : ((long) userB << 32) | userA;
+    }
+
+    void append(long key, String message) {
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            log.append(logKey(key), message);
+            Ring ring = cachedRing(key);
+            if (ring != null) {
+                ring.add(new MessageLog.Entry(System.currentTimeMillis(), message));
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    // The newest `count` messages
+    Page latest(long key, int count) {
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            Ring ring = ring(key);
+            return page(key, ring, ring.total - count, ring.total);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    // Up to `count` messages right before the given conversation index
+    Page before(long key, int index, int count) {
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            return page(key, ring(key), index - count, index);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    void close() {
+        log.close();
+    }
+
+    // Messages [from, to), from the ring when it covers the range, otherwise from the log
+    private Page page(long key, Ring ring, int from, int to) {
+        from = Math.max(0, from);
+        long cutoff = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+        ring.evictOlderThan(cutoff);
+
+        List<MessageLog.Entry> entries;
+        if (from >= ring.total - ring.size) {
+            entries = new ArrayList<>(Math.max(0, to - from));
+            for (int i = from; i < to; i++) {
+                entries.add(ring.get(i));
+            }
+        } else {
+            // May come back shorter when the start of the conversation was compacted away
+            entries = log.read(logKey(key), from, to);
+        }
+
+        // Skip expired messages, they are the oldest so they are at the front
+        int expired = 0;
+        while (expired < entries.size() && entries.get(expired).timestamp < cutoff) {
+            expired++;
+        }
+        return new Page(entries.subList(expired, entries.size()), to - entries.size() + expired);
+    }
+
+    private Ring cachedRing(long key) {
+        ringsLock.lock();
+        try {
+            return rings.get(key);
+        } finally {
+            ringsLock.unlock();
+        }
+    }
+
+    // Ring for a conversation, filled from the log the first time; caller holds the stripe lock
+    private Ring ring(long key) {
+        Ring ring = cachedRing(key);
+        if (ring != null) {
+            return ring;
+        }
+
+        String logKey = logKey(key);
+        int total = log.count(logKey);
+        List<MessageLog.Entry> newest = log.read(logKey, total - ringCapacity, total);
+        ring = new Ring(ringCapacity, total - newest.size());
+        for (MessageLog.Entry entry : newest) {
+            ring.add(entry);
+        }
+
+        ringsLock.lock();
+        try {
+            rings.put(key, ring);
+        } finally {
+            ringsLock.unlock();
+        }
+        return ring;
+    }
+
+    private ReentrantLock stripe(long key) {
+        return stripes[(Long.hashCode(key) & 0x7FFFFFFF) % LOCK_STRIPES];
+    }
+
+    // The log keys records by string
+    private static String logKey(long key) {
+        return Long.toHexString(key);
+    }
+}
@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * One selector thread serving many connections. Other threads never touch the
+ * selector directly, they post tasks with execute() and the loop runs them.
+ */
+class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // Delayed tasks ordered by deadline (only used on the loop thread)
+    private static final class Timer {
+        final long deadline;
+        final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>((a, b) -> Long.compare(a.deadline, b.deadline));
+
+    // Read buffer shared by every connection on this loop (only used on the loop thread)
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // Hand a freshly accepted channel over to this loop, speaking TLS with an engine from `tls` unless it is null
+    void register(SocketChannel channel, SSLContext tls) {
+        execute(() -> {
+            SelectionKey key = null;
+            try {
+                channel.configureBlocking(false);
+                key = channel.register(selector, SelectionKey.OP_READ);
+                SSLEngine engine = null;
+                if (tls != null) {
+                    engine = tls.createSSLEngine();
+                    engine.setUseClientMode(false);
+                }
+                NioConnection connection = new NioConnection(this, channel, key, engine);
+                key.attach(connection);
+                connection.start();
+            } catch (IOException e) {
+                Log.error("register_failed", "error", e.getMessage());
+                abandon(channel, key);
+            } catch (RuntimeException e) {
+                // An engine or handler that fails to set up must not take the loop down or keep the slot
+                Log.error("register_failed", "error", e);
+                abandon(channel, key);
+            }
+        });
+    }
+
+    // Drop a channel that never became a connection, giving its slot back
+    private static void abandon(SocketChannel channel, SelectionKey key) {
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        Server.releaseSlot();
+    }
+
+    // Run a task on the loop thread
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    // Run a task on the loop thread once the delay has passed; select() only waits in whole
+    // milliseconds, so shorter delays are rounded up to 1 ms
+    void schedule(Runnable task, long delayNanos) {
+        long deadline = System.nanoTime() + delayNanos;
+        execute(() -> timers.add(new Timer(deadline, task)));
+    }
+
+    // The shared read buffer, for reads that don't come from the selector (loop thread only)
+    ByteBuffer readBuffer() {
+        return readBuffer;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                // Don't block in select() when tasks are already waiting, and only until the next timer
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else if (!timers.isEmpty()) {
+                    long wait = timers.peek().deadline - System.nanoTime();
+                    if (wait > 0) {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                    } else {
+                        selector.selectNow();
+                    }
+                } else {
+                    selector.select();
+                }
+                runTasks();
+                runTimers();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (RuntimeException e) {
+                        // A bug in one session costs that connection, not the loop and everyone else on it
+                        connection.fail(e);
+                    }
+                }
+            } catch (IOException e) {
+                Log.error("event_loop_error", "error", e.getMessage());
+            }
+        }
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().deadline <= now) {
+            run(timers.poll().task);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            run(task);
+        }
+    }
+
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.error("event_loop_task_failed", "error", e);
+        }
+    }
+}
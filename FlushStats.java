@@ -0,0 +1,43 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide counters for coalesced writes: how many flushes happened, how many messages
+ * and bytes each one carried, and how long the first message of a batch was held back
+ * waiting for company (time spent blocked on a full socket is not counted).
+ * The lag monitor reads and resets them every interval.
+ */
+final class FlushStats {
+    private static final LongAdder flushes = new LongAdder();
+    private static final LongAdder messages = new LongAdder();
+    private static final LongAdder bytes = new LongAdder();
+    private static final LongAdder delayNanos = new LongAdder();
+    private static final AtomicLong maxDelayNanos = new AtomicLong();
+
+    private FlushStats() {
+    }
+
+    // One batch written to a client
+    static void record(int batchMessages, long batchBytes, long batchDelayNanos) {
+        flushes.increment();
+        messages.add(batchMessages);
+        bytes.add(batchBytes);
+        delayNanos.add(batchDelayNanos);
+        maxDelayNanos.accumulateAndGet(batchDelayNanos, Math::max);
+    }
+
+    // Summary since the last call, null when nothing was flushed
+    static String report() {
+        long count = flushes.sumThenReset();
+        if (count == 0) {
+            return null;
+        }
+        long totalMessages = messages.sumThenReset();
+        long totalBytes = bytes.sumThenReset();
+        long totalDelay = delayNanos.sumThenReset();
+        long maxDelay = maxDelayNanos.getAndSet(0);
+        return String.format("flushes=%d msgs/flush=%.1f bytes/flush=%d avg-delay=%dus max-delay=%dus",
+                count, (double) totalMessages / count, totalBytes / count,
+                totalDelay / count / 1000, maxDelay / 1000);
+    }
+}
@@ -0,0 +1,141 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Optional binary protocol, used next to the newline-delimited text protocol.
+ * A client asks for it by sending "/binary" instead of a username; after the server
+ * answers with ACCEPTED both sides only exchange frames:
+ *
+ *   [u8 type][u16 payload length][payload]
+ *
+ * Strings inside a payload are [u16 length][UTF-8 bytes]. There are no menus or prompts,
+ * so a client can pipeline several requests without waiting.
+ */
+final class Frames {
+    static final String NEGOTIATE = "/binary";
+    static final String ACCEPTED = "[Server] Binary protocol enabled";
+
+    static final int HEADER_BYTES = 3;
+    static final int MAX_PAYLOAD = 0xFFFF;
+    // Limits on client input, so that whatever the server builds from it still fits in a frame.
+    // The largest frame carrying a message is two names, the text and a u32 (DM, HISTORY, cluster relay)
+    static final int MAX_NAME_BYTES = 64;
+    static final int MAX_TEXT_BYTES = MAX_PAYLOAD - 3 * 2 - 2 * MAX_NAME_BYTES - 4;
+    // Room passwords travel next to two names and more in a cluster's ROOM_REQUEST, and are kept in the state store
+    static final int MAX_PASSWORD_BYTES = 256;
+
+    // Frame types                      client -> server            server -> client
+    static final byte LOGIN = 1;        // username, password
+    static final byte JOIN = 2;         // u8 create, room, password
+    static final byte LEAVE = 3;        // (empty)
+    static final byte MESSAGE = 4;      // text                     room, sender, text
+    static final byte DM = 5;           // target, text             sender, text, u32 mail id
+    static final byte PRESENCE = 6;     // username to follow       username, u8 online
+    static final byte ACK = 7;          //                          u8 request type, u8 status, detail
+    static final byte NOTICE = 8;       //                          text
+    static final byte DELIVERED = 9;    // u32 mail id, acknowledges every DM up to it
+    static final byte SESSION = 10;     //                          resume token, see Server.RESUME
+    static final byte HISTORY = 11;     //                          room, sender, text; catch-up sent on JOIN
+    static final byte PING = 12;        // (empty), the answer      (empty), see Heartbeat
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+
+    private Frames() {
+    }
+
+    // Frame made of string fields only
+    static ByteBuffer encode(byte type, String... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        int payload = 0;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            payload += 2 + encoded[i].length;
+        }
+        ByteBuffer frame = header(type, payload);
+        for (byte[] field : encoded) {
+            putString(frame, field);
+        }
+        return frame.flip().asReadOnlyBuffer();
+    }
+
+    static ByteBuffer ack(byte requestType, boolean ok, String detail) {
+        byte[] text = detail.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = header(ACK, 2 + 2 + text.length);
+        frame.put(requestType).put(ok ? STATUS_OK : STATUS_ERROR);
+        putString(frame, text);
+        return frame.flip().asReadOnlyBuffer();
+    }
+
+    static ByteBuffer presence(String username, boolean online) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = header(PRESENCE, 2 + name.length + 1);
+        putString(frame, name);
+        frame.put((byte) (online ? 1 : 0));
+        return frame.flip().asReadOnlyBuffer();
+    }
+
+    static ByteBuffer dm(String from, String text, int mailId) {
+        byte[] sender = from.getBytes(StandardCharsets.UTF_8);
+        byte[] message = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = header(DM, 2 + sender.length + 2 + message.length + 4);
+        putString(frame, sender);
+        putString(frame, message);
+        frame.putInt(mailId);
+        return frame.flip().asReadOnlyBuffer();
+    }
+
+    static ByteBuffer delivered(int mailId) {
+        return header(DELIVERED, 4).putInt(mailId).flip().asReadOnlyBuffer();
+    }
+
+    static ByteBuffer join(boolean create, String room, String password) {
+        byte[] name = room.getBytes(StandardCharsets.UTF_8);
+        byte[] pass = password.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = header(JOIN, 1 + 2 + name.length + 2 + pass.length);
+        frame.put((byte) (create ? 1 : 0));
+        putString(frame, name);
+        putString(frame, pass);
+        return frame.flip().asReadOnlyBuffer();
+    }
+
+    // Reads the next string field of a payload
+    static String readString(ByteBuffer payload) {
+        int length = payload.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Size of the string in UTF-8, without encoding it
+    static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;     // Lone surrogates become '?' on encoding, counting them as 3 only overestimates
+            }
+        }
+        return length;
+    }
+
+    private static ByteBuffer header(byte type, int payload) {
+        if (payload > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Frame payload too large: " + payload);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_BYTES + payload);
+        frame.put(type).putShort((short) payload);
+        return frame;
+    }
+
+    private static void putString(ByteBuffer frame, byte[] value) {
+        frame.putShort((short) value.length).put(value);
+    }
+}
@@ -0,0 +1,229 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+
+/**
+ * Who follows whom, by UserRegistry id. Most edges sit in compressed sparse rows: one int
+ * array with every user's friends back to back, sorted per user, and one array of offsets
+ * into it. A user's friends are a slice of a primitive array and checking a friendship is a
+ * binary search, with no per-user collections or boxed ids. New edges go to a small sorted
+ * list first and are merged into the rows once it grows past an eighth of the graph.
+ * New edges are logged to the StateStore, and snapshots store the rows as they are.
+ */
+final class FriendGraph {
+    private static final int MIN_MERGE = 1024;      // Added edges always allowed before merging
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Compressed rows: user u follows targets[offsets[u]] up to targets[offsets[u + 1]], sorted
+    private int[] offsets = {0};
+    private int[] targets = new int[0];
+    // Edges added since the rows were built, (from << 32) | to, sorted
+    private long[] added = new long[64];
+    private int addedCount = 0;
+
+    private StateStore state;           // Null keeps the graph in memory only
+
+    // Log new edges to `state` from now on
+    void persistTo(StateStore state) {
+        this.state = state;
+    }
+
+    // Make `from` follow `to`, false when it already does
+    boolean add(int from, int to) {
+        lock.writeLock().lock();
+        try {
+            if (!insert(from, to)) return false;
+            if (state != null) {
+                state.friendAdded(from, to);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // An edge from the state log, already logged; replays may repeat edges the snapshot has
+    void restore(int from, int to) {
+        lock.writeLock().lock();
+        try {
+            insert(from, to);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    boolean contains(int from, int to) {
+        lock.readLock().lock();
+        try {
+            return contains(from, to, edge(from, to));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Calls `visitor` with everyone `user` follows, in id order, straight off the row and the added
+    // edges without copying them. It runs under the read lock, so it must not add edges itself
+    void forEachFollowing(int user, IntConsumer visitor) {
+        lock.readLock().lock();
+        try {
+            int row = user + 1 < offsets.length ? offsets[user] : 0;
+            int rowEnd = user + 1 < offsets.length ? offsets[user + 1] : 0;
+            int edge = lowerBound(edge(user, 0));
+            int edgeEnd = lowerBound(edge(user + 1, 0));
+            while (row < rowEnd || edge < edgeEnd) {
+                if (edge == edgeEnd || (row < rowEnd && targets[row] < (int) added[edge])) {
+                    visitor.accept(targets[row++]);
+                } else {
+                    visitor.accept((int) added[edge++]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // How many users `user` follows
+    int followingCount(int user) {
+        lock.readLock().lock();
+        try {
+            int rowLength = user + 1 < offsets.length ? offsets[user + 1] - offsets[user] : 0;
+            return rowLength + lowerBound(edge(user + 1, 0)) - lowerBound(edge(user, 0));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Number of edges in the graph
+    int size() {
+        lock.readLock().lock();
+        try {
+            return targets.length + addedCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Snapshot of the graph: the rows with everything merged in
+    void writeTo(DataOutputStream out) throws IOException {
+        int[] rowOffsets;
+        int[] rowTargets;
+        lock.writeLock().lock();
+        try {
+            if (addedCount > 0) {
+                merge();
+            }
+            rowOffsets = offsets;       // Never changed in place, merging replaces them
+            rowTargets = targets;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        out.writeInt(rowOffsets.length);
+        for (int offset : rowOffsets) {
+            out.writeInt(offset);
+        }
+        out.writeInt(rowTargets.length);
+        for (int target : rowTargets) {
+            out.writeInt(target);
+        }
+    }
+
+    void readFrom(DataInputStream in) throws IOException {
+        int[] rowOffsets = new int[in.readInt()];
+        for (int i = 0; i < rowOffsets.length; i++) {
+            rowOffsets[i] = in.readInt();
+        }
+        int[] rowTargets = new int[in.readInt()];
+        for (int i = 0; i < rowTargets.length; i++) {
+            rowTargets[i] = in.readInt();
+        }
+        lock.writeLock().lock();
+        try {
+            offsets = rowOffsets;
+            targets = rowTargets;
+            addedCount = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Caller holds the write lock
+    private boolean insert(int from, int to) {
+        long edge = edge(from, to);
+        if (contains(from, to, edge)) return false;
+        int at = -Arrays.binarySearch(added, 0, addedCount, edge) - 1;
+        if (addedCount == added.length) {
+            added = Arrays.copyOf(added, addedCount * 2);
+        }
+        System.arraycopy(added, at, added, at + 1, addedCount - at);
+        added[at] = edge;
+        addedCount++;
+        if (addedCount > Math.max(MIN_MERGE, targets.length / 8)) {
+            merge();
+        }
+        return true;
+    }
+
+    // Caller holds a lock
+    private boolean contains(int from, int to, long edge) {
+        if (from + 1 < offsets.length && Arrays.binarySearch(targets, offsets[from], offsets[from + 1], to) >= 0) {
+            return true;
+        }
+        return Arrays.binarySearch(added, 0, addedCount, edge) >= 0;
+    }
+
+    // Rebuild the rows with the added edges in them; caller holds the write lock
+    private void merge() {
+        int users = offsets.length - 1;
+        if (addedCount > 0) {
+            users = Math.max(users, (int) (added[addedCount - 1] >>> 32) + 1);
+        }
+        int[] newOffsets = new int[users + 1];
+        int[] newTargets = new int[targets.length + addedCount];
+        int position = 0;
+        int next = 0;       // First added edge not merged yet
+        for (int user = 0; user < users; user++) {
+            newOffsets[user] = position;
+            int rowStart = user + 1 < offsets.length ? offsets[user] : 0;
+            int rowEnd = user + 1 < offsets.length ? offsets[user + 1] : 0;
+            int addedEnd = next;
+            while (addedEnd < addedCount && (int) (added[addedEnd] >>> 32) == user) {
+                addedEnd++;
+            }
+            position = mergeRow(targets, rowStart, rowEnd, added, next, addedEnd, newTargets, position);
+            next = addedEnd;
+        }
+        newOffsets[users] = position;
+        offsets = newOffsets;
+        targets = newTargets;
+        addedCount = 0;
+        if (added.length != 64) {
+            added = new long[64];
+        }
+    }
+
+    // Merge a sorted row slice and the targets of a sorted run of added edges into `out` at `position`
+    private static int mergeRow(int[] row, int rowStart, int rowEnd, long[] edges, int edgeStart, int edgeEnd,
+                                int[] out, int position) {
+        while (rowStart < rowEnd || edgeStart < edgeEnd) {
+            if (edgeStart == edgeEnd || (rowStart < rowEnd && row[rowStart] < (int) edges[edgeStart])) {
+                out[position++] = row[rowStart++];
+            } else {
+                out[position++] = (int) edges[edgeStart++];
+            }
+        }
+        return position;
+    }
+
+    // Index of the first added edge not below `edge`
+    private int lowerBound(long edge) {
+        int at = Arrays.binarySearch(added, 0, addedCount, edge);
+        return at >= 0 ? at : -at - 1;
+    }
+
+    private static long edge(int from, int to) {
+        return ((long) from << 32) | to;
+    }
+}
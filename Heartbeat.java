@@ -0,0 +1,75 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Liveness of one connection. The transport stamps every read, which is a single volatile
+ * write; the timer on the shared wheel only looks at the stamp when it comes due. A connection
+ * quiet for --heartbeat-seconds is pinged (a PING frame, or the "[Ping]" line for text clients,
+ * answered with "/pong"), and one that sent nothing at all for --idle-timeout-seconds is closed
+ * as if it had dropped, which frees its user slot and parks a logged-in session for resuming.
+ * Busy connections are never pinged.
+ */
+final class Heartbeat extends TimerWheel.Timer {
+    static long intervalNanos = TimeUnit.SECONDS.toNanos(30);   // --heartbeat-seconds
+    static long timeoutNanos = TimeUnit.SECONDS.toNanos(90);    // --idle-timeout-seconds, 0 turns the reaper off
+    static TimerWheel wheel;                                     // Null when the reaper is off
+
+    private static final ByteBuffer PING_LINE = Connection.encode(Server.PING);
+    private static final ByteBuffer PING_FRAME = Frames.encode(Frames.PING);
+
+    private final Connection connection;
+    private volatile long lastRead = System.nanoTime();
+    private volatile boolean binary;
+    private long pingedFor = -1;        // lastRead when the last ping went out, wheel thread only
+
+    Heartbeat(Connection connection) {
+        this.connection = connection;
+    }
+
+    // Start watching, when the connection is accepted
+    void start() {
+        if (wheel != null) {
+            wheel.schedule(this, lastRead + Math.min(intervalNanos, timeoutNanos));
+        }
+    }
+
+    // The connection is gone, take it off the wheel
+    void stop() {
+        if (wheel != null) {
+            wheel.cancel(this);
+        }
+    }
+
+    // Anything from the client proves it is alive
+    void onRead() {
+        lastRead = System.nanoTime();
+    }
+
+    // Pings are frames from now on
+    void switchToBinary() {
+        binary = true;
+    }
+
+    @Override
+    protected void expire(long now) {
+        long last = lastRead;
+        long quiet = now - last;
+        if (quiet >= timeoutNanos) {
+            Metrics.idleDisconnects.increment();
+            Log.info("idle_disconnect", "addr", connection.remoteAddress(), "quiet_ms", TimeUnit.NANOSECONDS.toMillis(quiet));
+            connection.abort();
+            return;
+        }
+        if (quiet < intervalNanos) {
+            wheel.schedule(this, last + intervalNanos);
+            return;
+        }
+        if (pingedFor != last) {
+            // Sent straight to the transport, pings are not session output a resume would replay
+            connection.send(binary ? PING_FRAME : PING_LINE);
+            Metrics.heartbeatsSent.increment();
+            pingedFor = last;
+        }
+        wheel.schedule(this, last + timeoutNanos);
+    }
+}
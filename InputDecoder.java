@@ -0,0 +1,137 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Turns the raw bytes of one connection into complete lines (text protocol) or
+ * complete frames (binary protocol). Shared by both transports, so switching
+ * protocols takes effect on the very next byte even if it arrived in the same read.
+ * A client that negotiated compression sends one raw deflate stream, inflated here first.
+ */
+class InputDecoder {
+    // Receives decoded input, called on the thread that feeds the decoder
+    interface Sink {
+        void onLine(String line);
+
+        void onFrame(byte type, ByteBuffer payload);
+    }
+
+    private static final int MAX_LINE_BYTES = 64 * 1024;   // Longer lines are treated as abuse
+
+    private byte[] pending = new byte[256];     // Partial line or frame received so far
+    private int pendingLength = 0;
+    private volatile boolean binary = false;
+    private Inflater inflater;                  // Set once the input is compressed
+    private ByteBuffer inflated;
+
+    // Everything after the current line is parsed as frames
+    void switchToBinary() {
+        binary = true;
+    }
+
+    // Everything after the current line is deflated, called from the sink like switchToBinary()
+    void switchToCompressed() {
+        inflater = new Inflater(true);
+        inflated = ByteBuffer.allocate(8192);
+    }
+
+    /**
+     * Consumes all bytes in the buffer and hands every complete line or frame to the sink.
+     * Returns false when the input is invalid and the connection should be dropped.
+     */
+    boolean feed(ByteBuffer bytes, Sink sink) {
+        while (bytes.hasRemaining()) {
+            if (inflater != null) {
+                return inflate(bytes, sink);
+            }
+            if (!parse(bytes, sink)) return false;
+        }
+        return true;
+    }
+
+    // One line or frame, or as much of it as there is
+    private boolean parse(ByteBuffer bytes, Sink sink) {
+        return binary ? feedFrame(bytes, sink) : feedLine(bytes, sink);
+    }
+
+    // Decompress all of the input and parse what comes out, a chunk at a time
+    private boolean inflate(ByteBuffer bytes, Sink sink) {
+        inflater.setInput(bytes);
+        try {
+            while (true) {
+                inflated.clear();
+                if (inflater.inflate(inflated) == 0) {
+                    if (inflater.needsInput()) return true;
+                    return false;   // The stream ended or needs a dictionary, neither happens in a chat
+                }
+                inflated.flip();
+                while (inflated.hasRemaining()) {
+                    if (!parse(inflated, sink)) return false;
+                }
+            }
+        } catch (DataFormatException e) {
+            return false;
+        }
+    }
+
+    // Reads up to one line terminator
+    private boolean feedLine(ByteBuffer bytes, Sink sink) {
+        while (bytes.hasRemaining()) {
+            byte b = bytes.get();
+            if (b == '\n') {
+                // Complete line, strip an optional '\r' like BufferedReader.readLine() does
+                int length = pendingLength;
+                if (length > 0 && pending[length - 1] == '\r') length--;
+                String line = new String(pending, 0, length, StandardCharsets.UTF_8);
+                pendingLength = 0;
+                sink.onLine(line);
+                return true;    // The line may have switched the protocol
+            }
+            if (pendingLength == MAX_LINE_BYTES) {
+                return false;
+            }
+            append(b);
+        }
+        return true;
+    }
+
+    // Reads up to the end of one frame
+    private boolean feedFrame(ByteBuffer bytes, Sink sink) {
+        // Header first, then as much of the payload as we have
+        int needed = Frames.HEADER_BYTES;
+        if (pendingLength >= Frames.HEADER_BYTES) {
+            needed += ((pending[1] & 0xFF) << 8) | (pending[2] & 0xFF);
+        }
+        int take = Math.min(needed - pendingLength, bytes.remaining());
+        ensureCapacity(pendingLength + take);
+        bytes.get(pending, pendingLength, take);
+        pendingLength += take;
+
+        if (pendingLength == Frames.HEADER_BYTES && needed == Frames.HEADER_BYTES) {
+            // Header just completed, an empty payload is a complete frame too
+            int payload = ((pending[1] & 0xFF) << 8) | (pending[2] & 0xFF);
+            if (payload > 0) return true;
+        } else if (pendingLength < needed) {
+            return true;
+        }
+
+        byte type = pending[0];
+        ByteBuffer payload = ByteBuffer.wrap(Arrays.copyOfRange(pending, Frames.HEADER_BYTES, pendingLength));
+        pendingLength = 0;
+        sink.onFrame(type, payload);
+        return true;
+    }
+
+    private void append(byte b) {
+        ensureCapacity(pendingLength + 1);
+        pending[pendingLength++] = b;
+    }
+
+    private void ensureCapacity(int length) {
+        if (length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(length, pending.length * 2));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import java.util.Arrays;
+
+/**
+ * Fixed-size log-linear histogram of non-negative values (latencies in microseconds, say).
+ * Every power of two is split into 16 linear sub-buckets, so percentiles are accurate to
+ * about 6% over the whole long range, and recording a value never allocates.
+ * Not thread-safe, callers guard it or keep one per thread and merge them.
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    void record(long value) {
+        if (value < 0) value = 0;
+        counts[bucket(value)]++;
+        count++;
+        sum += value;
+        if (value > max) max = value;
+    }
+
+    // Adds everything recorded in another histogram
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    // Adds values that were counted elsewhere with the same bucket layout (see Metrics.Histogram)
+    void add(long[] bucketCounts, long valueSum, long valueMax) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += bucketCounts[i];
+            count += bucketCounts[i];
+        }
+        sum += valueSum;
+        max = Math.max(max, valueMax);
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    long count() { return count; }
+    long max() { return max; }
+    long sum() { return sum; }
+
+    long mean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    // Smallest bucket bound that at least `quantile` of the values fall under, 0 when empty
+    long percentile(double quantile) {
+        if (count == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(max, lowerBound(i + 1) - 1);
+            }
+        }
+        return max;
+    }
+
+    // Bucket a value falls into
+    static int bucket(long value) {
+        if (value < 0) value = 0;
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowerBound(int index) {
+        int bucket = index / SUB_BUCKETS;
+        int sub = index % SUB_BUCKETS;
+        if (bucket == 0) {
+            return sub;
+        }
+        return (long) (SUB_BUCKETS + sub) << (bucket - 1);
+    }
+}
@@ -0,0 +1,502 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Headless load generator for soak tests and capacity planning: thousands of scripted bots
+ * on a few selector threads, talking the binary protocol to a real Server. Each bot logs in
+ * (registering on first use), joins one of the rooms, follows one other bot and then sends
+ * room messages and DMs at a configurable rate. Every message carries its send time, so
+ * receivers measure end-to-end delivery latency.
+ *
+ *   java Server --io=nio --max-users=5000 --max-rooms=100 --room-capacity=500 --hash-iterations=1000
+ *   java Client --load --bots=2000 --rooms=20 --rate=1 --dm-percent=10 --duration=60
+ *
+ * With --flooders=N the first N bots send at --flood-rate without timestamps, so the latency
+ * reported is what the well-behaved bots see while the server fends the flooders off.
+ */
+class LoadGenerator {
+    // Settings, from "--name=value" arguments
+    private final String host;
+    private final int port;
+    private final int botCount;
+    private final int roomCount;
+    private final double rate;              // Messages per second per bot
+    private final int flooders;             // The first bots send at floodRate instead, to test flood protection
+    private final double floodRate;
+    private final double dmFraction;        // Share of messages sent as DMs
+    private final int messageBytes;         // Size of each message text
+    private final String prefix;            // Bot names are prefix + index
+    private final String password;
+
+    // Totals across all bots, printed every report interval
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder loginRetries = new LongAdder();    // Server was busy hashing, tried again later
+    private final AtomicInteger loggedIn = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+
+    private volatile boolean running = true;
+
+    LoadGenerator(String[] args) {
+        host = Server.option(args, "host", "localhost");
+        port = Integer.parseInt(Server.option(args, "port", "12345"));
+        botCount = Integer.parseInt(Server.option(args, "bots", "100"));
+        roomCount = Integer.parseInt(Server.option(args, "rooms", "10"));
+        rate = Double.parseDouble(Server.option(args, "rate", "1"));
+        flooders = Integer.parseInt(Server.option(args, "flooders", "0"));
+        floodRate = Double.parseDouble(Server.option(args, "flood-rate", "500"));
+        dmFraction = Double.parseDouble(Server.option(args, "dm-percent", "10")) / 100;
+        messageBytes = Integer.parseInt(Server.option(args, "message-bytes", "64"));
+        prefix = Server.option(args, "prefix", "bot");
+        password = Server.option(args, "password", "loadtest");
+    }
+
+    static void run(String[] args) throws IOException, InterruptedException {
+        new LoadGenerator(args).run(
+                Integer.parseInt(Server.option(args, "threads", String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Double.parseDouble(Server.option(args, "ramp", "200")),
+                Integer.parseInt(Server.option(args, "duration", "60")),
+                Integer.parseInt(Server.option(args, "report-seconds", "5")));
+    }
+
+    private void run(int threads, double rampPerSecond, int durationSeconds, int reportSeconds)
+            throws IOException, InterruptedException {
+        System.out.println("Load test: " + botCount + " bots in " + roomCount + " rooms, " + rate
+                + " msg/s each, " + Math.round(dmFraction * 100) + "% DMs, " + durationSeconds + "s against "
+                + host + ":" + port + (flooders > 0 ? ", " + flooders + " of them flooding at " + floodRate + " msg/s" : ""));
+
+        Worker[] workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker("load-worker-" + (i + 1));
+            workers[i].thread.start();
+        }
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(reportSeconds);
+        long rampInterval = (long) (TimeUnit.SECONDS.toNanos(1) / rampPerSecond);
+        LatencyHistogram interval = new LatencyHistogram();
+        LatencyHistogram total = new LatencyHistogram();
+        long lastSent = 0;
+        long lastReceived = 0;
+        long lastReportAt = start;
+
+        // Connect bots at the ramp rate, round-robin over the workers, and report on the way
+        int connected = 0;
+        while (System.nanoTime() < end) {
+            long now = System.nanoTime();
+            while (connected < botCount && now - start >= connected * rampInterval) {
+                workers[connected % threads].add(new Bot(connected));
+                connected++;
+            }
+            if (now >= nextReport) {
+                interval.reset();
+                for (Worker worker : workers) {
+                    worker.drainLatencies(interval);
+                }
+                total.add(interval);
+                long sentNow = sent.sum();
+                long receivedNow = received.sum();
+                double seconds = (now - lastReportAt) / 1e9;
+                System.out.println(String.format("[%3ds] %s sent=%.0f/s received=%.0f/s %s",
+                        TimeUnit.NANOSECONDS.toSeconds(now - start), status(),
+                        (sentNow - lastSent) / seconds, (receivedNow - lastReceived) / seconds, latency(interval)));
+                lastSent = sentNow;
+                lastReceived = receivedNow;
+                lastReportAt = now;
+                nextReport += TimeUnit.SECONDS.toNanos(reportSeconds);
+            }
+            Thread.sleep(Math.min(10, Math.max(1, TimeUnit.NANOSECONDS.toMillis(Math.min(nextReport, end) - now))));
+        }
+
+        running = false;
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+            worker.thread.join();
+            worker.drainLatencies(total);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Done after %.0fs: %s sent=%d (%.0f/s) received=%d (%.0f/s) %s",
+                seconds, status(), sent.sum(), sent.sum() / seconds, received.sum(), received.sum() / seconds,
+                latency(total)));
+    }
+
+    private String status() {
+        return "bots=" + active.get() + "/" + botCount + " logged-in=" + loggedIn.get()
+                + " login-retries=" + loginRetries.sum() + " errors=" + errors.sum() + " disconnects=" + disconnects.sum();
+    }
+
+    private static String latency(LatencyHistogram histogram) {
+        if (histogram.count() == 0) {
+            return "latency=n/a";
+        }
+        return String.format("latency p50=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms",
+                histogram.percentile(0.5) / 1000.0, histogram.percentile(0.99) / 1000.0,
+                histogram.percentile(0.999) / 1000.0, histogram.max() / 1000.0);
+    }
+
+    /**
+     * One selector thread driving a share of the bots: I/O, and a tick every few
+     * milliseconds that lets each bot send whatever is due.
+     */
+    private final class Worker implements Runnable {
+        private static final long TICK_MILLIS = 5;
+
+        final Thread thread;
+        final Selector selector;
+        private final Queue<Bot> incoming = new ConcurrentLinkedQueue<>();
+        private final List<Bot> bots = new ArrayList<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        // Latencies in microseconds, handed over to the reporting thread under the lock
+        private final ReentrantLock latencyLock = new ReentrantLock();
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        Worker(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+        }
+
+        void add(Bot bot) {
+            incoming.add(bot);
+            selector.wakeup();
+        }
+
+        void recordLatency(long micros) {
+            latencyLock.lock();
+            try {
+                latencies.record(micros);
+            } finally {
+                latencyLock.unlock();
+            }
+        }
+
+        // Move what was recorded so far into the target
+        void drainLatencies(LatencyHistogram target) {
+            latencyLock.lock();
+            try {
+                target.add(latencies);
+                latencies.reset();
+            } finally {
+                latencyLock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            long nextTick = System.nanoTime();
+            while (running) {
+                try {
+                    selector.select(TICK_MILLIS);
+                } catch (IOException e) {
+                    System.err.println("Selector error: " + e.getMessage());
+                    return;
+                }
+
+                Bot bot;
+                while ((bot = incoming.poll()) != null) {
+                    bot.connect(this);
+                    bots.add(bot);
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Bot owner = (Bot) key.attachment();
+                    if (key.isValid() && key.isConnectable()) owner.onConnectable();
+                    if (key.isValid() && key.isReadable()) owner.onReadable(readBuffer);
+                    if (key.isValid() && key.isWritable()) owner.flush();
+                }
+
+                long now = System.nanoTime();
+                if (now >= nextTick) {
+                    for (Bot each : bots) {
+                        each.tick(now);
+                    }
+                    nextTick = now + TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+                }
+            }
+            for (Bot each : bots) {
+                each.close(false);
+            }
+        }
+    }
+
+    // Where a bot is in its script
+    private enum BotState { CONNECTING, NEGOTIATING, LOGGING_IN, JOINING, ACTIVE, CLOSED }
+
+    /**
+     * One scripted client. Lives on a single worker thread.
+     */
+    private final class Bot implements InputDecoder.Sink {
+        private final String name;
+        private final String room;
+        private final String buddy;         // The bot this one follows and sends DMs to
+        private final boolean flooding;
+        private final InputDecoder decoder = new InputDecoder();
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+
+        private Worker worker;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private BotState state = BotState.CONNECTING;
+        private boolean createRoom = true;  // Try creating the room first, join it if it exists
+        private boolean following = false;
+        private long nextFollow = 0;
+        private long nextLogin = Long.MAX_VALUE;    // Set while waiting to retry a refused login
+        private long nextSend = 0;
+
+        Bot(int index) {
+            this.name = prefix + index;
+            this.room = "room" + (index % roomCount);
+            this.buddy = prefix + (index == 0 ? Math.max(0, botCount - 1) : index - 1);
+            this.flooding = index < flooders;
+        }
+
+        void connect(Worker owner) {
+            worker = owner;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                boolean done = channel.connect(new InetSocketAddress(host, port));
+                key = channel.register(worker.selector, done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+                if (done) {
+                    connected();
+                }
+            } catch (IOException e) {
+                fail("connect failed: " + e.getMessage());
+            }
+        }
+
+        void onConnectable() {
+            try {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                connected();
+            } catch (IOException e) {
+                fail("connect failed: " + e.getMessage());
+            }
+        }
+
+        private void connected() {
+            active.incrementAndGet();
+            state = BotState.NEGOTIATING;
+        }
+
+        void onReadable(ByteBuffer buffer) {
+            int read;
+            try {
+                buffer.clear();
+                read = channel.read(buffer);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read < 0) {
+                disconnects.increment();
+                close(true);
+                return;
+            }
+            buffer.flip();
+            decoder.feed(buffer, this);
+        }
+
+        // Text lines only come before the switch to frames
+        @Override
+        public void onLine(String line) {
+            if (line.equals(Frames.ACCEPTED)) {
+                decoder.switchToBinary();
+                state = BotState.LOGGING_IN;
+                send(Frames.encode(Frames.LOGIN, name, password));
+            } else if (line.startsWith("Enter username")) {
+                send(ByteBuffer.wrap((Frames.NEGOTIATE + "\n").getBytes(StandardCharsets.UTF_8)));
+            } else if (line.contains("Maximum users")) {
+                fail("server full");
+            }
+        }
+
+        @Override
+        public void onFrame(byte type, ByteBuffer payload) {
+            switch (type) {
+                case Frames.PING:
+                    send(Frames.encode(Frames.PING));
+                    break;
+                case Frames.ACK:
+                    onAck(payload.get(), payload.get() == Frames.STATUS_OK, Frames.readString(payload));
+                    break;
+                case Frames.PRESENCE:
+                    following = true;
+                    break;
+                case Frames.MESSAGE:
+                    Frames.readString(payload);     // Room
+                    Frames.readString(payload);     // Sender
+                    onMessage(Frames.readString(payload));
+                    break;
+                case Frames.DM:
+                    Frames.readString(payload);     // Sender
+                    onMessage(Frames.readString(payload));
+                    send(Frames.delivered(payload.getInt()));
+                    break;
+                default:
+                    break;                          // Notices
+            }
+        }
+
+        private void onAck(byte request, boolean ok, String detail) {
+            switch (request) {
+                case Frames.LOGIN:
+                    if (!ok && detail.contains("Too many logins")) {
+                        // The server's hashing queue is full, back off like a person would
+                        loginRetries.increment();
+                        nextLogin = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+                                500 + ThreadLocalRandom.current().nextInt(1000));
+                        return;
+                    }
+                    if (!ok) {
+                        fail("login failed: " + detail);
+                        return;
+                    }
+                    loggedIn.incrementAndGet();
+                    state = BotState.JOINING;
+                    send(Frames.join(createRoom, room, ""));
+                    break;
+                case Frames.JOIN:
+                    if (ok) {
+                        state = BotState.ACTIVE;
+                        nextSend = System.nanoTime() + nextInterval();
+                    } else if (createRoom && detail.startsWith("Room already exists")) {
+                        createRoom = false;
+                        send(Frames.join(false, room, ""));
+                    } else {
+                        fail("join failed: " + detail);
+                    }
+                    break;
+                case Frames.PRESENCE:
+                    // Buddy hasn't registered yet, try again in a second
+                    nextFollow = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+                    break;
+                default:
+                    errors.increment();     // A room message or DM was refused
+            }
+        }
+
+        // Message text starts with the sender's System.nanoTime(), all bots share this JVM's clock
+        private void onMessage(String text) {
+            received.increment();
+            int space = text.indexOf(' ');
+            try {
+                long sentAt = Long.parseLong(space < 0 ? text : text.substring(0, space));
+                worker.recordLatency((System.nanoTime() - sentAt) / 1000);
+            } catch (NumberFormatException e) {
+                // Not from a bot
+            }
+        }
+
+        void tick(long now) {
+            if (state == BotState.LOGGING_IN && now >= nextLogin) {
+                nextLogin = Long.MAX_VALUE;
+                send(Frames.encode(Frames.LOGIN, name, password));
+            }
+            if (state != BotState.ACTIVE) return;
+            if (!following && now >= nextFollow && botCount > 1) {
+                nextFollow = Long.MAX_VALUE;    // Until PRESENCE or its error comes back
+                send(Frames.encode(Frames.PRESENCE, buddy));
+            }
+            // Catch up if a tick was late, but never more than a few messages at once
+            int burst = 0;
+            while (now >= nextSend && burst++ < 4) {
+                String text = message(now);
+                if (following && ThreadLocalRandom.current().nextDouble() < dmFraction) {
+                    send(Frames.encode(Frames.DM, buddy, text));
+                } else {
+                    send(Frames.encode(Frames.MESSAGE, text));
+                }
+                sent.increment();
+                nextSend += nextInterval();
+            }
+            if (now >= nextSend) {
+                nextSend = now + nextInterval();
+            }
+        }
+
+        private String message(long now) {
+            // Flood messages carry no send time, they stay out of the latency figures
+            StringBuilder text = new StringBuilder(messageBytes + 20).append(flooding ? "flood" : now).append(' ');
+            while (text.length() < messageBytes) {
+                text.append('x');
+            }
+            return text.toString();
+        }
+
+        // Exponential gaps, so the bots together send like a Poisson process
+        private long nextInterval() {
+            double seconds = -Math.log(1 - ThreadLocalRandom.current().nextDouble()) / (flooding ? floodRate : rate);
+            return (long) (seconds * 1e9);
+        }
+
+        private void send(ByteBuffer frame) {
+            outbound.add(frame.duplicate());
+            flush();
+        }
+
+        void flush() {
+            if (state == BotState.CLOSED) return;
+            try {
+                while (!outbound.isEmpty()) {
+                    ByteBuffer head = outbound.peek();
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    outbound.poll();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                disconnects.increment();
+                close(true);
+            }
+        }
+
+        private void fail(String reason) {
+            errors.increment();
+            if (errors.sum() <= 10) {
+                System.out.println(name + ": " + reason);     // Only the first few, they tend to repeat
+            }
+            close(true);
+        }
+
+        void close(boolean count) {
+            if (state == BotState.CLOSED) return;
+            if (count && state != BotState.CONNECTING) {
+                active.decrementAndGet();
+            }
+            state = BotState.CLOSED;
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+}
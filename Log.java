@@ -0,0 +1,270 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous structured logging for the server. An event is a name plus up to three key/value
+ * fields; the calling thread claims a slot of a preallocated ring with one compare-and-set and
+ * copies the references into it, nothing is formatted or written there. The "log-writer" thread
+ * turns slots into logfmt lines and writes them to --log-file, rotated at --log-file-mb into
+ * --log-files numbered copies ("-" writes to standard output instead).
+ * When the ring is full the event is dropped and counted, callers never wait for the disk.
+ * Events below --log-level are skipped before they reach the ring, and with --log-sample=N only
+ * every Nth INFO or DEBUG event of each name is kept (and marked sampled=N).
+ */
+final class Log {
+    enum Level { DEBUG, INFO, WARN, ERROR }
+
+    // One event, reused; written by the producer that claimed it, then read by the writer
+    private static final class Slot {
+        volatile long published = -1;      // Sequence of the event in it once complete
+        long time;
+        Level level;
+        String thread;
+        String event;
+        int sample;
+        final String[] keys = new String[3];
+        final Object[] values = new Object[3];
+    }
+
+    private static Level threshold = Level.INFO;
+    private static int sampleEvery = 1;
+    private static final Map<String, AtomicLong> sampleCounts = new ConcurrentHashMap<>();
+
+    private static Slot[] ring = newRing(8192);
+    private static int mask = ring.length - 1;
+    private static final AtomicLong head = new AtomicLong();        // Next sequence to claim
+    private static volatile long tail = 0;                          // Next sequence to write, writer only
+
+    private static Path file;                   // Null for standard output
+    private static long rotateBytes;
+    private static int keepFiles;
+    private static OutputStream out = System.out;
+    private static long fileBytes = 0;
+    private static Thread writer;
+    private static volatile boolean stopping = false;
+    private static final StringBuilder line = new StringBuilder(256);   // Writer only
+
+    private Log() {
+    }
+
+    // Read the options and start the writer; events logged before this wait in the ring
+    static void start(String[] args) throws IOException {
+        threshold = Level.valueOf(Server.option(args, "log-level", "info").toUpperCase());
+        sampleEvery = Math.max(1, Integer.parseInt(Server.option(args, "log-sample", "1")));
+        int capacity = Integer.highestOneBit(Math.max(64, Integer.parseInt(Server.option(args, "log-buffer", "8192"))) - 1) << 1;
+        if (capacity != ring.length && head.get() == 0) {
+            ring = newRing(capacity);
+            mask = capacity - 1;
+        }
+        String name = Server.option(args, "log-file", "server.log");
+        if (!name.equals("-")) {
+            file = Paths.get(name);
+            rotateBytes = Long.parseLong(Server.option(args, "log-file-mb", "64")) * 1024 * 1024;
+            keepFiles = Integer.parseInt(Server.option(args, "log-files", "5"));
+            if (file.toAbsolutePath().getParent() != null) {
+                Files.createDirectories(file.toAbsolutePath().getParent());
+            }
+            fileBytes = Files.exists(file) ? Files.size(file) : 0;
+            out = new BufferedOutputStream(new FileOutputStream(file.toFile(), true), 64 * 1024);
+        }
+        writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Write what is left and stop the writer, on shutdown
+    static void close() {
+        stopping = true;
+        if (writer == null) return;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Where the log goes, for the startup banner
+    static String destination() {
+        return file == null ? "standard output" : file.toString();
+    }
+
+    static void debug(String event) { log(Level.DEBUG, event, null, null, null, null, null, null); }
+    static void debug(String event, String k1, Object v1) { log(Level.DEBUG, event, k1, v1, null, null, null, null); }
+    static void debug(String event, String k1, Object v1, String k2, Object v2) { log(Level.DEBUG, event, k1, v1, k2, v2, null, null); }
+    static void debug(String event, String k1, Object v1, String k2, Object v2, String k3, Object v3) { log(Level.DEBUG, event, k1, v1, k2, v2, k3, v3); }
+
+    static void info(String event) { log(Level.INFO, event, null, null, null, null, null, null); }
+    static void info(String event, String k1, Object v1) { log(Level.INFO, event, k1, v1, null, null, null, null); }
+    static void info(String event, String k1, Object v1, String k2, Object v2) { log(Level.INFO, event, k1, v1, k2, v2, null, null); }
+    static void info(String event, String k1, Object v1, String k2, Object v2, String k3, Object v3) { log(Level.INFO, event, k1, v1, k2, v2, k3, v3); }
+
+    static void warn(String event) { log(Level.WARN, event, null, null, null, null, null, null); }
+    static void warn(String event, String k1, Object v1) { log(Level.WARN, event, k1, v1, null, null, null, null); }
+    static void warn(String event, String k1, Object v1, String k2, Object v2) { log(Level.WARN, event, k1, v1, k2, v2, null, null); }
+    static void warn(String event, String k1, Object v1, String k2, Object v2, String k3, Object v3) { log(Level.WARN, event, k1, v1, k2, v2, k3, v3); }
+
+    static void error(String event) { log(Level.ERROR, event, null, null, null, null, null, null); }
+    static void error(String event, String k1, Object v1) { log(Level.ERROR, event, k1, v1, null, null, null, null); }
+    static void error(String event, String k1, Object v1, String k2, Object v2) { log(Level.ERROR, event, k1, v1, k2, v2, null, null); }
+    static void error(String event, String k1, Object v1, String k2, Object v2, String k3, Object v3) { log(Level.ERROR, event, k1, v1, k2, v2, k3, v3); }
+
+    // Values are kept as references and only turned into text on the writer thread
+    private static void log(Level level, String event, String k1, Object v1, String k2, Object v2, String k3, Object v3) {
+        if (level.compareTo(threshold) < 0) return;
+        int sample = 1;
+        if (sampleEvery > 1 && level.compareTo(Level.WARN) < 0) {
+            if (sampleCounts.computeIfAbsent(event, e -> new AtomicLong()).getAndIncrement() % sampleEvery != 0) return;
+            sample = sampleEvery;
+        }
+
+        // Claim a sequence, unless the writer is a whole ring behind
+        Slot[] slots = ring;
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail >= slots.length) {
+                Metrics.logEventsDropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = slots[(int) (sequence & mask)];
+        slot.time = System.currentTimeMillis();
+        slot.level = level;
+        slot.thread = Thread.currentThread().getName();
+        slot.event = event;
+        slot.sample = sample;
+        slot.keys[0] = k1;
+        slot.values[0] = v1;
+        slot.keys[1] = k2;
+        slot.values[1] = v2;
+        slot.keys[2] = k3;
+        slot.values[2] = v3;
+        slot.published = sequence;      // Volatile write, hands the slot to the writer
+    }
+
+    // ===== Writer thread =====
+
+    private static void drain() {
+        while (true) {
+            boolean wrote = false;
+            Slot slot;
+            while ((slot = ring[(int) (tail & mask)]).published == tail) {
+                write(slot);
+                slot.event = null;
+                slot.thread = null;
+                slot.values[0] = slot.values[1] = slot.values[2] = null;
+                tail = tail + 1;            // Frees the slot for producers
+                wrote = true;
+            }
+            try {
+                if (wrote || stopping) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                System.err.println("Could not write the log: " + e.getMessage());
+            }
+            if (stopping && head.get() == tail) {
+                return;
+            }
+            if (!wrote) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        }
+    }
+
+    // 2026-10-16T20:14:00.123Z INFO [event-loop-0] login user=alice addr=127.0.0.1
+    private static void write(Slot slot) {
+        line.setLength(0);
+        line.append(Instant.ofEpochMilli(slot.time)).append(' ').append(slot.level)
+                .append(" [").append(slot.thread).append("] ").append(slot.event);
+        for (int i = 0; i < 3; i++) {
+            if (slot.keys[i] != null) {
+                line.append(' ').append(slot.keys[i]).append('=');
+                appendValue(slot.values[i]);
+            }
+        }
+        if (slot.sample > 1) {
+            line.append(" sampled=").append(slot.sample);
+        }
+        line.append('\n');
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (file != null && fileBytes + bytes.length > rotateBytes && fileBytes > 0) {
+                rotate();
+            }
+            out.write(bytes);
+            fileBytes += bytes.length;
+        } catch (IOException e) {
+            System.err.println("Could not write the log: " + e.getMessage());
+        }
+    }
+
+    // Quote values with spaces, quotes or equals signs so every line splits back into fields
+    private static void appendValue(Object value) {
+        String text = value instanceof Throwable ? value.getClass().getSimpleName() + ": " + ((Throwable) value).getMessage()
+                : String.valueOf(value);
+        boolean plain = !text.isEmpty();
+        for (int i = 0; i < text.length() && plain; i++) {
+            char c = text.charAt(i);
+            plain = c > ' ' && c != '"' && c != '=';
+        }
+        if (plain) {
+            line.append(text);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c == '\n') {
+                line.append("\\n");
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    // server.log -> server.log.1 -> server.log.2 ..., the oldest beyond --log-files is deleted
+    private static void rotate() throws IOException {
+        out.close();
+        Files.deleteIfExists(Paths.get(file + "." + keepFiles));
+        for (int i = keepFiles - 1; i >= 1; i--) {
+            Path older = Paths.get(file + "." + i);
+            if (Files.exists(older)) {
+                Files.move(older, Paths.get(file + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (keepFiles > 0) {
+            Files.move(file, Paths.get(file + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(file);
+        }
+        out = new BufferedOutputStream(new FileOutputStream(file.toFile(), true), 64 * 1024);
+        fileBytes = 0;
+    }
+
+    private static Slot[] newRing(int capacity) {
+        Slot[] slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        return slots;
+    }
+}
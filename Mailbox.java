@@ -0,0 +1,181 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Store-and-forward delivery of private messages. Every DM is appended to the recipient's
+ * mailbox and stays there until the recipient acknowledges it, whether they were online,
+ * in another menu or offline when it was sent.
+ *
+ * Mail lives in a MessageLog of its own, so queued messages are on disk and only one index
+ * entry per message stays on the heap. The log's retention only trims acknowledged mail:
+ * everything from a recipient's acknowledgement on is pinned, so compaction never loses mail
+ * that wasn't delivered. Acknowledgements are appended to the same log, so unread mail
+ * survives restarts.
+ * Mail ids count up per recipient and acknowledgements are cumulative.
+ */
+class Mailbox {
+    // One delivered or pending message
+    static final class Mail {
+        final int id;
+        final String from;
+        final String text;
+
+        Mail(int id, String from, String text) {
+            this.id = id;
+            this.from = from;
+            this.text = text;
+        }
+    }
+
+    // Where one recipient's mail stands, loaded from the log on first use
+    private static final class Cursor {
+        int offset;     // Mail id minus its index in the log, fixed for the life of the process
+        int next;       // Id of the next mail posted
+        volatile int acked;     // Mail ids below this were acknowledged, written under the lock
+        // Not a monitor: the log does file I/O under it, which would pin a virtual thread's carrier
+        final ReentrantLock lock = new ReentrantLock();
+    }
+
+    private final MessageLog log;
+    private final Map<String, Cursor> cursors = new ConcurrentHashMap<>();
+
+    Mailbox(MessageLog log) {
+        this.log = log;
+        log.pin(this::pinnedFrom);
+    }
+
+    // Queue a DM for the recipient, returns its mail id
+    int post(String to, String from, String text) {
+        Cursor cursor = cursor(to);
+        cursor.lock.lock();
+        try {
+            int id = cursor.next++;
+            log.append(mailKey(to), id + ":" + from.length() + ":" + from + text);
+            return id;
+        } finally {
+            cursor.lock.unlock();
+        }
+    }
+
+    // Unacknowledged mail with ids in [from, to), oldest first
+    List<Mail> read(String user, int from, int to) {
+        Cursor cursor = cursor(user);
+        int offset;
+        cursor.lock.lock();
+        try {
+            from = Math.max(from, cursor.acked);
+            to = Math.min(to, cursor.next);
+            offset = cursor.offset;
+        } finally {
+            cursor.lock.unlock();
+        }
+        List<Mail> mail = new ArrayList<>();
+        if (from >= to) return mail;
+        for (MessageLog.Entry entry : log.read(mailKey(user), from - offset, to - offset)) {
+            mail.add(parse(entry.message));
+        }
+        return mail;
+    }
+
+    // Everything up to and including `id` reached the recipient
+    void acknowledge(String user, int id) {
+        Cursor cursor = cursor(user);
+        cursor.lock.lock();
+        try {
+            if (id < cursor.acked || id >= cursor.next) return;
+            cursor.acked = id + 1;
+            log.append(ackKey(user), String.valueOf(cursor.acked));
+        } finally {
+            cursor.lock.unlock();
+        }
+    }
+
+    // First mail id not acknowledged yet
+    int acknowledged(String user) {
+        Cursor cursor = cursor(user);
+        cursor.lock.lock();
+        try {
+            return cursor.acked;
+        } finally {
+            cursor.lock.unlock();
+        }
+    }
+
+    // Unacknowledged mail, oldest first, handed over to someone else (another node) who takes over
+    // delivery; stops at the first one `handOver` refuses, which stays here for the next try
+    void drain(String user, Predicate<Mail> handOver) {
+        Cursor cursor = cursor(user);
+        cursor.lock.lock();
+        try {
+            int taken = -1;
+            for (Mail mail : read(user, cursor.acked, cursor.next)) {
+                if (!handOver.test(mail)) break;
+                taken = mail.id;
+            }
+            if (taken >= 0) {
+                acknowledge(user, taken);
+            }
+        } finally {
+            cursor.lock.unlock();
+        }
+    }
+
+    void close() {
+        log.close();
+    }
+
+    // Compaction keeps unacknowledged mail. Runs under the log's lock, so it only looks at cursors
+    // already loaded; a mailbox nobody opened since the start keeps all of its mail for now
+    private int pinnedFrom(String key) {
+        if (!key.startsWith("mail/")) return Integer.MAX_VALUE;
+        Cursor cursor = cursors.get(key.substring("mail/".length()));
+        return cursor == null ? 0 : cursor.acked - cursor.offset;
+    }
+
+    // Loaded outside computeIfAbsent, whose bin monitor would pin a virtual thread during the log reads;
+    // a loser of the race throws its copy away before anyone used it
+    private Cursor cursor(String user) {
+        Cursor cursor = cursors.get(user);
+        if (cursor != null) return cursor;
+        Cursor loaded = load(user);
+        cursor = cursors.putIfAbsent(user, loaded);
+        return cursor != null ? cursor : loaded;
+    }
+
+    // Pick up ids and the acknowledgement where the log left them
+    private Cursor load(String user) {
+        Cursor cursor = new Cursor();
+        int count = log.count(mailKey(user));
+        List<MessageLog.Entry> last = log.read(mailKey(user), count - 1, count);
+        if (!last.isEmpty()) {
+            int id = parse(last.get(0).message).id;
+            cursor.offset = id - (count - 1);
+            cursor.next = id + 1;
+        }
+        int acks = log.count(ackKey(user));
+        List<MessageLog.Entry> lastAck = log.read(ackKey(user), acks - 1, acks);
+        cursor.acked = lastAck.isEmpty() ? cursor.offset : Integer.parseInt(lastAck.get(0).message);
+        return cursor;
+    }
+
+    // Stored as "<id>:<sender length>:<sender><text>"
+    private static Mail parse(String record) {
+        int idEnd = record.indexOf(':');
+        int lengthEnd = record.indexOf(':', idEnd + 1);
+        int senderEnd = lengthEnd + 1 + Integer.parseInt(record.substring(idEnd + 1, lengthEnd));
+        return new Mail(Integer.parseInt(record.substring(0, idEnd)),
+                record.substring(lengthEnd + 1, senderEnd), record.substring(senderEnd));
+    }
+
+    private static String mailKey(String user) {
+        return "mail/" + user;
+    }
+
+    private static String ackKey(String user) {
+        return "ack/" + user;
+    }
+}
@@ -0,0 +1,480 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Append-only message log for private chat history, stored in memory-mapped segment files.
+ * Only a small index (one long per message) stays on the heap, message text is read
+ * from the mapped segments when a conversation is opened.
+ *
+ * Record layout: [int length][long seq][long timestamp][int index][short keyLength][key][message],
+ * where length counts everything after itself and index is the message's position in its
+ * conversation, so indexes survive compaction and restarts. A zero length marks the end of a segment.
+ * Appends are plain memory copies into the active segment; a background thread forces
+ * dirty segments to disk in batches and compacts sealed segments down to the retention limit.
+ * Callers on a hot path can appendLater() instead and leave even the copy to that thread.
+ */
+class MessageLog {
+    private static final int HEADER_BYTES = 4 + 8 + 8 + 4 + 2; // length, seq, timestamp, index, key length
+    private static final int COMPACT_AFTER_SEGMENTS = 4;        // Sealed segments before compaction runs
+
+    // One segment file mapped into memory
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final MappedByteBuffer buffer;
+        int writePosition = 0;
+        volatile boolean dirty = false;
+
+        Segment(int id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    // Growable list of record positions, (segment id << 32) | offset, oldest first.
+    // base counts messages compacted away from the front, so message indexes stay stable
+    private static final class LongList {
+        long[] values = new long[8];
+        int size = 0;
+        int base = 0;
+
+        void add(long value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+    }
+
+    // Messages of a conversation that compaction has to keep however old they are
+    interface Pin {
+        // Index of the oldest message that must survive; Integer.MAX_VALUE pins nothing.
+        // Called with the log's lock held, so it must not call back into the log
+        int pinnedFrom(String key);
+    }
+
+    // A message handed to appendLater(), not in a segment yet
+    private static final class Pending {
+        final String key;
+        final String message;
+
+        Pending(String key, String message) {
+            this.key = key;
+            this.message = message;
+        }
+    }
+
+    // A message read back from the log
+    static final class Entry {
+        final long timestamp;
+        final String message;
+
+        Entry(long timestamp, String message) {
+            this.timestamp = timestamp;
+            this.message = message;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int retention;        // Messages kept per conversation when compacting
+    private volatile Pin pin = key -> Integer.MAX_VALUE;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();    // Guarded by lock
+    private final Map<String, LongList> index = new HashMap<>();           // Guarded by lock
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();   // appendLater() order
+    private Segment active;                                                 // Guarded by lock
+    private long nextSeq = 1;                                               // Guarded by lock
+    private int nextSegmentId = 1;                                          // Guarded by lock
+
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "message-log");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    MessageLog(Path directory, int segmentBytes, int retention, long flushMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retention = retention;
+
+        Files.createDirectories(directory);
+        recover();
+        background.scheduleWithFixedDelay(this::flushAndCompact, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Keep what `pin` asks for on top of the newest `retention` messages
+    void pin(Pin pin) {
+        this.pin = pin;
+    }
+
+    // Append one message to a conversation
+    void append(String key, String message) {
+        lock.lock();
+        try {
+            appendPending();
+            write(key, message);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Append without taking the lock: the message is queued and the background thread writes it.
+    // count() and read() write out the queue first, so they see it as if it was appended here
+    void appendLater(String key, String message) {
+        pending.add(new Pending(key, message));
+    }
+
+    // Number of messages ever appended to a conversation, including compacted ones
+    int count(String key) {
+        lock.lock();
+        try {
+            appendPending();
+            LongList positions = index.get(key);
+            return positions == null ? 0 : positions.base + positions.size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Messages [from, to) of a conversation, oldest first; compacted ones are skipped
+    List<Entry> read(String key, int from, int to) {
+        // Resolve positions under the lock, copy the bytes out of the mapping without it
+        Segment[] recordSegments;
+        int[] offsets;
+        lock.lock();
+        try {
+            appendPending();
+            LongList positions = index.get(key);
+            if (positions == null) return new ArrayList<>();
+            from = Math.max(0, from - positions.base);
+            to = Math.min(to - positions.base, positions.size);
+            if (from >= to) return new ArrayList<>();
+
+            recordSegments = new Segment[to - from];
+            offsets = new int[to - from];
+            for (int i = from; i < to; i++) {
+                long position = positions.values[i];
+                recordSegments[i - from] = segments.get((int) (position >>> 32));
+                offsets[i - from] = (int) position;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        List<Entry> entries = new ArrayList<>(offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            entries.add(readEntry(recordSegments[i].buffer, offsets[i]));
+        }
+        return entries;
+    }
+
+    // Force everything to disk, used on shutdown. Waits for a compaction in progress, so its
+    // output and the segments it replaces are never on disk side by side afterwards
+    void close() {
+        background.shutdown();
+        try {
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            appendPending();
+        } finally {
+            lock.unlock();
+        }
+        flush();
+    }
+
+    // Caller holds the lock
+    private void appendPending() {
+        Pending next;
+        while ((next = pending.poll()) != null) {
+            try {
+                write(next.key, next.message);
+            } catch (IllegalArgumentException e) {
+                Log.warn("message_log_skipped", "dir", directory, "key", next.key, "error", e.getMessage());
+            }
+        }
+    }
+
+    // Caller holds the lock
+    private void write(String key, String message) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        int recordBytes = HEADER_BYTES + keyBytes.length + messageBytes.length;
+        if (recordBytes + 4 > segmentBytes) {
+            throw new IllegalArgumentException("Message too large for a log segment");
+        }
+        try {
+            // Keep 4 zero bytes after the record as the end marker
+            if (active.writePosition + recordBytes + 4 > active.buffer.capacity()) {
+                active = createSegment();
+            }
+            int offset = active.writePosition;
+            LongList positions = index.computeIfAbsent(key, k -> new LongList());
+            writeRecord(active.buffer, offset, nextSeq++, System.currentTimeMillis(), positions.base + positions.size,
+                    keyBytes, messageBytes);
+            active.writePosition += recordBytes;
+            active.dirty = true;
+            positions.add(position(active.id, offset));
+        } catch (IOException e) {
+            throw new RuntimeException("Could not roll message log segment", e);
+        }
+    }
+
+    // ===== Recovery =====
+
+    // Scan existing segments and rebuild the index. The active segment is the one holding the
+    // newest record: compaction output gets higher ids than the segment that was active meanwhile
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(p -> p.getFileName().toString().matches("segment-\\d+\\.log")).sorted().toList();
+        }
+
+        // Per conversation: (seq, position) pairs, sorted by seq afterwards
+        Map<String, TreeMap<Long, Long>> found = new HashMap<>();
+        Segment newest = null;
+        long newestSeq = 0;
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            int id = Integer.parseInt(name.substring("segment-".length(), name.length() - ".log".length()));
+            Segment segment = mapSegment(id, file);
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+
+            int capacity = segment.buffer.capacity();
+            int offset = 0;
+            while (offset + HEADER_BYTES <= capacity) {
+                int length = segment.buffer.getInt(offset);
+                if (length <= 0 || offset + 4 + length > capacity) break;
+                long seq = segment.buffer.getLong(offset + 4);
+                String key = readKey(segment.buffer, offset);
+                // A crash during compaction can leave a record in two segments, seq tells them apart
+                found.computeIfAbsent(key, k -> new TreeMap<>()).putIfAbsent(seq, position(id, offset));
+                nextSeq = Math.max(nextSeq, seq + 1);
+                if (seq >= newestSeq) {
+                    newestSeq = seq;
+                    newest = segment;
+                }
+                offset += 4 + length;
+            }
+            segment.writePosition = offset;
+            if (offset == 0) {
+                // Rolled or allocated but never written, nothing to keep
+                Files.deleteIfExists(file);
+            } else {
+                segments.put(id, segment);
+            }
+        }
+
+        // Compaction only drops the oldest messages of a conversation, so the survivors are
+        // consecutive and the first one's index is the number compacted away
+        found.forEach((key, bySeq) -> {
+            LongList positions = new LongList();
+            bySeq.values().forEach(positions::add);
+            long first = positions.values[0];
+            positions.base = segments.get((int) (first >>> 32)).buffer.getInt((int) first + 20);
+            index.put(key, positions);
+        });
+
+        active = newest != null ? newest : createSegment();
+    }
+
+    // ===== Background flush and compaction =====
+
+    private void flushAndCompact() {
+        try {
+            flush();
+            compact();
+        } catch (Exception e) {
+            Log.error("message_log_error", "dir", directory, "error", e);
+        }
+    }
+
+    // One msync per dirty segment per interval, however many messages were appended
+    private void flush() {
+        List<Segment> dirty = new ArrayList<>();
+        lock.lock();
+        try {
+            appendPending();
+            for (Segment segment : segments.values()) {
+                if (segment.dirty) {
+                    segment.dirty = false;
+                    dirty.add(segment);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Segment segment : dirty) {
+            segment.buffer.force();
+        }
+    }
+
+    // Rewrite sealed segments keeping only the newest `retention` messages of each conversation,
+    // and whatever the pin still needs
+    private void compact() throws IOException {
+        Map<Integer, Segment> sealed = new TreeMap<>();
+        List<Long> keep = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Segment segment : segments.values()) {
+                if (segment != active) sealed.put(segment.id, segment);
+            }
+            if (sealed.size() < COMPACT_AFTER_SEGMENTS) return;
+
+            int dropped = 0;
+            for (Map.Entry<String, LongList> entry : index.entrySet()) {
+                LongList positions = entry.getValue();
+                long pinnedFrom = (long) pin.pinnedFrom(entry.getKey()) - positions.base;
+                for (int i = 0; i < positions.size; i++) {
+                    long position = positions.values[i];
+                    if (!sealed.containsKey((int) (position >>> 32))) continue;
+                    if (i < positions.size - retention && i < pinnedFrom) {
+                        dropped++;
+                    } else {
+                        keep.add(position);
+                    }
+                }
+            }
+            if (dropped == 0) return;   // Nothing to reclaim, leave the segments alone
+        } finally {
+            lock.unlock();
+        }
+
+        // Copy the surviving records into new segments, sealed segments never change so no lock is needed
+        Collections.sort(keep);
+        Map<Long, Long> moved = new HashMap<>();
+        List<Segment> written = new ArrayList<>();
+        Segment target = null;
+        for (long position : keep) {
+            Segment source = sealed.get((int) (position >>> 32));
+            int offset = (int) position;
+            int recordBytes = 4 + source.buffer.getInt(offset);
+            if (target == null || target.writePosition + recordBytes + 4 > target.buffer.capacity()) {
+                if (target != null) target.buffer.force();
+                target = allocateSegment();
+                written.add(target);
+            }
+            copyRecord(source.buffer, offset, target.buffer, target.writePosition, recordBytes);
+            moved.put(position, position(target.id, target.writePosition));
+            target.writePosition += recordBytes;
+        }
+        if (target != null) target.buffer.force();
+
+        // Swap the index over to the new positions
+        lock.lock();
+        try {
+            for (Map.Entry<String, LongList> entry : index.entrySet()) {
+                LongList positions = entry.getValue();
+                LongList rewritten = new LongList();
+                for (int i = 0; i < positions.size; i++) {
+                    long position = positions.values[i];
+                    if (!sealed.containsKey((int) (position >>> 32))) {
+                        rewritten.add(position);
+                    } else if (moved.containsKey(position)) {
+                        rewritten.add(moved.get(position));
+                    }
+                }
+                rewritten.base = positions.base + positions.size - rewritten.size;
+                entry.setValue(rewritten);
+            }
+            for (Segment segment : written) segments.put(segment.id, segment);
+            for (Integer id : sealed.keySet()) segments.remove(id);
+        } finally {
+            lock.unlock();
+        }
+
+        // Readers that already resolved an old segment keep a valid mapping after the file is deleted
+        for (Segment segment : sealed.values()) {
+            Files.deleteIfExists(segment.path);
+        }
+        Log.info("message_log_compacted", "dir", directory, "segments", sealed.size(), "into", written.size());
+    }
+
+    // ===== Segment and record helpers =====
+
+    // New active segment, caller holds the lock
+    private Segment createSegment() throws IOException {
+        Segment segment = mapSegment(nextSegmentId++, null);
+        segments.put(segment.id, segment);
+        return segment;
+    }
+
+    // New segment for compaction output, registered in the map only when compaction finishes
+    private Segment allocateSegment() throws IOException {
+        int id;
+        lock.lock();
+        try {
+            id = nextSegmentId++;
+        } finally {
+            lock.unlock();
+        }
+        return mapSegment(id, null);
+    }
+
+    private Segment mapSegment(int id, Path path) throws IOException {
+        if (path == null) {
+            path = directory.resolve(String.format("segment-%08d.log", id));
+        }
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Mapping past the end of the file grows it, the new bytes read as zero.
+            // Existing files keep their size in case --segment-mb changed since they were written
+            long size = Math.max(channel.size(), segmentBytes);
+            return new Segment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    private static long position(int segmentId, int offset) {
+        return ((long) segmentId << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static void writeRecord(MappedByteBuffer buffer, int offset, long seq, long timestamp, int index,
+                                    byte[] key, byte[] message) {
+        int body = offset + HEADER_BYTES;
+        buffer.putLong(offset + 4, seq);
+        buffer.putLong(offset + 12, timestamp);
+        buffer.putInt(offset + 20, index);
+        buffer.putShort(offset + 24, (short) key.length);
+        buffer.put(body, key);
+        buffer.put(body + key.length, message);
+        // Length goes in last, so a half written record is never seen as complete
+        buffer.putInt(offset, HEADER_BYTES - 4 + key.length + message.length);
+    }
+
+    private static void copyRecord(MappedByteBuffer source, int sourceOffset,
+                                   MappedByteBuffer target, int targetOffset, int recordBytes) {
+        byte[] record = new byte[recordBytes];
+        source.get(sourceOffset, record);
+        target.put(targetOffset + 4, record, 4, recordBytes - 4);
+        target.putInt(targetOffset, recordBytes - 4);
+    }
+
+    private static String readKey(MappedByteBuffer buffer, int offset) {
+        byte[] key = new byte[buffer.getShort(offset + 24)];
+        buffer.get(offset + HEADER_BYTES, key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private static Entry readEntry(MappedByteBuffer buffer, int offset) {
+        int length = buffer.getInt(offset);
+        long timestamp = buffer.getLong(offset + 12);
+        int keyLength = buffer.getShort(offset + 24);
+        byte[] message = new byte[4 + length - HEADER_BYTES - keyLength];
+        buffer.get(offset + HEADER_BYTES + keyLength, message);
+        return new Entry(timestamp, new String(message, StandardCharsets.UTF_8));
+    }
+}
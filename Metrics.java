@@ -0,0 +1,205 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Server metrics: event counters, gauges that are read when scraped, and latency histograms.
+ * Served in the Prometheus text format on the loopback admin port (--admin-port).
+ * Recording is a LongAdder or atomic array increment, nothing is allocated on the message path.
+ */
+final class Metrics {
+    /**
+     * Thread-safe histogram with the same buckets as LatencyHistogram, values in nanoseconds.
+     */
+    static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(LatencyHistogram.BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            buckets.incrementAndGet(LatencyHistogram.bucket(nanos));
+            sum.add(nanos);
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        // Time since `startNanos`, taken from System.nanoTime()
+        void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        LatencyHistogram snapshot() {
+            long[] counts = new long[LatencyHistogram.BUCKETS];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+            LatencyHistogram snapshot = new LatencyHistogram();
+            snapshot.add(counts, sum.sum(), max.get());
+            return snapshot;
+        }
+    }
+
+    // Events, counted where they happen
+    static final LongAdder connectionsAccepted = new LongAdder();
+    static final LongAdder connectionsRejected = new LongAdder();
+    static final LongAdder logins = new LongAdder();
+    static final LongAdder loginFailures = new LongAdder();
+    static final LongAdder registrations = new LongAdder();
+    static final LongAdder directMessages = new LongAdder();
+    static final LongAdder sessionsParked = new LongAdder();
+    static final LongAdder sessionsResumed = new LongAdder();
+    static final LongAdder sessionsExpired = new LongAdder();
+    static final LongAdder deflateRawBytes = new LongAdder();     // Output handed to OutputDeflater
+    static final LongAdder deflateWireBytes = new LongAdder();    // What it made of it
+    static final LongAdder deflateNanos = new LongAdder();
+    static final LongAdder throttledMessages = new LongAdder();       // Over the sender's own rate
+    static final LongAdder throttledRoomMessages = new LongAdder();   // Over the room's rate
+    static final LongAdder floodDisconnects = new LongAdder();
+    static final LongAdder heartbeatsSent = new LongAdder();
+    static final LongAdder idleDisconnects = new LongAdder();     // Closed by the reaper after --idle-timeout-seconds
+    static final LongAdder logEventsDropped = new LongAdder();    // Log ring was full
+    static final LongAdder stateRecords = new LongAdder();        // Written to the state log
+    static final LongAdder stateSyncs = new LongAdder();          // Group commits, one fsync each
+    static final LongAdder tlsHandshakes = new LongAdder();       // Completed on the TLS listener
+    static final LongAdder tlsResumed = new LongAdder();          // Of those, abbreviated ones from the session cache
+
+    static final Histogram broadcastTime = new Histogram();    // One ChatRoom.broadcast() fan-out
+    static final Histogram loginTime = new Histogram();        // Password received to login result
+    static final Histogram stateSyncTime = new Histogram();    // Writing and fsyncing one group of state records
+    static final Histogram tlsHandshakeTime = new Histogram(); // Accepted to handshake finished, client round trips included
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    // One metric family in the output, values come from a supplier when scraped
+    private static final class Family {
+        final String name;
+        final String type;
+        final String help;
+        final String label;                             // Label name for labeled families, else null
+        final Supplier<Map<String, Long>> labeled;
+        final LongSupplier value;
+        final Histogram histogram;
+
+        Family(String name, String type, String help, String label, Supplier<Map<String, Long>> labeled,
+               LongSupplier value, Histogram histogram) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.label = label;
+            this.labeled = labeled;
+            this.value = value;
+            this.histogram = histogram;
+        }
+    }
+
+    private static final List<Family> families = new CopyOnWriteArrayList<>();
+
+    static {
+        counter("chat_connections_accepted_total", "Connections accepted", connectionsAccepted::sum);
+        counter("chat_connections_rejected_total", "Connections turned away because the server was full", connectionsRejected::sum);
+        counter("chat_logins_total", "Successful logins, including registrations", logins::sum);
+        counter("chat_login_failures_total", "Logins refused for a wrong password, a busy hasher or an error", loginFailures::sum);
+        counter("chat_registrations_total", "New accounts", registrations::sum);
+        counter("chat_direct_messages_total", "Private messages sent", directMessages::sum);
+        counter("chat_sessions_parked_total", "Sessions kept open for resumption after their connection dropped", sessionsParked::sum);
+        counter("chat_sessions_resumed_total", "Dropped sessions taken over by a reconnecting client", sessionsResumed::sum);
+        counter("chat_sessions_expired_total", "Dropped sessions ended because nobody resumed them in time", sessionsExpired::sum);
+        counter("chat_deflate_input_bytes_total", "Output bytes of compressed connections before deflate", deflateRawBytes::sum);
+        counter("chat_deflate_output_bytes_total", "Output bytes of compressed connections after deflate", deflateWireBytes::sum);
+        counter("chat_deflate_cpu_microseconds_total", "Time spent compressing output", () -> deflateNanos.sum() / 1000);
+        counter("chat_throttled_messages_total", "Chat messages dropped because their sender went over --message-rate", throttledMessages::sum);
+        counter("chat_throttled_room_messages_total", "Chat messages dropped because their room went over --room-rate", throttledRoomMessages::sum);
+        counter("chat_flood_disconnects_total", "Clients disconnected after --flood-limit dropped messages in a row", floodDisconnects::sum);
+        histogram("chat_broadcast_seconds", "Time to fan one room message out to every member", broadcastTime);
+        histogram("chat_login_seconds", "Time from receiving a password to the login result", loginTime);
+        counter("chat_heartbeats_sent_total", "Pings sent to connections quiet for --heartbeat-seconds", heartbeatsSent::sum);
+        counter("chat_idle_disconnects_total", "Connections closed after sending nothing for --idle-timeout-seconds", idleDisconnects::sum);
+        counter("chat_log_events_dropped_total", "Log events dropped because the writer fell a whole --log-buffer behind", logEventsDropped::sum);
+        counter("chat_state_log_records_total", "State changes written to the write-ahead log", stateRecords::sum);
+        counter("chat_state_log_syncs_total", "Group commits of the write-ahead log, one fsync each", stateSyncs::sum);
+        histogram("chat_state_log_sync_seconds", "Time to write and fsync one group of state log records", stateSyncTime);
+        counter("chat_tls_handshakes_total", "TLS handshakes completed", tlsHandshakes::sum);
+        counter("chat_tls_resumed_total", "TLS handshakes that resumed a cached session", tlsResumed::sum);
+        histogram("chat_tls_handshake_seconds", "Time from accepting a TLS connection to the end of its handshake", tlsHandshakeTime);
+    }
+
+    private Metrics() {
+    }
+
+    static void counter(String name, String help, LongSupplier value) {
+        families.add(new Family(name, "counter", help, null, null, value, null));
+    }
+
+    static void gauge(String name, String help, LongSupplier value) {
+        families.add(new Family(name, "gauge", help, null, null, value, null));
+    }
+
+    // A family with one sample per label value, e.g. one per room
+    static void labeled(String name, String type, String help, String label, Supplier<Map<String, Long>> values) {
+        families.add(new Family(name, type, help, label, values, null, null));
+    }
+
+    static void histogram(String name, String help, Histogram histogram) {
+        families.add(new Family(name, "summary", help, null, null, null, histogram));
+    }
+
+    // Serve GET /metrics on the loopback interface
+    static void startAdminServer(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        Log.info("metrics_started", "url", "http://127.0.0.1:" + port + "/metrics");
+    }
+
+    // All metrics in the Prometheus text exposition format
+    static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Family family : families) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            if (family.histogram != null) {
+                LatencyHistogram snapshot = family.histogram.snapshot();
+                for (double quantile : QUANTILES) {
+                    out.append(family.name).append("{quantile=\"").append(quantile).append("\"} ")
+                            .append(seconds(snapshot.percentile(quantile))).append('\n');
+                }
+                out.append(family.name).append("_sum ").append(seconds(snapshot.sum())).append('\n');
+                out.append(family.name).append("_count ").append(snapshot.count()).append('\n');
+                out.append(family.name).append("_max ").append(seconds(snapshot.max())).append('\n');
+            } else if (family.labeled != null) {
+                for (Map.Entry<String, Long> sample : family.labeled.get().entrySet()) {
+                    out.append(family.name).append('{').append(family.label).append("=\"")
+                            .append(escape(sample.getKey())).append("\"} ").append(sample.getValue()).append('\n');
+                }
+            } else {
+                out.append(family.name).append(' ').append(family.value.getAsLong()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private static String seconds(long nanos) {
+        return String.valueOf(nanos / 1e9);
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,335 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Non-blocking transport for one client. Splits incoming bytes into lines or frames for the
+ * ClientHandler and writes queued output when the socket is writable. On the TLS listener the
+ * bytes pass through a TlsSession on their way in and out, the rest is the same.
+ * Reads, writes and the handler callbacks all happen on the owning event loop thread.
+ */
+class NioConnection implements Connection, InputDecoder.Sink {
+    private static final int MAX_GATHER = 16;               // Queued messages handed to one gathering write
+
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final TlsSession tls;           // Null for plain connections
+    private Server.ClientHandler handler;
+
+    // Partial line or frame received so far
+    private final InputDecoder decoder = new InputDecoder();
+    private final Heartbeat heartbeat = new Heartbeat(this);
+
+    // Output from any thread, drained on the loop thread
+    private final OutboundQueue outbound = new OutboundQueue();
+    // Messages taken off the queue for the next gathering write, [batchStart, batchEnd) not fully written yet
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+    private int batchStart = 0;
+    private int batchEnd = 0;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean earlyFlush = new AtomicBoolean();      // Batch hit --flush-bytes before the window ended
+    private volatile long pendingSince;     // When the first message of the pending batch was queued
+    private int polledMessages = 0;         // Taken off the queue by fillBatch() during the current flush
+    private long waited = 0;                // How long the current flush held its first message back
+    private volatile boolean closing = false;
+    private boolean closed = false;
+
+    // Compression: once negotiated, each batch is deflated into one buffer, the only entry of `batch`
+    private boolean compressPending = false;    // Compression starts once the batch ahead of it is written
+    private OutputDeflater deflater;
+    private ByteBuffer[] plain;                 // Messages taken off the queue for the next deflate
+
+    NioConnection(EventLoop loop, SocketChannel channel, SelectionKey key, SSLEngine engine) throws IOException {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.tls = engine != null ? new TlsSession(engine, channel, key, loop, this::onTlsProgress) : null;
+        this.handler = new Server.ClientHandler(this);
+    }
+
+    void start() {
+        handler.start();
+        heartbeat.start();
+    }
+
+    @Override
+    public void send(ByteBuffer encodedLine) {
+        if (closing) return;
+        // Own position/limit over the shared bytes, nothing is copied here
+        if (!outbound.offer(encodedLine.duplicate())) {
+            // Queue overflowed under the DISCONNECT policy
+            Log.warn("slow_client_disconnect", "addr", remoteAddress());
+            closing = true;
+            loop.execute(this::closeNow);
+            return;
+        }
+        scheduleFlush();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        loop.execute(task);
+    }
+
+    @Override
+    public void attach(Server.ClientHandler handler) {
+        this.handler = handler;     // Called from the handler, so already on the loop thread
+    }
+
+    @Override
+    public void switchToBinary() {
+        decoder.switchToBinary();
+        heartbeat.switchToBinary();
+    }
+
+    @Override
+    public void compress() {
+        decoder.switchToCompressed();
+        outbound.offerControl(OutputDeflater.START);
+        scheduleFlush();
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        scheduleFlush();    // Flush what is left, then close
+    }
+
+    @Override
+    public void abort() {
+        closing = true;
+        loop.execute(this::closeNow);
+    }
+
+    @Override
+    public String remoteAddress() {
+        return channel.socket().getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public OutboundQueue outboundQueue() {
+        return outbound;
+    }
+
+    // Bytes are waiting on the socket
+    void onReadable(ByteBuffer buffer) {
+        boolean handshaking = tls != null && !tls.established();
+        do {
+            int read;
+            try {
+                buffer.clear();
+                read = tls != null ? tls.read(buffer) : channel.read(buffer);
+            } catch (IOException e) {
+                closeNow();
+                return;
+            }
+            if (read < 0) {
+                closeNow();     // Client closed the connection
+                return;
+            }
+
+            heartbeat.onRead();
+            buffer.flip();
+            if (!decoder.feed(buffer, this)) {
+                Log.warn("line_too_long", "addr", remoteAddress());
+                closeNow();
+                return;
+            }
+            // One TLS record may decrypt to more than the buffer holds
+        } while (tls != null && tls.hasBufferedInput() && !closed);
+
+        if (handshaking && tls.established()) {
+            flush();    // The welcome output waited for the handshake
+        }
+    }
+
+    // The handshake tasks finished on the TLS pool: pick up what arrived meanwhile and write what waited
+    private void onTlsProgress() {
+        if (closed) return;
+        try {
+            tls.resume();
+        } catch (IOException e) {
+            closeNow();
+            return;
+        }
+        onReadable(loop.readBuffer());
+        flush();
+    }
+
+    @Override
+    public void onLine(String line) {
+        if (!closing) {
+            handler.onLine(line);
+        }
+    }
+
+    @Override
+    public void onFrame(byte type, ByteBuffer payload) {
+        if (!closing) {
+            handler.onFrame(type, payload);
+        }
+    }
+
+    // The socket has room for more output again
+    void onWritable() {
+        flush();
+    }
+
+    private void scheduleFlush() {
+        // One pending flush task is enough no matter how many lines were queued
+        long window = OutboundQueue.flushWindowNanos;
+        if (flushScheduled.compareAndSet(false, true)) {
+            pendingSince = System.nanoTime();
+            if (window > 0 && !closing) {
+                loop.schedule(this::flush, window);     // Give more messages a chance to join this write
+            } else {
+                loop.execute(this::flush);
+            }
+        } else if (window > 0 && outbound.queuedBytes() >= OutboundQueue.flushBytes
+                && earlyFlush.compareAndSet(false, true)) {
+            loop.execute(this::flush);     // Enough bytes for one write, don't wait out the window
+        }
+    }
+
+    private void flush() {
+        // Flushes triggered by OP_WRITE didn't hold anything back on purpose
+        waited = flushScheduled.getAndSet(false) ? System.nanoTime() - pendingSince : 0;
+        earlyFlush.set(false);
+        if (closed) return;
+
+        polledMessages = 0;
+        long bytes = 0;
+        try {
+            if (tls != null && !tls.flush()) {
+                // Records from before, or the handshake's own, still don't fit on the socket
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            while (fillBatch()) {
+                // One gathering write for everything in the batch
+                bytes += tls != null ? tls.write(batch, batchStart, batchEnd - batchStart)
+                        : channel.write(batch, batchStart, batchEnd - batchStart);
+                while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                    batch[batchStart++] = null;
+                }
+                if (batchStart < batchEnd) {
+                    // Socket buffer is full, wait for OP_WRITE; a TLS handshake still going
+                    // calls flush() again when it ends instead
+                    if (tls == null || tls.hasPendingOutput()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                    recordFlush(bytes);
+                    return;
+                }
+            }
+            if (tls != null && tls.hasPendingOutput()) {
+                // Everything is encrypted but not all of it is on the socket yet
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                recordFlush(bytes);
+                return;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            closeNow();
+            return;
+        }
+        recordFlush(bytes);
+
+        if (closing) {
+            closeNow();
+        }
+    }
+
+    // Top the batch up from the queue, false when there is nothing left to write
+    private boolean fillBatch() {
+        if (batchStart == batchEnd) {
+            batchStart = 0;
+            batchEnd = 0;
+        } else if (batchStart > 0) {
+            // Move the partly written messages to the front
+            int pending = batchEnd - batchStart;
+            System.arraycopy(batch, batchStart, batch, 0, pending);
+            Arrays.fill(batch, pending, batchEnd, null);
+            batchStart = 0;
+            batchEnd = pending;
+        }
+
+        if (deflater != null) {
+            return batchEnd > 0 || fillCompressed();
+        }
+        ByteBuffer message;
+        while (batchEnd < batch.length && !compressPending && (message = outbound.poll()) != null) {
+            if (message == OutputDeflater.START) {
+                compressPending = true;     // Everything ahead of it goes out plain
+                break;
+            }
+            batch[batchEnd++] = message;
+            polledMessages++;
+        }
+        if (batchEnd == 0 && compressPending) {
+            compressPending = false;
+            deflater = new OutputDeflater();
+            plain = new ByteBuffer[MAX_GATHER];
+            return fillCompressed();
+        }
+        return batchEnd > 0;
+    }
+
+    // Deflate the next messages off the queue into the batch, false when there are none
+    private boolean fillCompressed() {
+        int count = 0;
+        ByteBuffer message;
+        while (count < plain.length && (message = outbound.poll()) != null) {
+            plain[count++] = message;
+            polledMessages++;
+        }
+        if (count == 0) return false;
+        batch[0] = deflater.compress(plain, 0, count);     // Valid until the next deflate, which waits for this write
+        batchEnd = 1;
+        Arrays.fill(plain, 0, count, null);
+        return true;
+    }
+
+    private void recordFlush(long bytes) {
+        if (bytes > 0) {
+            FlushStats.record(polledMessages, bytes, waited);
+        }
+    }
+
+    // A handler callback threw on the loop thread: log it and drop only this connection
+    void fail(RuntimeException error) {
+        Log.error("connection_failed", "addr", remoteAddress(), "error", error);
+        try {
+            closeNow();
+        } catch (RuntimeException e) {
+            Log.error("disconnect_failed", "error", e);     // closed is set by now, nothing runs twice
+        }
+    }
+
+    private void closeNow() {
+        if (closed) return;
+        closed = true;
+        closing = true;
+        heartbeat.stop();
+        outbound.discard();
+        Arrays.fill(batch, null);
+        batchStart = 0;
+        batchEnd = 0;
+
+        if (tls != null) {
+            tls.close();
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("close_failed", "error", e.getMessage());
+        }
+        handler.onDisconnect();
+    }
+}
@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Non-blocking server mode. The main thread accepts connections and hands them
+ * round-robin to a small pool of selector event loops. With an SSLContext every
+ * connection speaks TLS (see TlsSession); the TLS listener runs one of these in any --io mode.
+ */
+class NioServer {
+    private final int port;
+    private final EventLoop[] loops;
+    private final SSLContext tls;       // Null for plain connections
+    private int nextLoop = 0;
+
+    NioServer(int port, int loopCount) throws IOException {
+        this(port, loopCount, null);
+    }
+
+    NioServer(int port, int loopCount, SSLContext tls) throws IOException {
+        this.port = port;
+        this.tls = tls;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop((tls != null ? "tls-loop-" : "event-loop-") + i);
+        }
+    }
+
+    void run() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            Server.announceStart(port, (tls != null ? "nio+tls, " : "nio, ") + loops.length + " event loops");
+
+            while (true) {
+                // Blocking accept, the event loops do all the client I/O
+                SocketChannel channel = serverChannel.accept();
+
+                if (!Server.tryAcquireSlot()) {
+                    if (tls != null) {
+                        Server.refuseConnection(channel.socket());
+                    } else {
+                        Server.rejectConnection(channel.socket());
+                    }
+                    continue;
+                }
+                Server.logAccepted();
+
+                loops[nextLoop].register(channel, tls);
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        }
+    }
+}
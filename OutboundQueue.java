@@ -0,0 +1,210 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of encoded messages waiting to be written to one client.
+ * Senders never block on it: when it is full the overflow policy decides what happens,
+ * so a slow reader only ever hurts itself. Control markers for the writer (OutputDeflater.START)
+ * go in with offerControl() and are exempt: never dropped, not counted against the capacity.
+ */
+class OutboundQueue {
+    // What to do when a message arrives and the queue is already full
+    enum OverflowPolicy {
+        DROP_OLDEST,    // Throw away the oldest queued message to make room
+        DROP_NEWEST,    // Throw away the message being added
+        DISCONNECT;     // Give up on the client
+
+        // Parses "drop-oldest", "drop-newest" or "disconnect"
+        static OverflowPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    // Defaults, changed once at startup with --queue-size and --overflow
+    static int defaultCapacity = 1024;
+    static OverflowPolicy defaultPolicy = OverflowPolicy.DROP_OLDEST;
+
+    // Write coalescing, set once at startup with --flush-window-ms and --flush-bytes: after the
+    // first message of a batch the transport waits up to the window for more, unless the
+    // batch already holds flushBytes. A zero window writes as soon as the queue runs dry.
+    static long flushWindowNanos = 0;
+    static int flushBytes = 16 * 1024;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<ByteBuffer> messages = new ArrayDeque<>();
+    private final Set<ByteBuffer> controls = Collections.newSetFromMap(new IdentityHashMap<>());   // Queued markers
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private boolean closed = false;
+
+    // Counters, written under the lock and readable without it
+    private volatile int depth = 0;
+    private volatile long queuedBytes = 0;
+    private volatile int highWaterMark = 0;
+    private volatile long enqueued = 0;
+    private volatile long dropped = 0;
+
+    OutboundQueue() {
+        this(defaultCapacity, defaultPolicy);
+    }
+
+    OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Adds a message for the client. Returns false only when the queue overflowed
+     * under the DISCONNECT policy and the caller should close the connection.
+     */
+    boolean offer(ByteBuffer message) {
+        lock.lock();
+        try {
+            if (closed) return true;    // Connection is going away, nothing to do
+
+            if (messages.size() - controls.size() >= capacity) {
+                switch (policy) {
+                    case DROP_NEWEST:
+                        dropped++;
+                        return true;
+                    case DROP_OLDEST:
+                        dropOldestMessage();
+                        dropped++;
+                        break;
+                    case DISCONNECT:
+                        dropped++;
+                        return false;
+                }
+            }
+
+            messages.addLast(message);
+            queuedBytes += message.remaining();
+            enqueued++;
+            updateDepth();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Queues a marker for the writer in order with the messages; it survives any overflow policy
+    void offerControl(ByteBuffer marker) {
+        lock.lock();
+        try {
+            if (closed) return;
+            messages.addLast(marker);
+            controls.add(marker);
+            updateDepth();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Next message to write, or null when the queue is empty
+    ByteBuffer poll() {
+        lock.lock();
+        try {
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits up to the timeout for the next message, null if none came or the queue is closed and drained
+    ByteBuffer poll(long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            long remaining = timeoutNanos;
+            while (messages.isEmpty() && !closed && remaining > 0) {
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits for the next message, returns null once the queue is closed and drained
+    ByteBuffer take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stop accepting messages, already queued ones can still be drained
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stop accepting messages and throw away what is queued
+    void discard() {
+        lock.lock();
+        try {
+            closed = true;
+            messages.clear();
+            controls.clear();
+            queuedBytes = 0;
+            updateDepth();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ByteBuffer removeFirst() {
+        ByteBuffer message = messages.pollFirst();
+        if (message != null && !controls.remove(message)) {
+            queuedBytes -= message.remaining();
+        }
+        updateDepth();
+        return message;
+    }
+
+    // The oldest real message, markers stay where they are
+    private void dropOldestMessage() {
+        for (Iterator<ByteBuffer> it = messages.iterator(); it.hasNext(); ) {
+            ByteBuffer message = it.next();
+            if (!controls.contains(message)) {
+                it.remove();
+                queuedBytes -= message.remaining();
+                return;
+            }
+        }
+    }
+
+    private void updateDepth() {
+        depth = messages.size();
+        if (depth > highWaterMark) {
+            highWaterMark = depth;
+        }
+    }
+
+    int depth() { return depth; }
+    long queuedBytes() { return queuedBytes; }
+    int capacity() { return capacity; }
+    OverflowPolicy policy() { return policy; }
+    int highWaterMark() { return highWaterMark; }
+    long enqueued() { return enqueued; }
+    long dropped() { return dropped; }
+}
@@ -0,0 +1,56 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses one connection's output as a single raw deflate stream. The Deflater lives as long
+ * as the connection, so its window remembers what was already sent: menus, room names and
+ * frequent senders cost a few bytes after the first time. Every write batch ends with a sync
+ * flush, so the client can decode all of it right away, and the per-message cost is just the
+ * flush marker instead of a new stream header and empty dictionary.
+ * Used by the writing side of a transport only, one thread at a time.
+ */
+class OutputDeflater {
+    // Queued after the negotiation reply; everything behind it in the queue is compressed
+    static final ByteBuffer START = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    static int level = Deflater.DEFAULT_COMPRESSION;     // --deflate-level, 0 turns compression off
+
+    private final Deflater deflater = new Deflater(level, true);
+    private byte[] output = new byte[4096];
+
+    // Deflate the messages in [from, to) and sync flush; the result is only valid until the next call
+    ByteBuffer compress(ByteBuffer[] messages, int from, int to) {
+        long start = System.nanoTime();
+        long raw = 0;
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            raw += messages[i].remaining();
+            deflater.setInput(messages[i]);
+            length = deflate(length, Deflater.NO_FLUSH);
+        }
+        length = deflate(length, Deflater.SYNC_FLUSH);
+        Metrics.deflateRawBytes.add(raw);
+        Metrics.deflateWireBytes.add(length);
+        Metrics.deflateNanos.add(System.nanoTime() - start);
+        return ByteBuffer.wrap(output, 0, length);
+    }
+
+    // Shorthand for a single buffer, like the blocking writer's batch
+    ByteBuffer compress(byte[] bytes, int offset, int length) {
+        return compress(new ByteBuffer[] {ByteBuffer.wrap(bytes, offset, length)}, 0, 1);
+    }
+
+    // Run the deflater until it took all input (NO_FLUSH) or emitted everything (SYNC_FLUSH)
+    private int deflate(int length, int flush) {
+        while (true) {
+            if (length == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            length += deflater.deflate(output, length, output.length - length, flush);
+            if (flush == Deflater.NO_FLUSH ? deflater.needsInput() : length < output.length) {
+                return length;
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted, tunable-cost password hashing (PBKDF2 with HMAC-SHA256) on a bounded worker pool,
+ * so slow hashes never run on a connection's reader thread or event loop.
+ * Stored format: "pbkdf2$<iterations>$<salt>$<hash>" with Base64 salt and hash.
+ */
+class PasswordHasher {
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private final int iterations;
+    private final ThreadPoolExecutor workers;
+    private final SecureRandom random = new SecureRandom();
+
+    PasswordHasher(int iterations, int threads, int queueSize) {
+        this.iterations = iterations;
+        AtomicInteger count = new AtomicInteger();
+        // Bounded queue: when logins pile up faster than we can hash, new ones are rejected instead of queued forever
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), task -> {
+                    Thread thread = new Thread(task, "auth-worker-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    // Hash a new password with a fresh salt, fails with RejectedExecutionException when the pool is full
+    CompletableFuture<String> hash(String password) {
+        return submit(() -> hashNow(password));
+    }
+
+    // Check a password against a stored hash
+    CompletableFuture<Boolean> verify(String password, String stored) {
+        return submit(() -> verifyNow(password, stored));
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, workers);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    String hashNow(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        byte[] hash = pbkdf2(password, salt, iterations);
+        Base64.Encoder b64 = Base64.getEncoder();
+        return "pbkdf2$" + iterations + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(hash);
+    }
+
+    boolean verifyNow(String password, String stored) {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4 || !parts[0].equals("pbkdf2")) {
+            return false;
+        }
+        // Use the cost the hash was created with, so changing --hash-iterations keeps old hashes valid
+        int storedIterations = Integer.parseInt(parts[1]);
+        byte[] salt = Base64.getDecoder().decode(parts[2]);
+        byte[] expected = Base64.getDecoder().decode(parts[3]);
+        return MessageDigest.isEqual(expected, pbkdf2(password, salt, storedIterations));
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        try {
+            KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (Exception e) {
+            throw new RuntimeException("Hashing failed", e);
+        }
+    }
+}
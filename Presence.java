@@ -0,0 +1,76 @@
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pushes friends' online/offline changes to the sessions following them.
+ * A reverse index maps each user to the sessions that have them as a friend, so a login
+ * touches only that user's followers. Changes are collected and published in batches:
+ * a user who drops and reconnects within one batch produces no update at all, and each
+ * follower gets everything that changed in the batch at once.
+ */
+class Presence {
+    private final Map<String, Set<Server.ClientHandler>> followers = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> pending = new ConcurrentHashMap<>();  // Latest state per user since the last batch
+    private final Set<String> published = ConcurrentHashMap.newKeySet();     // Online as far as followers were told
+
+    private final LongAdder changes = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+
+    Presence(long batchMillis) {
+        ScheduledExecutorService publisher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+        publisher.scheduleWithFixedDelay(this::publish, batchMillis, batchMillis, TimeUnit.MILLISECONDS);
+
+        Metrics.counter("chat_presence_changes_total", "Logins and logouts seen by the presence batcher", changes::sum);
+        Metrics.counter("chat_presence_updates_total", "Batched presence updates sent to followers", updates::sum);
+    }
+
+    void follow(String user, Server.ClientHandler follower) {
+        followers.computeIfAbsent(user, u -> ConcurrentHashMap.newKeySet()).add(follower);
+    }
+
+    void unfollow(String user, Server.ClientHandler follower) {
+        followers.computeIfPresent(user, (u, set) -> {
+            set.remove(follower);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    // A user logged in or out, here or on another node
+    void changed(String user, boolean online) {
+        pending.put(user, online);
+        changes.increment();
+    }
+
+    // Publish one batch: net changes only, grouped per follower
+    private void publish() {
+        if (pending.isEmpty()) return;
+        Map<Server.ClientHandler, Map<String, Boolean>> batches = new HashMap<>();
+        for (String user : pending.keySet()) {
+            Boolean online = pending.remove(user);
+            if (online == null) continue;
+            boolean flipped = online ? published.add(user) : published.remove(user);
+            if (!flipped) continue;     // Back where followers last saw it
+
+            Set<Server.ClientHandler> watching = followers.get(user);
+            if (watching == null) continue;
+            for (Server.ClientHandler follower : watching) {
+                batches.computeIfAbsent(follower, f -> new LinkedHashMap<>()).put(user, online);
+            }
+        }
+        batches.forEach((follower, batch) -> {
+            follower.presenceChanged(batch);
+            updates.increment();
+        });
+    }
+}
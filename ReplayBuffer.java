@@ -0,0 +1,51 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The newest output of one session, so a client that reconnects can be sent exactly what it missed.
+ * Positions are byte offsets in the session's output stream, counted from the session token on;
+ * the client counts the bytes it received the same way and asks to resume from there.
+ * Messages are kept as views of the (often shared) encoded buffers, nothing is copied.
+ * Not thread-safe, the session guards it together with its outbound queue.
+ */
+class ReplayBuffer {
+    private final ArrayDeque<ByteBuffer> messages = new ArrayDeque<>();
+    private final int capacity;     // Bytes kept, the oldest messages go first
+    private long start = 0;         // Stream offset of the first kept byte
+    private long end = 0;           // Stream offset after the last byte sent
+
+    ReplayBuffer(int capacity) {
+        this.capacity = capacity;
+    }
+
+    void append(ByteBuffer message) {
+        messages.addLast(message.duplicate());
+        end += message.remaining();
+        while (end - start > capacity && messages.size() > 1) {
+            start += messages.pollFirst().remaining();
+        }
+    }
+
+    // Everything sent after `offset`, or null when that was already dropped (or never sent)
+    List<ByteBuffer> since(long offset) {
+        if (offset < start || offset > end) {
+            return null;
+        }
+        List<ByteBuffer> missed = new ArrayList<>();
+        long position = start;
+        for (ByteBuffer message : messages) {
+            long next = position + message.remaining();
+            if (next > offset) {
+                ByteBuffer view = message.duplicate();
+                if (position < offset) {
+                    view.position(view.position() + (int) (offset - position));    // Partly received
+                }
+                missed.add(view);
+            }
+            position = next;
+        }
+        return missed;
+    }
+}
@@ -0,0 +1,150 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recent messages of one chat room, replayed to members when they join.
+ * The text lines the members were sent are kept in a byte ring (one primitive array plus
+ * message offsets) bounded by message count and bytes, so a text catch-up is one bulk copy
+ * instead of formatting every message again. Adding a message costs a copy into that ring and
+ * two references: HISTORY frames are only encoded when a binary member joins, and the append
+ * to the room log on disk is queued for the log's own thread. When long messages pushed part
+ * of the catch-up out of the byte budget, that older part is read back from the log.
+ * Not thread-safe, the room guards it.
+ */
+class RoomHistory {
+    // Encoded messages back to back in a circular array
+    private static final class ByteRing {
+        private final byte[] data;
+        private final long[] starts;    // Stream offset of each of the newest messages, by message number
+        private final long first;       // Number of the first message added, older ones were added before a restart
+        private long written = 0;       // Bytes ever added
+
+        ByteRing(int bytes, int messages, long first) {
+            data = new byte[bytes];
+            starts = new long[Math.max(1, messages)];
+            this.first = first;
+        }
+
+        void add(long number, ByteBuffer message) {
+            starts[(int) (number % starts.length)] = written;
+            int length = message.remaining();
+            if (length <= data.length) {
+                ByteBuffer source = message.duplicate();
+                int at = (int) (written % data.length);
+                int first = Math.min(length, data.length - at);
+                source.get(data, at, first);
+                source.get(data, 0, length - first);
+            }
+            written += length;     // A message too long for the ring is skipped, and overwrites everything before it
+        }
+
+        // Oldest of the messages [from, count) whose bytes are still in the ring
+        long firstKept(long from, long count) {
+            from = Math.max(from, Math.max(first, count - starts.length));
+            while (from < count && starts[(int) (from % starts.length)] < written - data.length) {
+                from++;
+            }
+            return from;
+        }
+
+        // Messages [from, count) as one contiguous copy
+        ByteBuffer copy(long from) {
+            long start = starts[(int) (from % starts.length)];
+            byte[] out = new byte[(int) (written - start)];
+            int at = (int) (start % data.length);
+            int first = Math.min(out.length, data.length - at);
+            System.arraycopy(data, at, out, 0, first);
+            System.arraycopy(data, 0, out, first, out.length - first);
+            return ByteBuffer.wrap(out).asReadOnlyBuffer();
+        }
+    }
+
+    private final String roomName;
+    private final String key;           // Log key, unique to this room's lifetime so a new room of the same name starts empty,
+                                        // and the same after a restart so a restored room keeps its messages
+    private final MessageLog log;       // Null keeps the history in memory only
+    private final int catchUp;          // Messages replayed on join
+    private final ByteRing lines;
+    private final String[] senders;     // Of the newest messages, by message number, for binary catch-ups
+    private final String[] texts;
+    private final long first;           // Number of the first message added, older ones were added before a restart
+    private long count;                 // Messages ever added, including those in the log from before a restart
+    private long floor;                 // Catch-ups don't reach back before this message
+
+    // `created` tells rooms of the same name apart, a restored room passes its original creation time
+    RoomHistory(String roomName, long created, MessageLog log, int catchUp, int ringBytes) {
+        this.roomName = roomName;
+        this.key = "room/" + roomName + "/" + Long.toString(created, 36);
+        this.log = log;
+        this.catchUp = catchUp;
+        this.count = log != null ? log.count(key) : 0;
+        this.first = count;
+        this.lines = new ByteRing(ringBytes, catchUp, count);
+        this.senders = new String[Math.max(1, catchUp)];
+        this.texts = new String[Math.max(1, catchUp)];
+    }
+
+    // A chat message, `line` is the encoded text line the members were sent
+    void add(String username, String message, ByteBuffer line) {
+        lines.add(count, line);
+        senders[(int) (count % senders.length)] = username;
+        texts[(int) (count % texts.length)] = message;
+        count++;
+        if (log != null) {
+            log.appendLater(key, username.length() + ":" + username + message);
+        }
+    }
+
+    // Catch-ups start with the next message, for a replica that missed what was said while it was empty
+    void skipGap() {
+        floor = count;
+    }
+
+    // The newest messages for a member who just joined, oldest first, in at most two buffers
+    List<ByteBuffer> recent(boolean binary) {
+        List<ByteBuffer> recent = new ArrayList<>(2);
+        long from = Math.max(floor, count - catchUp);
+        long kept = binary ? Math.max(from, first) : lines.firstKept(from, count);
+        if (kept > from && log != null) {
+            // Log indexes are message numbers, the key is only ever written by this room
+            List<ByteBuffer> encoded = new ArrayList<>();
+            int length = 0;
+            for (MessageLog.Entry entry : log.read(key, (int) from, (int) kept)) {
+                String record = entry.message;
+                int colon = record.indexOf(':');
+                int senderEnd = colon + 1 + Integer.parseInt(record.substring(0, colon));
+                String username = record.substring(colon + 1, senderEnd);
+                String message = record.substring(senderEnd);
+                ByteBuffer next = binary ? Frames.encode(Frames.HISTORY, roomName, username, message)
+                        : Connection.encode(Server.ChatRoom.chatLine(username, message));
+                encoded.add(next);
+                length += next.remaining();
+            }
+            ByteBuffer older = ByteBuffer.allocate(length);
+            encoded.forEach(older::put);
+            recent.add(older.flip().asReadOnlyBuffer());
+        }
+        if (kept < count) {
+            recent.add(binary ? frames(kept) : lines.copy(kept));
+        }
+        return recent;
+    }
+
+    // HISTORY frames of the messages [from, count), still in the reference ring
+    private ByteBuffer frames(long from) {
+        ByteBuffer[] encoded = new ByteBuffer[(int) (count - from)];
+        int length = 0;
+        for (long number = from; number < count; number++) {
+            int slot = (int) (number % senders.length);
+            ByteBuffer frame = Frames.encode(Frames.HISTORY, roomName, senders[slot], texts[slot]);
+            encoded[(int) (number - from)] = frame;
+            length += frame.remaining();
+        }
+        ByteBuffer out = ByteBuffer.allocate(length);
+        for (ByteBuffer frame : encoded) {
+            out.put(frame);
+        }
+        return out.flip().asReadOnlyBuffer();
+    }
+}
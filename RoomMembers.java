@@ -0,0 +1,91 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Members of one chat room, safe to join, leave and iterate from any thread.
+ * Join and leave are O(1) on a concurrent set with an atomic occupancy counter
+ * enforcing the capacity. Broadcasts iterate a plain array snapshot that is only
+ * rebuilt after membership changed.
+ */
+class RoomMembers {
+    // Snapshot of the members, valid while version still matches
+    private static final class Snapshot {
+        final long version;
+        final Server.ClientHandler[] members;
+
+        Snapshot(long version, Server.ClientHandler[] members) {
+            this.version = version;
+            this.members = members;
+        }
+    }
+
+    private static final Server.ClientHandler[] EMPTY = new Server.ClientHandler[0];
+
+    private final int capacity;
+    private final Set<Server.ClientHandler> members = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger occupancy = new AtomicInteger();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, EMPTY);
+
+    RoomMembers(int capacity) {
+        this.capacity = capacity;
+    }
+
+    // Take a slot and add the member, false when the room is full
+    boolean join(Server.ClientHandler member) {
+        if (!reserve()) {
+            return false;
+        }
+        if (!members.add(member)) {
+            occupancy.decrementAndGet();    // Already a member, keep the one slot it holds
+            return true;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    // Remove the member and free its slot
+    void leave(Server.ClientHandler member) {
+        if (members.remove(member)) {
+            occupancy.decrementAndGet();
+            version.incrementAndGet();
+        }
+    }
+
+    // Take a slot without a local member, for someone seated on another cluster node
+    boolean reserve() {
+        while (true) {
+            int current = occupancy.get();
+            if (current >= capacity) {
+                return false;
+            }
+            if (occupancy.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // Give back a slot taken with reserve()
+    void release() {
+        occupancy.decrementAndGet();
+    }
+
+    int size() {
+        return occupancy.get();
+    }
+
+    // Current members as an array, do not modify it
+    Server.ClientHandler[] snapshot() {
+        Snapshot current = snapshot;
+        long now = version.get();
+        if (current.version == now) {
+            return current.members;
+        }
+        // Read the version before copying, a change during the copy just makes the next call rebuild
+        Server.ClientHandler[] copy = members.toArray(EMPTY);
+        snapshot = new Snapshot(now, copy);
+        return copy;
+    }
+}
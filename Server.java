@@ -1,8 +1,26 @@
 import java.io.*;
 import java.net.*;
-import java.security.MessageDigest;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLContext;
 
 /**
  * A console based chat application with multi-room chat server with password authentication,
@@ -12,26 +30,290 @@ import java.util.concurrent.ConcurrentHashMap;
 public class Server {
     // Maps to track connected users, user passwords, chat rooms, and private message history. 
     private final static Map<String, ClientHandler> clients = new ConcurrentHashMap<>();    // Active Users
-    private final static Map<String, String> userPasswords = new ConcurrentHashMap<>();     // User credentials
+    private static UserRegistry users;                                                      // Accounts, each with a dense int id
+    private static FriendGraph friendGraph;                                                 // Who follows whom, by user id
+    private static StateStore state;                                                        // Write-ahead log and snapshots of accounts, friends and rooms
     private final static Map<String, ChatRoom> rooms = new ConcurrentHashMap<>();           // Available chat rooms
-    private final static Map<String, List<String>> privateChats = new ConcurrentHashMap<>();// Private message history
-
-    private static final int MAX_USERS = 3;            // Maximum concurrent users
-    private static final int MAX_ROOMS = 2;            // Maximum rooms allowed
-    private static final int MAX_USERS_PER_ROOM = 2;   // Maximum users per room 
+    private static ConversationHistory privateChats;                                        // Private message history, recent in memory, rest on disk
+    private static int historyPageSize = 20;                                                // DM messages shown per page, --dm-page
+    private static Mailbox mailbox;                                                         // DMs waiting for their recipient to acknowledge them
+    private static Presence presence;                                                       // Pushes friends' logins and logouts to their followers
+    private static MessageLog roomLog;                                                      // Every room message, for catch-ups older than the in-memory history
+    private static int roomCatchUp = 20;                                                    // Recent messages replayed on join, --room-catch-up
+    private static int roomHistoryBytes = 16 * 1024;                                        // In-memory history per room and protocol, --room-history-kb
+    private final static Map<String, ClientHandler> pendingLogins = new ConcurrentHashMap<>(); // Usernames reserved by a login in progress
+
+    private static final int MAX_USERS = 3;            // Default maximum concurrent users
+    private static final int MAX_ROOMS = 2;            // Default maximum rooms allowed
+    private static final int MAX_USERS_PER_ROOM = 2;   // Default maximum users per room 
    
 
-    // Tracking 2D array for user-room assignment
-    // Rows = users, Columns = rooms
-    private static final boolean[][] userRoomJoinHistory = new boolean[MAX_USERS][MAX_ROOMS];
-    private static int currentUsers = 0; 
+    private static int maxUsers = MAX_USERS;                    // Maximum concurrent users, --max-users
+    private static int maxRooms = MAX_ROOMS;                    // Maximum rooms allowed, --max-rooms
+    private static int maxUsersPerRoom = MAX_USERS_PER_ROOM;    // Maximum users per room, --room-capacity
+
+    // Flood protection, rates are messages per second and 0 turns a limit off
+    private static double messageRate = 10;                     // Sustained rate per client, --message-rate
+    private static int messageBurst = 20;                       // --message-burst
+    private static double roomRate = 200;                       // Sustained rate per room, --room-rate
+    private static int roomBurst = 400;                         // --room-burst
+    private static int floodLimit = 100;                        // Dropped messages allowed before disconnecting, --flood-limit
+
+    private static final AtomicInteger currentUsers = new AtomicInteger();
+    private static final AtomicInteger roomCount = new AtomicInteger();    // Rooms created so far, checked against maxRooms
+
+    private static PasswordHasher passwordHasher;     // Salted password hashing off the I/O threads
+    private static Cluster cluster;                   // Other nodes of the chat, null when running alone
+
+    // Pushes new mail to recipients, so a sender's session never runs another user's handler
+    private static final ExecutorService mailDelivery = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "mail-delivery");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Input a client may send ahead while its login is hashed or another node answers, past either it is disconnected
+    private static final int MAX_DEFERRED_INPUTS = 16;
+    private static final int MAX_DEFERRED_BYTES = 64 * 1024;
+    private static final int MAIL_WINDOW = 64;        // DMs sent to a binary client before it has to acknowledge
+
+    // Per-connection compression, asked for with "/deflate" before anything else (see OutputDeflater)
+    static final String COMPRESS = "/deflate";
+    static final String COMPRESSED = "[Server] Compression enabled";
+
+    // Session resumption: a client whose connection drops gets its session back if it reconnects in time
+    static final String RESUME = "/resume";                     // "/resume <token> <offset>" instead of a username
+    static final String SESSION_PREFIX = "[Session] ";          // Text line carrying the resume token
+    static final String RESUMED = "[Server] Session resumed";
+    static final String EXPIRED = "[Server] Session expired. Please log in again.";
+    // Heartbeats: quiet text clients get PING and answer with PONG, binary ones use Frames.PING both ways
+    static final String PING = "[Ping]";
+    static final String PONG = "/pong";
+    // Text clients confirm the DMs they have read, anything else they type leaves them unread
+    static final String ACK = "/ack";
+    private final static Map<String, ClientHandler> sessions = new ConcurrentHashMap<>();   // Resume token -> session
+    private static long resumeGraceMillis = TimeUnit.SECONDS.toMillis(30);   // --resume-grace-seconds, 0 turns it off
+    private static int replayBytes = 64 * 1024;                 // Output kept per session for replay, --replay-kb
+    private static final SecureRandom tokenSource = new SecureRandom();
+    private static final ScheduledExecutorService sessionExpiry = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "session-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public static void main(String[] args) {
         // Define the port number the server will listens on 
-        int port = 12345;
+        int port = Integer.parseInt(option(args, "port", "12345"));
+
+        // Server events go through the asynchronous log, see Log for the options
+        try {
+            Log.start(args);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Could not open the log: " + e.getMessage());
+            return;
+        }
+
+        // I/O mode: "thread" (one blocking thread per client), "virtual" (one virtual thread
+        // per client) or "nio" (selector event loops)
+        String ioMode = option(args, "io", "thread");
+        ExecutorService virtualThreads = null;
+        if (ioMode.equals("virtual")) {
+            // Refuse rather than quietly run platform threads under the name
+            virtualThreads = newVirtualThreadExecutor();
+            if (virtualThreads == null) {
+                System.err.println("--io=virtual needs Java 21 or newer, this is Java " + Runtime.version());
+                return;
+            }
+        }
+        int loopCount = Integer.parseInt(option(args, "loops",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        maxUsers = Integer.parseInt(option(args, "max-users", String.valueOf(MAX_USERS)));
+        maxRooms = Integer.parseInt(option(args, "max-rooms", String.valueOf(MAX_ROOMS)));
+        maxUsersPerRoom = Integer.parseInt(option(args, "room-capacity", String.valueOf(MAX_USERS_PER_ROOM)));
+        messageRate = Double.parseDouble(option(args, "message-rate", "10"));
+        messageBurst = Integer.parseInt(option(args, "message-burst", "20"));
+        roomRate = Double.parseDouble(option(args, "room-rate", "200"));
+        roomBurst = Integer.parseInt(option(args, "room-burst", "400"));
+        floodLimit = Integer.parseInt(option(args, "flood-limit", "100"));     // Refills at --message-rate
+
+        // Private chat history lives in memory-mapped log segments under --data-dir,
+        // with the newest messages of recently used conversations cached in ring buffers
+        try {
+            MessageLog dmLog = new MessageLog(Paths.get(option(args, "data-dir", "chat-data"), "dm"),
+                    Integer.parseInt(option(args, "segment-mb", "16")) * 1024 * 1024,
+                    Integer.parseInt(option(args, "dm-retention", "10000")),
+                    Long.parseLong(option(args, "log-flush-ms", "200")));
+            historyPageSize = Integer.parseInt(option(args, "dm-page", "20"));
+            privateChats = new ConversationHistory(dmLog,
+                    Integer.parseInt(option(args, "dm-ring", "100")),
+                    TimeUnit.HOURS.toMillis(Long.parseLong(option(args, "dm-max-age-hours", "0"))),
+                    Integer.parseInt(option(args, "dm-cached-conversations", "10000")));
+            // Undelivered DMs, kept per recipient until acknowledged; --mailbox-size acknowledged ones are kept besides
+            mailbox = new Mailbox(new MessageLog(Paths.get(option(args, "data-dir", "chat-data"), "mailbox"),
+                    Integer.parseInt(option(args, "segment-mb", "16")) * 1024 * 1024,
+                    Integer.parseInt(option(args, "mailbox-size", "1000")),
+                    Long.parseLong(option(args, "log-flush-ms", "200"))));
+            // Room messages, replayed to members who join; the newest are kept encoded in memory as well
+            roomLog = new MessageLog(Paths.get(option(args, "data-dir", "chat-data"), "rooms"),
+                    Integer.parseInt(option(args, "segment-mb", "16")) * 1024 * 1024,
+                    Integer.parseInt(option(args, "room-log-retention", "1000")),
+                    Long.parseLong(option(args, "log-flush-ms", "200")));
+            roomCatchUp = Integer.parseInt(option(args, "room-catch-up", "20"));
+            roomHistoryBytes = Integer.parseInt(option(args, "room-history-kb", "16")) * 1024;
+            // Accounts, friend lists and rooms: the latest snapshot plus the log after it
+            users = new UserRegistry();
+            friendGraph = new FriendGraph();
+            state = new StateStore(Paths.get(option(args, "data-dir", "chat-data"), "state"),
+                    Long.parseLong(option(args, "state-sync-ms", "50")),
+                    Integer.parseInt(option(args, "snapshot-records", "100000")));
+            for (StateStore.Room restored : state.recover(users, friendGraph)) {
+                rooms.put(restored.name, new ChatRoom(restored.name, restored.password, null, restored.created));
+                roomCount.incrementAndGet();
+            }
+            users.persistTo(state);
+            friendGraph.persistTo(state);
+            state.start(Server::homeRooms);
+        } catch (IOException e) {
+            System.err.println("Could not open message log: " + e.getMessage());
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            privateChats.close();
+            mailbox.close();
+            roomLog.close();
+            state.close();
+            Log.close();
+        }));
+
+        // Password hashing cost and the bounded pool that runs it
+        passwordHasher = new PasswordHasher(
+                Integer.parseInt(option(args, "hash-iterations", "100000")),
+                Integer.parseInt(option(args, "auth-threads", String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Integer.parseInt(option(args, "auth-queue", "256")));
+
+        // Per-client outbound queue size and what to do when a slow client fills it
+        OutboundQueue.defaultCapacity = Integer.parseInt(option(args, "queue-size", "1024"));
+        OutboundQueue.defaultPolicy = OutboundQueue.OverflowPolicy.parse(option(args, "overflow", "drop-oldest"));
+        // Write coalescing: how long a batch may wait for more messages, and how big it may get
+        OutboundQueue.flushWindowNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(option(args, "flush-window-ms", "0")));
+        OutboundQueue.flushBytes = Integer.parseInt(option(args, "flush-bytes", "16384"));
+
+        // How long a dropped session waits for its client, and how much output it keeps for it meanwhile
+        resumeGraceMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(option(args, "resume-grace-seconds", "30")));
+        replayBytes = Integer.parseInt(option(args, "replay-kb", "64")) * 1024;
+        // Ping connections quiet for --heartbeat-seconds, close those silent for --idle-timeout-seconds
+        Heartbeat.intervalNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option(args, "heartbeat-seconds", "30")));
+        Heartbeat.timeoutNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option(args, "idle-timeout-seconds", "90")));
+        if (Heartbeat.timeoutNanos > 0) {
+            // Ticks of a sixteenth of the shorter period, a wheel big enough for the longer one
+            long tick = Math.max(TimeUnit.MILLISECONDS.toNanos(10), Math.min(Heartbeat.intervalNanos, Heartbeat.timeoutNanos) / 16);
+            Heartbeat.wheel = new TimerWheel("idle-reaper", tick, Math.max(Heartbeat.intervalNanos, Heartbeat.timeoutNanos));
+        }
+        // Deflate level for clients that ask for compression, 1-9; 0 turns it off
+        OutputDeflater.level = Integer.parseInt(option(args, "deflate-level", "6"));
+        startLagMonitor();
+
+        // Presence changes are published to followers in batches of --presence-batch-ms
+        presence = new Presence(Long.parseLong(option(args, "presence-batch-ms", "250")));
+
+        // Metrics for scraping on the loopback interface, --admin-port=0 turns them off
+        int adminPort = Integer.parseInt(option(args, "admin-port", "12346"));
+        if (adminPort > 0) {
+            registerMetrics();
+            try {
+                Metrics.startAdminServer(adminPort);
+            } catch (IOException e) {
+                Log.error("admin_port_failed", "port", adminPort, "error", e.getMessage());
+            }
+        }
+
+        // Cluster mode: --node=<id> --cluster=<id>@<host>:<port>,... lists the link address of every node.
+        // Links only count once they prove they know the secret in --cluster-secret-file, the same on every node
+        String nodeList = option(args, "cluster", null);
+        if (nodeList != null) {
+            String secretFile = option(args, "cluster-secret-file", null);
+            if (secretFile == null) {
+                System.err.println("Could not join the cluster: --cluster needs --cluster-secret-file");
+                return;
+            }
+            try {
+                byte[] secret = new String(Tls.readPassword(Paths.get(secretFile))).getBytes(StandardCharsets.UTF_8);
+                cluster = Cluster.configure(option(args, "node", ""), nodeList, secret);
+                cluster.start();
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Could not join the cluster: " + e.getMessage());
+                return;
+            }
+        }
+
+        // TLS on a port of its own, --tls-port=0 turns it off. It always runs on event loops (see
+        // TlsSession), next to the plain listener of whichever --io mode. --tls-keystore takes a
+        // PKCS12 keystore whose password is in --tls-password-file; without it a self-signed
+        // certificate for localhost is generated under --data-dir/tls on first start, with
+        // server.crt for clients to trust.
+        int tlsPort = Integer.parseInt(option(args, "tls-port", "0"));
+        if (tlsPort > 0) {
+            NioServer tlsServer;
+            try {
+                String keystoreOption = option(args, "tls-keystore", null);
+                Path keystore;
+                char[] password;
+                if (keystoreOption != null) {
+                    String passwordOption = option(args, "tls-password-file", null);
+                    if (passwordOption == null) {
+                        System.err.println("Could not set up TLS: --tls-keystore needs --tls-password-file");
+                        return;
+                    }
+                    keystore = Paths.get(keystoreOption);
+                    password = Tls.readPassword(Paths.get(passwordOption));
+                    if (password.length == 0 || Arrays.equals(password, Tls.JDK_DEFAULT_PASSWORD.toCharArray())) {
+                        System.err.println("Could not set up TLS: refusing an empty or default keystore password");
+                        return;
+                    }
+                } else {
+                    Path directory = Paths.get(option(args, "data-dir", "chat-data"), "tls");
+                    keystore = directory.resolve("server.p12");
+                    Path passwordFile = directory.resolve("server.pass");
+                    Path certificate = directory.resolve("server.crt");
+                    if (!Files.exists(keystore) || !Files.exists(passwordFile) || !Files.exists(certificate)) {
+                        Tls.selfSigned(keystore, passwordFile, certificate);
+                        Log.info("tls_certificate_generated", "keystore", keystore, "certificate", certificate);
+                    }
+                    password = Tls.readPassword(passwordFile);
+                }
+                // Sessions stay resumable for --tls-session-seconds, at most --tls-session-cache of them
+                SSLContext context = Tls.serverContext(keystore, password,
+                        Integer.parseInt(option(args, "tls-session-cache", "20000")),
+                        Integer.parseInt(option(args, "tls-session-seconds", "86400")));
+                tlsServer = new NioServer(tlsPort, loopCount, context);
+            } catch (IOException | GeneralSecurityException e) {
+                System.err.println("Could not set up TLS: " + e.getMessage());
+                return;
+            }
+            Thread tlsAcceptor = new Thread(() -> {
+                try {
+                    tlsServer.run();
+                } catch (IOException e) {
+                    Log.error("tls_listener_failed", "port", tlsPort, "error", e.getMessage());
+                }
+            }, "tls-acceptor");
+            tlsAcceptor.setDaemon(true);
+            tlsAcceptor.start();
+        }
+
+        if (ioMode.equals("nio")) {
+            try {
+                new NioServer(port, loopCount).run();
+            } catch (IOException e) {
+                System.err.println("Server error: " + e.getMessage());
+            }
+            return;
+        }
+
+        boolean virtual = virtualThreads != null;
+        Executor executor = virtual ? virtualThreads : task -> new Thread(task).start();
 
         try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Server started on port " + port + "...");
+            announceStart(port, virtual ? "virtual" : "thread");
 
             // The server will run continuously
             while (true) {
@@ -39,609 +321,1848 @@ public class Server {
                 // Wait for and accept incoming client connections
                 Socket socket = serverSocket.accept();
 
-                synchronized (Server.class) {
-                    if (currentUsers >= MAX_USERS) {
-                        rejectConnection(socket);
-                        continue;
-                    }
-                    currentUsers++;
+                if (!tryAcquireSlot()) {
+                    rejectConnection(socket);
+                    continue;
                 }
-                System.out.println("\nNew connection accepted (" + currentUsers + "/" + MAX_USERS + " users)");
+                logAccepted();
                 // When a client connects, it creates a new thread to handle the client 
-                new Thread(new ClientHandler(socket)).start(); 
+                executor.execute(new SocketConnection(socket, executor));
             }
         } catch (IOException e) {
             System.err.println("Server error: " + e.getMessage());
         }
     }
 
+    // Reads a "--name=value" startup option, or returns the default
+    static String option(String[] args, String name, String defaultValue) {
+        String prefix = "--" + name + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return defaultValue;
+    }
+
+    // Virtual threads need Java 21+, looked up reflectively so the server still builds on older JDKs.
+    // Null when this JVM has none
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // Every 10 seconds, log the users whose outbound queue is backing up or dropping messages,
+    // and how well writes were coalesced
+    private static void startLagMonitor() {
+        ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "lag-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        monitor.scheduleAtFixedRate(() -> {
+            for (String report : lagReport()) {
+                Log.info("outbound_lag", "detail", report);
+            }
+            String flushes = FlushStats.report();
+            if (flushes != null) {
+                Log.info("flush_stats", "detail", flushes);
+            }
+        }, 10, 10, TimeUnit.SECONDS);
+    }
+
+    // One line per connected user with queued or dropped output, most backed-up first
+    static List<String> lagReport() {
+        List<ClientHandler> lagging = new ArrayList<>();
+        for (ClientHandler handler : clients.values()) {
+            OutboundQueue queue = handler.outboundQueue();
+            if (queue.depth() > 0 || queue.dropped() > 0) {
+                lagging.add(handler);
+            }
+        }
+        lagging.sort((a, b) -> Integer.compare(b.outboundQueue().depth(), a.outboundQueue().depth()));
+
+        List<String> report = new ArrayList<>();
+        for (ClientHandler handler : lagging) {
+            OutboundQueue queue = handler.outboundQueue();
+            report.add(handler.username + " queued=" + queue.depth() + "/" + queue.capacity()
+                    + " peak=" + queue.highWaterMark() + " dropped=" + queue.dropped());
+        }
+        return report;
+    }
+
+    // Gauges and per-room counters read from the server state at scrape time
+    private static void registerMetrics() {
+        Metrics.gauge("chat_connections", "Open connections, logged in or not", currentUsers::get);
+        Metrics.gauge("chat_active_users", "Logged in users", clients::size);
+        Metrics.gauge("chat_rooms", "Rooms created", roomCount::get);
+        Metrics.labeled("chat_room_members", "gauge", "Members per room", "room", () -> {
+            Map<String, Long> members = new TreeMap<>();
+            rooms.forEach((name, room) -> members.put(name, (long) room.members.size()));
+            return members;
+        });
+        Metrics.labeled("chat_room_messages_total", "counter", "Messages sent per room", "room", () -> {
+            Map<String, Long> messages = new TreeMap<>();
+            rooms.forEach((name, room) -> messages.put(name, room.messages.sum()));
+            return messages;
+        });
+        Metrics.gauge("chat_outbound_queue_depth", "Messages queued for all clients", () -> {
+            long depth = 0;
+            for (ClientHandler handler : clients.values()) {
+                depth += handler.outboundQueue().depth();
+            }
+            return depth;
+        });
+        Metrics.gauge("chat_outbound_queue_depth_max", "Longest outbound queue of a single client", () -> {
+            long max = 0;
+            for (ClientHandler handler : clients.values()) {
+                max = Math.max(max, handler.outboundQueue().depth());
+            }
+            return max;
+        });
+    }
+
+    // ===== Cluster =====
+
+    // Online on this node or on any other
+    static boolean isOnline(String username) {
+        return clients.containsKey(username) || (cluster != null && cluster.locate(username) != null);
+    }
+
+    // Whether the name is in use; a dropped session waiting for its client doesn't count, a new login replaces it
+    static boolean nameTaken(String username) {
+        ClientHandler session = clients.get(username);
+        if (session != null) return !session.isParked();
+        return cluster != null && cluster.locate(username) != null;
+    }
+
+    // Whether this node owns the room, always true when running alone
+    static boolean homedHere(String roomName) {
+        return cluster == null || cluster.homeOf(roomName).equals(cluster.self());
+    }
+
+    // Queue a DM in the recipient's mailbox, on this node or the one they are connected to.
+    // When that node can't be reached the mail waits here, see forwardMail()
+    static void routePrivate(String from, String to, String message) {
+        if (cluster != null && !clients.containsKey(to)) {
+            String node = cluster.mailNode(to);
+            if (!node.equals(cluster.self()) && cluster.directMessage(node, from, to, message, false)) {
+                return;
+            }
+        }
+        postMail(to, from, message);
+    }
+
+    // Store first, then look the recipient up: a login in between pushes the mail itself
+    private static void postMail(String to, String from, String message) {
+        mailbox.post(to, from, message);
+        ClientHandler recipient = clients.get(to);
+        if (recipient != null) {
+            recipient.mailArrived();
+        }
+    }
+
+    // What a peer needs to know about this node when it links up
+    static List<ByteBuffer> clusterSnapshot() {
+        List<ByteBuffer> frames = new ArrayList<>();
+        users.forEach((name, hash) -> frames.add(Frames.encode(Cluster.ACCOUNT, name, hash)));
+        // After the accounts, so the peer can resolve both ends of every edge
+        users.forEach((name, hash) -> friendGraph.forEachFollowing(users.id(name),
+                friend -> frames.add(Frames.encode(Cluster.FRIEND, name, users.name(friend)))));
+        rooms.forEach((name, room) -> {
+            if (room.home == null) frames.add(Frames.encode(Cluster.ROOM_ADDED, name));
+        });
+        for (String name : clients.keySet()) {
+            frames.add(Frames.encode(Cluster.USER_ONLINE, name));
+        }
+        return frames;
+    }
+
+    static void onRemoteAccount(String username, String hash) {
+        users.register(username, hash);     // Ids are this node's own, accounts arrive in any order
+    }
+
+    // A friend added on another node, or one of its edges when it links up
+    static void onRemoteFriend(String username, String friend) {
+        int fromId = users.id(username);
+        int toId = users.id(friend);
+        if (fromId < 0 || toId < 0) {
+            // The account is still on its way from a third node; its next link-up resends the edge
+            Log.warn("remote_friend_unknown_user", "user", username, "friend", friend);
+            return;
+        }
+        ClientHandler follower = clients.get(username);
+        if (friendGraph.add(fromId, toId) && follower != null) {
+            presence.follow(friend, follower);
+        }
+    }
+
+    // A friend added here: make it known to the other nodes
+    static void friendAdded(String username, String friend) {
+        if (cluster != null) {
+            cluster.friendAdded(username, friend);
+        }
+    }
+
+    static void onRemoteRoom(String roomName, String home) {
+        rooms.computeIfAbsent(roomName, name -> new ChatRoom(name, null, home));
+    }
+
+    // A user on `node` wants a seat in a room homed here; null when granted, else the reason
+    static String onRoomRequest(String node, boolean create, String roomName, String password, String username) {
+        ChatRoom room;
+        if (create) {
+            if (!reserveRoomSlot()) {
+                return "Maximum rooms (" + maxRooms + ") reached.";
+            }
+            room = new ChatRoom(roomName, password);
+            if (rooms.putIfAbsent(roomName, room) != null) {
+                roomCount.decrementAndGet();
+                return "Room already exists.";
+            }
+            roomCreated(room);
+        } else {
+            room = rooms.get(roomName);
+            if (room == null || room.home != null) {
+                return "Room doesn't exist.";
+            }
+            if (!room.password.equals(password)) {
+                return "Wrong password.";
+            }
+        }
+
+        if (!room.members.reserve()) {
+            return "Room is full (max " + maxUsersPerRoom + " users)";
+        }
+        if (!room.remoteSeats.computeIfAbsent(node, n -> ConcurrentHashMap.newKeySet()).add(username)) {
+            room.members.release();     // Already seated
+        }
+        return null;
+    }
+
+    static void onRoomLeave(String node, String roomName, String username) {
+        ChatRoom room = rooms.get(roomName);
+        if (room == null || room.home != null) return;
+        Set<String> seats = room.remoteSeats.get(node);
+        if (seats != null && seats.remove(username)) {
+            room.members.release();
+        }
+    }
+
+    static void onRoomMessage(String node, String roomName, String username, String message) {
+        ChatRoom room = rooms.get(roomName);
+        if (room != null) {
+            room.deliverRemote(node, username, message);
+        }
+    }
+
+    static void onDirectMessage(String from, String to, String message, boolean forwarded) {
+        if (!forwarded) {
+            int fromId = users.id(from);
+            int toId = users.id(to);
+            if (fromId >= 0 && toId >= 0) {     // Both accounts are known unless their announcements are still on the way
+                privateChats.append(ConversationHistory.key(fromId, toId), "[" + from + "]: " + message);
+            }
+        }
+        // The recipient may have moved to another node since the sender looked
+        String node = clients.containsKey(to) ? null : cluster.locate(to);
+        if (node == null || !cluster.directMessage(node, from, to, message, true)) {
+            postMail(to, from, message);
+        }
+    }
+
+    static void onRemoteLogin(String username, String node) {
+        presence.changed(username, true);
+        forwardMail(username, node);
+    }
+
+    // Our link to a node is up (again): its users get the mail that waited here meanwhile
+    static void onNodeLinked(String node) {
+        for (String username : cluster.usersOn(node)) {
+            forwardMail(username, node);
+        }
+    }
+
+    // Mail kept here for a user on another node moves to that node, as much as the link takes;
+    // the rest stays in the mailbox until the link is back or the user logs in somewhere
+    private static void forwardMail(String username, String node) {
+        mailbox.drain(username, mail -> cluster.directMessage(node, mail.from, username, mail.text, true));
+    }
+
+    static void onRemoteLogout(String username) {
+        presence.changed(username, false);
+    }
+
+    // Free the seats held by users of a node that went away
+    static void onNodeDown(String node) {
+        for (ChatRoom room : rooms.values()) {
+            Set<String> seats = room.remoteSeats.remove(node);
+            if (seats != null) {
+                for (int i = 0; i < seats.size(); i++) {
+                    room.members.release();
+                }
+            }
+        }
+    }
+
+    // Count a new room against maxRooms, false when the limit is reached
+    private static boolean reserveRoomSlot() {
+        while (true) {
+            int count = roomCount.get();
+            if (count >= maxRooms) {
+                return false;
+            }
+            if (roomCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // A room homed here was just added to `rooms`: persist it and tell the other nodes
+    private static void roomCreated(ChatRoom room) {
+        if (state != null) {
+            state.roomCreated(room.roomName, room.password, room.created);
+        }
+        if (cluster != null) {
+            cluster.roomAdded(room.roomName);
+        }
+    }
+
+    // The rooms homed here, for state snapshots
+    private static List<StateStore.Room> homeRooms() {
+        List<StateStore.Room> home = new ArrayList<>();
+        for (ChatRoom room : rooms.values()) {
+            if (room.home == null) {
+                home.add(new StateStore.Room(room.roomName, room.password, room.created));
+            }
+        }
+        return home;
+    }
+
+    // Reserve a user slot for a new connection, false when the server is full
+    static boolean tryAcquireSlot() {
+        while (true) {
+            int users = currentUsers.get();
+            if (users >= maxUsers) {
+                return false;
+            }
+            if (currentUsers.compareAndSet(users, users + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // The listener is up; the console only gets this line when the events go to a file
+    static void announceStart(int port, String mode) {
+        Log.info("server_started", "port", port, "io", mode);
+        if (!Log.destination().equals("standard output")) {
+            System.out.println("Server started on port " + port + " (" + mode + "), logging to " + Log.destination());
+        }
+    }
+
+    // Give back the slot of a closed connection
+    static void releaseSlot() {
+        int users = currentUsers.decrementAndGet();
+        Log.info("slot_released", "users", users, "max", maxUsers);
+    }
+
+    static void logAccepted() {
+        Metrics.connectionsAccepted.increment();
+        Log.info("connection_accepted", "users", currentUsers.get(), "max", maxUsers);
+    }
+
     // When server is full, reject 
-    private static void rejectConnection(Socket socket) {
+    static void rejectConnection(Socket socket) {
+        Metrics.connectionsRejected.increment();
         try (PrintWriter tempOut = new PrintWriter(socket.getOutputStream(), true)) {
-            tempOut.println("[Server] Maximum users (" + MAX_USERS + ") reached. Try again later.");
+            tempOut.println("[Server] Maximum users (" + maxUsers + ") reached. Try again later.");
             socket.close();
-            System.out.println("Rejected connection (server full)");
+            Log.info("connection_rejected", "addr", socket.getInetAddress().getHostAddress(), "reason", "server full");
         } catch (IOException e) {
-            System.out.println("Error during rejection: " + e.getMessage());
+            Log.warn("reject_failed", "error", e.getMessage());
+        }
+    }
+
+    // On the TLS listener the notice would cost a whole handshake, a full server just hangs up
+    static void refuseConnection(Socket socket) {
+        Metrics.connectionsRejected.increment();
+        Log.info("connection_rejected", "addr", socket.getInetAddress().getHostAddress(), "reason", "server full");
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.warn("reject_failed", "error", e.getMessage());
         }
     }
 
     /**
-     * Represent a chat room with name, password, and members
+     * Represent a chat room with name, password, and members.
+     * In cluster mode the room lives on its home node; other nodes hold a replica
+     * with only their own members, and messages are relayed through the home.
      */
     static class ChatRoom {
         String roomName;
-        String password;
-        Set<ClientHandler> members = new HashSet<>();
-        final int roomIndex;
+        String password;                                // Only known on the home node
+        final String home;                              // Home node when that is another node, else null
+        final long created;                             // Creation time, kept across restarts with the room
+        final RoomMembers members;
+        final LongAdder messages = new LongAdder();     // Chat messages sent here, for metrics
+        final TokenBucket rate = new TokenBucket(roomRate, roomBurst);  // Shared by the members on this node
+        final Map<String, Set<String>> remoteSeats = new ConcurrentHashMap<>();  // On the home: node -> its members
+        private final RoomHistory history;              // Guarded by historyLock
+        private final ReentrantLock historyLock = new ReentrantLock();  // Orders history appends against catch-ups, see enter()
 
         // Constructs a new chat room 
-        ChatRoom(String name, String pass, int index) {
+        ChatRoom(String name, String pass) {
+            this(name, pass, null);
+        }
+
+        // A replica's capacity is enforced by the home, which counts every node's members
+        ChatRoom(String name, String pass, String home) {
+            this(name, pass, home, System.currentTimeMillis());
+        }
+
+        // A room restored from the state store, or a new one
+        ChatRoom(String name, String pass, String home, long created) {
             this.roomName = name;
             this.password = pass;
-            this.roomIndex = index;
+            this.home = home;
+            this.created = created;
+            this.members = new RoomMembers(home == null ? maxUsersPerRoom : Integer.MAX_VALUE);
+            this.history = new RoomHistory(name, created, roomLog, roomCatchUp, roomHistoryBytes);
+        }
+
+        // Regular chat message format
+        static String chatLine(String username, String message) {
+            return "[" + username + "]: " + message;
+        }
+
+        // Take a seat, then get `welcome` and the recent messages before any live one;
+        // messages sent meanwhile are either in the catch-up or delivered live, never both
+        boolean enter(ClientHandler member, Runnable welcome) {
+            historyLock.lock();
+            try {
+                if (home != null && members.size() == 0) {
+                    // The home only relays to nodes with members, so a replica missed whatever was said while it was empty
+                    history.skipGap();
+                }
+                if (!members.join(member)) {
+                    return false;
+                }
+                welcome.run();
+                for (ByteBuffer recent : history.recent(member.binary)) {
+                    member.send(recent);
+                }
+                return true;
+            } finally {
+                historyLock.unlock();
+            }
         }
 
         // Broadcast message to all members in the room except the sender
         void broadcast(String message, ClientHandler sender) {
-            members.forEach(member -> {
-                if (member != sender) {
-                    if (message.equals("joined the room") || message.equals("left the room")) {
-                        // System notification format
-                        member.out.println("[Server] "+ sender.username + " " + message);
-                    } else {
-                        // Regular chat message format
-                        member.out.println("[" + sender.username + "]: " + message);
-                    }
+            deliver(sender.username, message, sender);
+            if (cluster != null) {
+                relay(sender.username, message, null);
+            }
+        }
+
+        // A message from a member on another node: show it here, and pass it on if this is the home
+        void deliverRemote(String node, String username, String message) {
+            deliver(username, message, null);
+            if (home == null) {
+                relay(username, message, node);
+            }
+        }
+
+        // Replicas send to the home, the home sends to every other node with members
+        private void relay(String username, String message, String fromNode) {
+            ByteBuffer frame = Frames.encode(Cluster.ROOM_MESSAGE, roomName, username, message);
+            if (home != null) {
+                cluster.send(home, frame);
+                return;
+            }
+            remoteSeats.forEach((node, seats) -> {
+                if (!seats.isEmpty() && !node.equals(fromNode)) {
+                    cluster.send(node, frame);
                 }
             });
         }
+
+        private void deliver(String username, String message, ClientHandler sender) {
+            String line;
+            boolean notice = message.equals("joined the room") || message.equals("left the room");
+            if (notice) {
+                // System notification format
+                line = "[Server] "+ username + " " + message;
+            } else {
+                line = chatLine(username, message);
+            }
+
+            // Format and encode once per protocol, every member queues a view of the same bytes
+            long start = System.nanoTime();
+            ByteBuffer encoded = null;
+            ByteBuffer frame = null;
+            ClientHandler[] targets;
+            if (notice) {
+                targets = members.snapshot();
+            } else {
+                messages.increment();
+                encoded = Connection.encode(line);
+                // Whoever enters after this sees the message in the catch-up, everyone before gets it live
+                historyLock.lock();
+                try {
+                    history.add(username, message, encoded);
+                    targets = members.snapshot();
+                } finally {
+                    historyLock.unlock();
+                }
+            }
+            for (ClientHandler member : targets) {
+                if (member == sender) continue;
+                if (member.binary) {
+                    if (frame == null) {
+                        frame = notice ? Frames.encode(Frames.NOTICE, line)
+                                : Frames.encode(Frames.MESSAGE, roomName, username, message);
+                    }
+                    member.send(frame);
+                } else {
+                    if (encoded == null) encoded = Connection.encode(line);
+                    member.send(encoded);
+                }
+            }
+            Metrics.broadcastTime.recordSince(start);
+        }
     }
 
     /**
-     * Handles individual client connections and manage their interactions 
+     * Handles individual client connections and manage their interactions.
+     * Works as a state machine: the transport feeds it one complete line at a time
+     * and each state decides what the line means and which prompt comes next.
+     * Clients that negotiated the binary protocol skip the menus and send frames instead.
      */
-    static class ClientHandler implements Runnable {
+    static class ClientHandler {
+        // Where the client currently is in the menus
+        private enum State {
+            USERNAME, LOGIN_PASSWORD, REGISTER_PASSWORD, AUTHENTICATING,
+            AWAITING_NODE,
+            MAIN_MENU,
+            JOIN_ROOM_NAME, JOIN_ROOM_PASSWORD,
+            CREATE_ROOM_NAME, CREATE_ROOM_PASSWORD,
+            IN_ROOM,
+            FRIEND_MENU, ADD_FRIEND, PRIVATE_TARGET, IN_PRIVATE_CHAT,
+            BINARY,
+            PARKED,     // Connection dropped, waiting for the client to resume
+            CLOSED
+        }
+
         // Network communication
-        private final Socket socket;            // Client connection socket
-        private BufferedReader in;              // Input stream from client, client --> server
-        private PrintWriter out;                // Output stream to client, server --> client
+        private volatile Connection connection; // Transport to the client, replaced when the session is resumed
+        private volatile State state = State.USERNAME;
+        private boolean authenticated = false;
+        private volatile boolean binary = false;   // Speaks frames instead of lines
+        private boolean compressed = false;         // Connection negotiated deflate
 
         // User information
         private String username;                // Unique user identifier
         private ChatRoom currentRoom = null;    // Currently joined chatroom
-        private final Set<String> friends = new HashSet<>();    // User's friend list
-        private String privateTarget = null;    // Current private chat recipient
+        private int userId = -1;                // UserRegistry id, known from login on; friends are kept in friendGraph
+        private String privateTarget = null;                    // Current private chat recipient
+
+        private long loginStart;                // When the password arrived, for the login time metric
+
+        // Lines or frames that arrived while a password was being hashed, replayed afterwards
+        private final ArrayDeque<Runnable> deferredInput = new ArrayDeque<>();
+        private final ArrayDeque<Integer> deferredSizes = new ArrayDeque<>();   // Bytes of each deferred input
+        private int deferredBytes;
+
+        // Values carried from one prompt to the next
+        private ChatRoom pendingRoom;           // Room picked before its password prompt
+        private String pendingRoomName;         // Name of the room being created
+        private long chatKey;                   // History key of the open private chat
+        private int historyCursor;              // Index of the oldest DM shown so far, for /more
+        private int mailSent;                   // Next mail id to push, everything below is in flight or acknowledged
+        private boolean ackExplained;           // Text clients were told about /ack
+        private final AtomicBoolean mailScheduled = new AtomicBoolean();
+
+        // Flood protection
+        private final TokenBucket rate = new TokenBucket(messageRate, messageBurst);
+        private final TokenBucket floodAllowance = new TokenBucket(messageRate, floodLimit);  // Taken by each dropped message
+        private boolean throttled;              // Told that messages are being dropped, until one gets through again
+
+        // Resumption: output is numbered and kept from the token on, so a reconnect gets exactly what it missed
+        private final ReentrantLock outputLock = new ReentrantLock();  // Orders the replay buffer with the outbound queue
+        private String token;                   // Resume token, null until login or when resumption is off
+        private ReplayBuffer replay;
+        private long droppedBefore;             // Queue drops when numbering started on this connection
+        private State parkedIn;                 // Where the client was when the connection dropped
+        private long parkings;                  // Bumped on every park and resume, so a stale expiry does nothing
+
+        ClientHandler(Connection connection) {
+            this.connection = connection;
+        }
 
-        public ClientHandler(Socket socket) {
-            this.socket = socket;   // Stores the client connection socket
+        // Send one line to this client, binary clients get it as a NOTICE frame
+        void send(String line) {
+            send(binary ? Frames.encode(Frames.NOTICE, line) : Connection.encode(line));
         }
 
-        @Override
-        public void run() {
+        // Send an already encoded line or frame, shared with other clients
+        void send(ByteBuffer encodedLine) {
+            outputLock.lock();
             try {
-                // When new client connects
-                System.out.println("\nNew client connected from: " + socket.getInetAddress().getHostAddress());
+                if (replay != null) {
+                    replay.append(encodedLine);
+                }
+                connection.send(encodedLine);
+            } finally {
+                outputLock.unlock();
+            }
+        }
 
-                setupStreams();
-                
-                if (!authenticateUser()) {
-                    System.out.println("Connection closed during authentication");
-                    return;
+        OutboundQueue outboundQueue() {
+            return connection.outboundQueue();
+        }
+
+        // Called by the transport once it is ready to talk
+        void start() {
+            // When new client connects
+            Log.info("client_connected", "addr", connection.remoteAddress());
+            promptUsername();
+        }
+
+        // Called by the transport for every line received from the client
+        void onLine(String line) {
+            if (line.equals(PONG)) return;      // Only there to keep the connection alive
+            // Anything longer could not be passed on in a frame, names are held to less than this too
+            if (Frames.utf8Length(line) > Frames.MAX_TEXT_BYTES) {
+                send("[Server] Input too long (max " + Frames.MAX_TEXT_BYTES + " bytes), ignored.");
+                return;
+            }
+            // Text clients acknowledge with /ack the mail they were shown, whatever menu they are in
+            if (authenticated && !binary && line.trim().equalsIgnoreCase(ACK)) {
+                if (mailSent > mailbox.acknowledged(username)) {
+                    mailbox.acknowledge(username, mailSent - 1);
+                    send("[Server] Messages marked as read.");
+                    pushMail();
+                } else {
+                    send("[Server] No unread messages.");
+                }
+                return;
+            }
+            switch (state) {
+                case USERNAME: authenticateUser(line); break;
+                case LOGIN_PASSWORD: verifyPassword(line); break;
+                case REGISTER_PASSWORD: registerPassword(line); break;
+                case AUTHENTICATING:
+                case AWAITING_NODE: defer(() -> onLine(line), (byte) 0, Frames.utf8Length(line)); break;
+                case MAIN_MENU: handleMainMenu(line); break;
+                case JOIN_ROOM_NAME: handleJoinRoomName(line); break;
+                case JOIN_ROOM_PASSWORD: handleJoinRoomPassword(line); break;
+                case CREATE_ROOM_NAME: handleCreateRoomName(line); break;
+                case CREATE_ROOM_PASSWORD: handleCreateRoomPassword(line); break;
+                case IN_ROOM: handleRoomMessage(line); break;
+                case FRIEND_MENU: handleFriendMenu(line); break;
+                case ADD_FRIEND: addFriend(line); break;
+                case PRIVATE_TARGET: startPrivateChat(line); break;
+                case IN_PRIVATE_CHAT: handlePrivateMessage(line); break;
+                case BINARY: break;     // Only frames from here on
+                case CLOSED: break;
+            }
+        }
+
+        // Called by the transport exactly once per connection, after it is gone
+        void onDisconnect() {
+            releaseSlot();
+            if (state != State.CLOSED && token != null && replayIntact()) {
+                park();     // Client went away without /exit, it may come back
+                return;
+            }
+            if (state != State.CLOSED) {
+                // Client went away without /exit
+                if (!authenticated) {
+                    Log.info("disconnected", "stage", "authentication", "addr", connection.remoteAddress());
+                } else {
+                    Log.info("disconnected", "user", username);
+                }
+                state = State.CLOSED;
+            }
+            cleanup(); // Ensure that client is removed and resources closed
+        }
+
+        // Ends the session from the server side
+        private void disconnect() {
+            state = State.CLOSED;
+            connection.close();
+        }
+
+        // ===== Authentication =====
+
+        private void promptUsername() {
+            state = State.USERNAME;
+            send("Enter username (or /exit to quit):");
+        }
+
+        // Authenticate existing users or registers new users with password
+        private void authenticateUser(String input) {
+            // Exit condition
+            if (input.trim().equalsIgnoreCase("/exit")) {
+                Log.info("exit", "stage", "authentication");
+                send("[Server] Goodbye! Disconnecting...");
+                disconnect();
+                return;
+            }
+
+            // Compression comes first, then the client carries on as usual over the deflated streams
+            if (input.equals(COMPRESS)) {
+                if (compressed || OutputDeflater.level == 0) {
+                    send("[Server] Compression is not available.");
+                } else {
+                    compressed = true;
+                    send(COMPRESSED);
+                    connection.compress();
                 }
+                promptUsername();
+                return;
+            }
 
-                System.out.println("\nUser '"+ username + "' has joined the server.");
+            // Binary clients send this instead of a username
+            if (input.equals(Frames.NEGOTIATE)) {
+                switchToBinary();
+                return;
+            }
 
-                // Main interaction loop
-                while (true) {
-                    showMainMenu(); // Display options
-                    String choice = in.readLine();
+            // So does a client reconnecting after its connection dropped
+            if (input.startsWith(RESUME + " ")) {
+                resumeSession(input);
+                return;
+            }
 
-                    // Handles empty input
-                    if (choice == null) {
-                        throw new IOException("Client disconnected");
-                    }
-                    
-                    choice = choice.trim();
-
-                    if (choice.equals("/exit")) {
-                        out.println("[Server] Goodbye!");
-                        out.flush();
-                        
-                        socket.close();
-                        
-                        System.out.println("User '" + username + "' disconnected via /exit");
-                        return;
-                    }
+            username = input.trim();
+            // Handle empty input
+            if (username.isEmpty()) {
+                send("Username cannot be empty. Please try again.");
+                promptUsername();
+                return;
+            }
+            if (Frames.utf8Length(username) > Frames.MAX_NAME_BYTES) {
+                send("Username is too long (max " + Frames.MAX_NAME_BYTES + " bytes). Please try again.");
+                username = null;
+                promptUsername();
+                return;
+            }
+
+            // Handle existing username, or one that another login is using right now
+            if (nameTaken(username) || pendingLogins.putIfAbsent(username, this) != null) {
+                send("The username is already taken. Please try again.");
+                username = null;
+                promptUsername();
+                return;
+            }
+
+            // For existing user, verify password, otherwise register
+            if (users.exists(username)) {
+                state = State.LOGIN_PASSWORD;
+                send("Enter password:");
+            } else {
+                state = State.REGISTER_PASSWORD;
+                send("New user. Set password:");
+            }
+        }
+
+        private void verifyPassword(String password) {
+            if (password.trim().isEmpty()) {
+                loginFailed("Password cannot be empty. Please try again.");
+                return;
+            }
+
+            // Hash on the worker pool, the result comes back on this session's own thread
+            state = State.AUTHENTICATING;
+            loginStart = System.nanoTime();
+            passwordHasher.verify(password, users.hash(users.id(username))).whenComplete((valid, error) ->
+                    connection.execute(() -> {
+                        if (state != State.AUTHENTICATING) return;     // Disconnected meanwhile
+                        Metrics.loginTime.recordSince(loginStart);
+                        if (error != null) {
+                            authenticationFailed(error);
+                        } else if (!valid) {
+                            loginFailed("Incorrect password.");
+                        } else {
+                            loginSuccessful();
+                        }
+                        replayDeferredInput();
+                    }));
+        }
+
+        private void registerPassword(String password) {
+            if (password.trim().isEmpty()) {
+                loginFailed("Password cannot be empty. Please try again.");
+                return;
+            }
+
+            state = State.AUTHENTICATING;
+            loginStart = System.nanoTime();
+            passwordHasher.hash(password).whenComplete((hash, error) ->
+                    connection.execute(() -> {
+                        if (state != State.AUTHENTICATING) return;     // Disconnected meanwhile
+                        Metrics.loginTime.recordSince(loginStart);
+                        if (error != null) {
+                            authenticationFailed(error);
+                        } else if (users.register(username, hash) < 0) {
+                            // The reservation only covers this node, another one registered the name first
+                            loginFailed("The username is already taken.");
+                        } else {
+                            Metrics.registrations.increment();
+                            if (cluster != null) {
+                                cluster.accountCreated(username, hash);
+                            }
+                            loginSuccessful();
+                        }
+                        replayDeferredInput();
+                    }));
+        }
+
+        private void authenticationFailed(Throwable error) {
+            if (error instanceof RejectedExecutionException) {
+                loginFailed("[Server] Too many logins right now. Please try again.");
+            } else {
+                Log.error("login_error", "user", username, "error", error);
+                loginFailed("[Server] Login failed. Please try again.");
+            }
+        }
+
+        // Give the reserved username back and start over
+        private void loginFailed(String reason) {
+            Metrics.loginFailures.increment();
+            pendingLogins.remove(username, this);
+            username = null;
+            if (binary) {
+                state = State.BINARY;
+                send(Frames.ack(Frames.LOGIN, false, reason));
+            } else {
+                send(reason);
+                promptUsername();
+            }
+        }
+
+        // Keep input for after the hashing or the call to another node; a client that keeps streaming
+        // meanwhile would pile it up here without limit, so past a few inputs it is disconnected
+        private void defer(Runnable input, byte requestType, int bytes) {
+            if (deferredInput.size() >= MAX_DEFERRED_INPUTS || deferredBytes + bytes > MAX_DEFERRED_BYTES) {
+                Log.warn("deferred_input_overflow", "user", username, "addr", connection.remoteAddress());
+                deferredInput.clear();
+                deferredSizes.clear();
+                deferredBytes = 0;
+                refuse(requestType, "Too much input while waiting, disconnecting.");
+                disconnect();
+                return;
+            }
+            deferredInput.add(input);
+            deferredSizes.add(bytes);
+            deferredBytes += bytes;
+        }
+
+        // Feed input sent ahead during hashing or a call to another node, stopping if another one starts
+        private void replayDeferredInput() {
+            while (!deferredInput.isEmpty() && state != State.AUTHENTICATING && state != State.AWAITING_NODE
+                    && state != State.CLOSED) {
+                deferredBytes -= deferredSizes.poll();
+                deferredInput.poll().run();
+            }
+        }
+
+        // Registration complete
+        private void loginSuccessful() {
+            // Logging in again instead of resuming ends the dropped session, unless it was resumed meanwhile
+            ClientHandler dropped = clients.get(username);
+            if (dropped != null && dropped != this && !dropped.expire(0)) {
+                loginFailed("The username is already taken.");
+                return;
+            }
+            Metrics.logins.increment();
+            authenticated = true;
+            clients.put(username, this); // Register client
+            pendingLogins.remove(username, this);
+            userId = users.id(username);
+            // Friends outlive sessions, hear about the ones added earlier again
+            friendGraph.forEachFollowing(userId, friend -> presence.follow(users.name(friend), this));
+            presence.changed(username, true);
+            if (cluster != null) {
+                cluster.userOnline(username);
+            }
+            Log.info("login", "user", username, "addr", connection.remoteAddress());
+            mailSent = mailbox.acknowledged(username);
+            if (binary) {
+                state = State.BINARY;
+                send(Frames.ack(Frames.LOGIN, true, "Welcome " + username));
+            } else {
+                send("Login successful! Welcome " + username);
+            }
+            if (resumeGraceMillis > 0) {
+                issueToken();
+            }
+            if (!binary) {
+                showMainMenu();
+            }
+            pushMail();     // Whatever arrived while offline
+        }
+
+        // ===== Session resumption =====
+
+        // Hand the client a resume token; output is numbered and kept from here on
+        private void issueToken() {
+            byte[] random = new byte[18];
+            tokenSource.nextBytes(random);
+            outputLock.lock();
+            try {
+                token = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+                sessions.put(token, this);
+                // Straight to the connection, the token itself is not part of the numbered output
+                connection.send(binary ? Frames.encode(Frames.SESSION, token) : Connection.encode(SESSION_PREFIX + token));
+                replay = new ReplayBuffer(replayBytes);
+                droppedBefore = connection.outboundQueue().dropped();
+            } finally {
+                outputLock.unlock();
+            }
+        }
+
+        // Whether the client got everything the replay buffer numbered, so its byte count matches ours.
+        // A drop policy leaves a gap the client can't see; overflowing under DISCONNECT only cuts
+        // the stream short, which a resume makes up for
+        private boolean replayIntact() {
+            OutboundQueue queue = connection.outboundQueue();
+            return queue.policy() == OutboundQueue.OverflowPolicy.DISCONNECT || queue.dropped() == droppedBefore;
+        }
+
+        boolean isParked() {
+            return state == State.PARKED;
+        }
+
+        // The connection dropped after login: keep rooms, friends and mail for the grace period
+        private void park() {
+            long parking;
+            outputLock.lock();
+            try {
+                parkedIn = state;
+                state = State.PARKED;
+                parking = ++parkings;
+            } finally {
+                outputLock.unlock();
+            }
+            Metrics.sessionsParked.increment();
+            Log.info("session_parked", "user", username, "grace_ms", resumeGraceMillis);
+            sessionExpiry.schedule(() -> {
+                if (expire(parking)) {
+                    Metrics.sessionsExpired.increment();
+                    Log.info("session_expired", "user", username);
+                }
+            }, resumeGraceMillis, TimeUnit.MILLISECONDS);
+        }
+
+        // End a parked session for good; `parking` names the park it is meant for, 0 for whichever.
+        // False when the session is not parked (any more), e.g. because it was just resumed
+        private boolean expire(long parking) {
+            outputLock.lock();
+            try {
+                if (state != State.PARKED || (parking != 0 && parking != parkings)) return false;
+                state = State.CLOSED;
+            } finally {
+                outputLock.unlock();
+            }
+            cleanup();
+            return true;
+        }
+
+        // "/resume <token> <offset>" from a new connection: hand it over to the dropped session
+        private void resumeSession(String input) {
+            String[] parts = input.trim().split("\\s+");
+            ClientHandler session = parts.length == 3 ? sessions.get(parts[1]) : null;
+            long offset;
+            try {
+                offset = parts.length == 3 ? Long.parseLong(parts[2]) : -1;
+            } catch (NumberFormatException e) {
+                offset = -1;
+            }
+            String refusal = session == null ? EXPIRED : session.resume(connection, offset);
+            if (refusal != null) {
+                send(refusal);
+                promptUsername();
+                return;
+            }
+            state = State.CLOSED;   // Only stood in until the transport was handed over
+        }
+
+        // Take over a new connection and replay what the client missed after `offset`, null if that worked
+        private String resume(Connection fresh, long offset) {
+            outputLock.lock();
+            try {
+                if (state == State.CLOSED) {
+                    return EXPIRED;
+                }
+                if (state != State.PARKED) {
+                    // The old connection is half-open; drop it, its disconnect parks the session for the retry
+                    connection.close();
+                    return "[Server] Session still connected. Try again.";
+                }
+                List<ByteBuffer> missed = replay.since(offset);
+                if (missed == null || !replayIntact()) {
+                    return EXPIRED;     // More output than the replay buffer holds, the reaper ends it
+                }
+                connection = fresh;
+                droppedBefore = fresh.outboundQueue().dropped();
+                fresh.attach(this);
+                parkings++;
+                state = parkedIn;
+                fresh.send(Connection.encode(RESUMED));
+                if (binary) {
+                    fresh.switchToBinary();
+                }
+                for (ByteBuffer message : missed) {
+                    fresh.send(message);
+                }
+            } finally {
+                outputLock.unlock();
+            }
+            Metrics.sessionsResumed.increment();
+            Log.info("session_resumed", "user", username, "addr", fresh.remoteAddress());
+            pushMail();     // Whatever arrived while away
+            return null;
+        }
+
+        // ===== Main menu =====
+
+        // Displays the main menu options
+        private void showMainMenu() {
+            state = State.MAIN_MENU;
+            send("\n=== MAIN MENU ===");
+            send("1. Join a Room");
+            send("2. Create a Room");
+            send("3. Friend Menu");
+            send("Type /exit to quit");
+            send("Enter:");
+        }
+
+        private void handleMainMenu(String choice) {
+            choice = choice.trim();
+
+            if (choice.equals("/exit")) {
+                send("[Server] Goodbye!");
+                Log.info("exit", "user", username);
+                disconnect();
+                return;
+            }
+
+            // Handles user's choice
+            switch (choice) {
+                case "1": handleJoinRoom(); break;
+                case "2": handleCreateRoom(); break;
+                case "3": showFriendMenu(); break;
+                default:
+                    send("Invalid option. Please type 1, 2, 3 or /exit to exit.");
+                    showMainMenu();
+            }
+        }
+
+        // ===== Rooms =====
+
+        // Show all existing rooms
+        private boolean showAllRooms() {
+            if (rooms.isEmpty()) {
+                send("No rooms available. Please create one first.");
+                return false;
+            }
+            send("\nAvailable Rooms:\n");
+            rooms.forEach((name, room) -> 
+                send("- " + name + " (" + room.members.size() + " members)"));
+            return true;
+        }
+
+        // Join an existing room after entering a correct password 
+        private void handleJoinRoom() {
+            if (!showAllRooms()) {
+                showMainMenu();
+                return;
+            }
+            promptJoinRoomName();
+        }
+
+        private void promptJoinRoomName() {
+            state = State.JOIN_ROOM_NAME;
+            send("\nEnter room name (or /back to cancel):");
+        }
+
+        private void handleJoinRoomName(String roomName) {
+            roomName = roomName.trim();
+
+            // If input is /back, go back to main menu
+            if (roomName.equalsIgnoreCase("/back")) {
+                showMainMenu();
+                return;
+            }
+
+            // Handles empty input
+            if (roomName.isEmpty()) {
+                send("Room name cannot be empty. Please try again.");
+                promptJoinRoomName();
+                return;
+            }
+
+            // Handles non-existing room 
+            ChatRoom room = rooms.get(roomName);
+            if (room == null) {
+                send("Room doesn't exist! Please try again.");
+                promptJoinRoomName();
+                return;
+            }
+
+            pendingRoom = room;
+            promptJoinRoomPassword();
+        }
+
+        private void promptJoinRoomPassword() {
+            state = State.JOIN_ROOM_PASSWORD;
+            send("Enter password (or /back to cancel):");
+        }
+
+        // Password can be empty, as it simulate a public chat room
+        private void handleJoinRoomPassword(String password) {
+            password = password.trim();
+
+            // If input is /back, go back to main menu
+            if (password.equalsIgnoreCase("/back")) {
+                send("Canceled joining room...");
+                showMainMenu();
+                return;
+            }
+            if (Frames.utf8Length(password) > Frames.MAX_PASSWORD_BYTES) {
+                send("Password is too long (max " + Frames.MAX_PASSWORD_BYTES + " bytes). Try again.");
+                promptJoinRoomPassword();
+                return;
+            }
+
+            // Rooms homed on another node check the password there
+            if (pendingRoom.home != null) {
+                String roomName = pendingRoom.roomName;
+                pendingRoom = null;
+                joinRemoteRoom(roomName, false, password);
+                return;
+            }
+
+            // Verify room password
+            if (!pendingRoom.password.equals(password)) {
+                send("Wrong password! Try again.");
+                promptJoinRoomPassword();
+                return;
+            }
+
+            ChatRoom room = pendingRoom;
+            pendingRoom = null;
+            enterRoom(room); // Enter chat room
+        }
+
+        // Enter a room, afterwards every line is a message for the room
+        private void enterRoom(ChatRoom room) {
+            // Check room capacity and take a slot in one step, then catch up on the recent messages
+            if (!room.enter(this, () -> send("\nYou're in '" + room.roomName + "'. Type /back to leave."))) {
+                send("[Server] Room is full (max " + maxUsersPerRoom + " users)");
+                showMainMenu();
+                return;
+            }
+
+            // Proceed with joining
+            currentRoom = room;
+            room.broadcast("joined the room", this);
+            state = State.IN_ROOM;
+        }
+
+        // Room message loop
+        private void handleRoomMessage(String message) {
+            // If user message is /back, leave chat room  
+            if (message.equalsIgnoreCase("/back")) {
+                leaveCurrentRoom();
+                showMainMenu();
+                return;
+            }
+
+            // Handles empty messages
+            if (message.trim().isEmpty()) {
+                send("(Empty message not sent)");
+                return;
+            }
+            if (admit(currentRoom, Frames.MESSAGE)) {
+                currentRoom.broadcast(message, this);
+            }
+        }
 
-                    // Handles user's choice
-                    switch (choice) {
-                        case "1": handleJoinRoom(); break;
-                        case "2": handleCreateRoom(); break;
-                        case "3": handleFriendMenu(); break;               
-                        default: out.println("Invalid option. Please type 1, 2, 3 or /exit to exit.");
-                    }
-                }
-            } catch (IOException e) {
-                System.out.println("\n" + (username != null ? username : "Client") + " disconnected.");   
-            } finally {
-                cleanup(); // Ensure that client is removed and resources closed
+        // Create a new chat room
+        private void handleCreateRoom() {
+            // Check MAX_ROOMS limit, in a cluster the room's home node checks its own
+            if (cluster == null && roomCount.get() >= maxRooms) {
+                send("[Server] Maximum rooms (" + maxRooms + ") reached. Cannot create more.");
+                showMainMenu();
+                return;
             }
+            promptCreateRoomName();
         }
 
-        // Initializes input and output streams for communication
-        private void setupStreams() throws IOException {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+        private void promptCreateRoomName() {
+            state = State.CREATE_ROOM_NAME;
+            send("Enter new room name (or /back to cancel):");
         }
 
-        // Authenticate existing users or registers new users with password
-        private boolean authenticateUser() throws IOException {
-            while (true) {
-                out.println("Enter username (or /exit to quit):");
-                String input = in.readLine();
+        private void handleCreateRoomName(String roomName) {
+            roomName = roomName.trim();
+                
+            // If input is /back, go back to main menu
+            if (roomName.equalsIgnoreCase("/back")) {
+                showMainMenu();
+                return;
+            }
 
-                // Exit condition
-                if (input == null) return false;
+            // If input is empty, prompt user to input again
+            if (roomName.isEmpty()) {
+                send("Room name cannot be empty. Please try again.\n");
+                promptCreateRoomName();
+                return;
+            }
+            if (Frames.utf8Length(roomName) > Frames.MAX_NAME_BYTES) {
+                send("Room name is too long (max " + Frames.MAX_NAME_BYTES + " bytes). Please try again.");
+                promptCreateRoomName();
+                return;
+            }
 
-                if (input.trim().equalsIgnoreCase("/exit")) {
-                    System.out.println("User disconnected during authentication");
-                    out.println("[Server] Goodbye! Disconnecting...");
-                    out.flush();
-                    return false;
-                }
-                
-                username = input.trim();
-                // Handle empty input
-                if (username.isEmpty()) {
-                    out.println("Username cannot be empty. Please try again.");
-                    continue;
-                }
+            // If room name already exists, prompt user to input again
+            if (rooms.containsKey(roomName)) {
+                send("Room already exists. Choose another name.");
+                promptCreateRoomName();
+                return;
+            }
 
-                synchronized (userPasswords) {
-                    // Handle existing username 
-                    if (clients.containsKey(username)) {
-                        out.println("The username is already taken. Please try again.");
-                        continue;
-                    }
+            pendingRoomName = roomName;
+            state = State.CREATE_ROOM_PASSWORD;
+            send("Set password for '" + roomName + "':");
+        }
 
-                    // For existing user, verify password
-                    if (userPasswords.containsKey(username)) {
-                        out.println("Enter password:");
-                        String password = in.readLine();
+        private void handleCreateRoomPassword(String password) {
+            password = password.trim();
+            if (Frames.utf8Length(password) > Frames.MAX_PASSWORD_BYTES) {
+                send("Password is too long (max " + Frames.MAX_PASSWORD_BYTES + " bytes).");
+                send("Set password for '" + pendingRoomName + "':");
+                return;
+            }
 
-                        if (password == null || password.trim().isEmpty()) {
-                            out.println("Password cannot be empty. Please try again.");
-                            continue;
-                        }
-                        
-                        if (userPasswords.get(username).equals(hashPassword(password))) {
-                            break; // Successful login
+            if (!homedHere(pendingRoomName)) {
+                String roomName = pendingRoomName;
+                pendingRoomName = null;
+                joinRemoteRoom(roomName, true, password);
+                return;
+            }
+
+            // Reserve one of the room slots first, then claim the name
+            if (!reserveRoomSlot()) {
+                send("[Server] Maximum rooms (" + maxRooms + ") reached. Cannot create more.");
+                showMainMenu();
+                return;
+            }
+            ChatRoom newRoom = new ChatRoom(pendingRoomName, password);
+            if (rooms.putIfAbsent(pendingRoomName, newRoom) != null) {
+                // Another user created a room with this name while we were typing the password
+                roomCount.decrementAndGet();
+                send("Room already exists. Choose another name.");
+                promptCreateRoomName();
+                return;
+            }
+            roomCreated(newRoom);
+            pendingRoomName = null;
+            enterRoom(newRoom);
+        }
+
+        // Join, or create and join, a room homed on another node. The home checks the password
+        // and capacity; input that arrives meanwhile waits like it does during hashing.
+        private void joinRemoteRoom(String roomName, boolean create, String password) {
+            String home = cluster.homeOf(roomName);
+            state = State.AWAITING_NODE;
+            cluster.requestRoom(home, create, roomName, password, username).whenComplete((refusal, error) ->
+                    connection.execute(() -> {
+                        if (state != State.AWAITING_NODE) {
+                            // Disconnected meanwhile, give a granted seat back
+                            if (error == null && refusal == null) cluster.leaveRoom(home, roomName, username);
+                            joinLostWhileParked(roomName);
+                            return;
                         }
-                        out.println("Incorrect password.");
-
-                    } else {
-                        // New user registration
-                        out.println("New user. Set password:");
-                        String password = in.readLine();
-                        if (password == null || password.trim().isEmpty()) {
-                            out.println("Password cannot be empty. Please try again.");
-                            continue;
+                        String reason = error != null ? "Room server " + home + " is unavailable." : refusal;
+                        if (reason != null) {
+                            if (binary) {
+                                state = State.BINARY;
+                                send(Frames.ack(Frames.JOIN, false, reason));
+                            } else {
+                                send("[Server] " + reason);
+                                showMainMenu();
+                            }
+                        } else {
+                            ChatRoom room = rooms.computeIfAbsent(roomName, name -> new ChatRoom(name, null, home));
+                            leaveCurrentRoom();
+                            // A replica only has the messages it relayed since its members here joined
+                            room.enter(this, () -> send(binary ? Frames.ack(Frames.JOIN, true, "You're in '" + roomName + "'")
+                                    : Connection.encode("\nYou're in '" + roomName + "'. Type /back to leave.")));
+                            currentRoom = room;
+                            room.broadcast("joined the room", this);
+                            state = binary ? State.BINARY : State.IN_ROOM;
                         }
+                        replayDeferredInput();
+                    }));
+        }
 
-                        userPasswords.put(username, hashPassword(password));
-                        break;
-                    }
+        // A parked session was waiting for a room: it resumes at the menu instead, told why
+        private void joinLostWhileParked(String roomName) {
+            outputLock.lock();
+            try {
+                if (state != State.PARKED || parkedIn != State.AWAITING_NODE) return;
+                if (binary) {
+                    parkedIn = State.BINARY;
+                    send(Frames.ack(Frames.JOIN, false, "Connection lost while joining."));
+                } else {
+                    parkedIn = State.MAIN_MENU;
+                    send("[Server] Connection lost while joining '" + roomName + "'. Back at the main menu, enter:");
                 }
+            } finally {
+                outputLock.unlock();
             }
-
-            // Registration complete
-            clients.put(username, this); // Register client
-            out.println("Login successful! Welcome " + username);
-            return true;
         }
 
-        // Displays the main menu options
-        private void showMainMenu() {
-            out.println("\n=== MAIN MENU ===");
-            out.println("1. Join a Room");
-            out.println("2. Create a Room");
-            out.println("3. Friend Menu");
-            out.println("Type /exit to quit");
-            out.println("Enter:");
-            out.flush();
+        // Leave the current room and notify others
+        private void leaveCurrentRoom() {
+            if (currentRoom != null) {
+                currentRoom.members.leave(this);
+                currentRoom.broadcast("left the room", this);
+                if (currentRoom.home != null) {
+                    cluster.leaveRoom(currentRoom.home, currentRoom.roomName, username);   // Free the seat on the home
+                }
+                currentRoom = null;
+                if (!binary) {
+                    send("[Server] You left the room");     // Binary clients get an ACK instead
+                }
+            }
         }
 
-        // Show all existing rooms
-        private boolean showAllRooms() {
-            if (rooms.isEmpty()) {
-                out.println("No rooms available. Please create one first.");
-                return false;
-            }
-            out.println("\nAvailable Rooms:\n");
-            rooms.forEach((name, room) -> 
-                out.println("- " + name + " (" + room.members.size() + " members)"));
-            out.flush();
-            return true;
+        // ===== Friends =====
+
+        // Shows the friend menu: viewing, adding, and messaging friends
+        private void showFriendMenu() {
+            state = State.FRIEND_MENU;
+            send("\n=== FRIEND MENU ===");
+            send("1. View friends");
+            send("2. Add friend");
+            send("3. Message friend");
+            send("4. Back to main");
+            send("Enter: ");
         }
 
-        // Join an existing room after entering a correct password 
-        private void handleJoinRoom() throws IOException {
-            if (!showAllRooms()) {
+        private void handleFriendMenu(String input) {
+            input = input.trim();
+
+            // Check for empty input
+            if (input.isEmpty()) {
+                send("Input cannot be empty. Please enter a Friend Menu option.");
+                showFriendMenu();
                 return;
             }
-            while (true) {
 
-                out.println("\nEnter room name (or /back to cancel):");
-                String roomName = in.readLine().trim();
+            // Process user choice
+            switch (input) {
+                case "1":
+                    showFriends();
+                    showFriendMenu();
+                    break;
+                case "2": promptAddFriend(); break;
+                case "3": promptPrivateTarget(); break;
+                case "4": showMainMenu(); break;
+                case "/exit":
+                    send("[Server] Goodbye! Disconnecting ...");
+                    Log.info("exit", "user", username);
+                    disconnect();
+                    break;
+                default:
+                    send("Invalid option. Please enter 1, 2, 3, or 4.");
+                    showFriendMenu();
+            }
+        }
 
-                // If input is /back, go back to main menu
-                if (roomName.equalsIgnoreCase("/back")) return;
+        // Show list of friends
+        private void showFriends() {
+            if (friendGraph.followingCount(userId) == 0) {
+                send("You have no friends yet.");
+                return;
+            }
+            send("\n=== Your Friends ===");
+            
+            // Active status 
+            friendGraph.forEachFollowing(userId, friendId -> {
+                String friend = users.name(friendId);
+                boolean isOnline = isOnline(friend);
+                send("- " + friend + " [" + (isOnline ? "Online" : "Offline") + "]");
+            });
+        }
 
-                // Handles empty input
-                if (roomName.isEmpty()) {
-                    out.println("Room name cannot be empty. Please try again.");
-                    continue;
-                }
+        private void promptAddFriend() {
+            state = State.ADD_FRIEND;
+            send("\nEnter your friend's username (or /back to cancel):");
+        }
 
-                // Handles non-existing room 
-                ChatRoom room = rooms.get(roomName);
-                if (room == null) {
-                    out.println("Room doesn't exist! Please try again.");
-                    continue;
-                }
+        // Add another registered user to the friend list
+        private void addFriend(String friend) {
+            friend = friend.trim();
 
-                // Password verification
-                while (true) { 
-                    out.println("Enter password (or /back to cancel):");
-                    String password = in.readLine().trim();
+            // If input is /back, return back to friend menu
+            if (friend.equalsIgnoreCase("/back")) {
+                send("Canceling Adding Friends...");
+                showFriendMenu();
+                return;
+            }
+                
+            // Check for empty input
+            if (friend.isEmpty()) {
+                send("Username cannot be empty. Please try again.");
+                promptAddFriend();
+                return;
+            }
+                
+            // Check if friend exist even if not online
+            int friendId = users.id(friend);
+            if (friendId < 0) {
+                send("User does not exist. Please try again.");
+            } else if (friendId == userId) {
+                send("You can't add yourself!");
+            } else if (!friendGraph.add(userId, friendId)) {
+                send(friend + " is already in your friend list.");
+            } else {
+                presence.follow(friend, this);
+                friendAdded(username, friend);
+                send(friend + " has been added to your friend list.");
+                showFriendMenu();
+                return;
+            }
+            promptAddFriend();
+        }
 
-                    // Password can be empty, as it simulate a public chat room
-                    if (password == null) return;
+        // ===== Private chat =====
 
-                    // If input is /back, go back to main menu
-                    if (password.equalsIgnoreCase("/back")) {
-                        out.println("Canceled joining room...");
-                        return;
-                    }
+        private void promptPrivateTarget() {
+            state = State.PRIVATE_TARGET;
+            send("\nEnter your friend's username to chat with (or /back to cancel):");
+        }
 
-                    // Verify room password
-                    if (!room.password.equals(password)) {
-                        out.println("Wrong password! Try again.");
-                    } else {
-                        break;
-                    }
-                }
+        // Start a private chat with a friend
+        private void startPrivateChat(String target) {
+            target = target.trim();
 
-                enterRoom(room); // Enter chat room
-                break;
+            // Do /back to go back to menu
+            if (target.equalsIgnoreCase("/back")) {
+                send("Private chat cancelled...");
+                showFriendMenu();
+                return;
             }
-        }
-
-        // Enter a room and handle user messages
-        private void enterRoom(ChatRoom room) throws IOException {
-            // Check room capacity
-            synchronized (userRoomJoinHistory) {
-                int usersInThisRoom = 0;
-                // Count how many users are in this room (column scan)
-                for (int i = 0; i < MAX_USERS; i++) {
-                    if (userRoomJoinHistory[i][room.roomIndex]) {
-                        usersInThisRoom++;
-                    }
-                }
-                
-                // Enforce per-room limit
-                if (usersInThisRoom >= MAX_USERS_PER_ROOM) {
-                    out.println("[Server] Room is full (max " + MAX_USERS_PER_ROOM + " users)");
-                    return;
-                }
 
-                // Reserve a slot for this user
-                for (int i = 0; i < MAX_USERS; i++) {
-                    if (!userRoomJoinHistory[i][room.roomIndex]) {
-                        userRoomJoinHistory[i][room.roomIndex] = true;
-                        break;
-                    }
-                }
+            // Handles empty input
+            if (target.isEmpty()) {
+                send("Username cannot be empty. Please try again.");
+                promptPrivateTarget();
+                return;
             }
 
-            // Proceed with joining
-            currentRoom = room;
-            room.members.add(this); 
-            room.broadcast("joined the room", this);
-            out.println("\nYou're in '" + room.roomName + "'. Type /back to leave.");
+            // Handles non existing friend
+            int targetId = users.id(target);
+            if (targetId < 0 || !friendGraph.contains(userId, targetId)) {
+                send("Not in your friends list. Please try again.");
+                promptPrivateTarget();
+                return;
+            }
 
-            // Room message loop
-            String message;
-            while ((message = in.readLine()) != null) {
+            // When the friend is not connected to the server
+            if (!isOnline(target)) {
+                send("User is currently offline.");
+                showFriendMenu();
+                return;
+            }
 
-                // If user message is /back, leave chat room  
-                if (message.equalsIgnoreCase("/back")) {
-                    leaveCurrentRoom();
-                    break;
+            chatKey = ConversationHistory.key(userId, targetId);
+            
+            // Display the latest messages if available, older ones are paged in with /more
+            ConversationHistory.Page history = privateChats.latest(chatKey, historyPageSize);
+            historyCursor = history.firstIndex;
+            if (!history.entries.isEmpty()) {
+                send("\n--- Chat History ---");
+                for (MessageLog.Entry entry : history.entries) {
+                    send(entry.message);
                 }
-
-                // Handles empty messages
-                if (message.trim().isEmpty()) {
-                    out.println("(Empty message not sent)");
-                    continue;
+                send("-------------------");
+                if (historyCursor > 0) {
+                    send("(Type /more to see older messages)");
                 }
-                currentRoom.broadcast(message, this);
             }
+
+            // Start private chat session
+            privateTarget = target;
+            state = State.IN_PRIVATE_CHAT;
+            send("\n[Private chat with " + target + "] (type /back to leave the DMs)");
         }
 
-        // Create a new chat room
-        private void handleCreateRoom() throws IOException {
-            // Check MAX_ROOMS limit
-            synchronized (rooms) {
-                if (rooms.size() >= MAX_ROOMS) {
-                    out.println("[Server] Maximum rooms (" + MAX_ROOMS + ") reached. Cannot create more.");
-                    return;
-                }
+        private void handlePrivateMessage(String message) {
+            // If message is /back, leave DMs
+            if (message.equalsIgnoreCase("/back")) {
+                privateTarget = null;
+                showFriendMenu();
+                return;
             }
 
-            while (true) {
-                out.println("Enter new room name (or /back to cancel):");
-                String roomName = in.readLine();
+            // If message is /more, page back through older history
+            if (message.equalsIgnoreCase("/more")) {
+                showOlderMessages();
+                return;
+            }
 
-                // Handle client disconnect
-                if (roomName == null) {
-                    throw new IOException("Client disconnected during room creation");
-                }
+            // Check for empty input
+            if (message.trim().isEmpty()) {
+                send("(Empty message not sent)");
+                return;
+            }
+            if (!admit(null, Frames.DM)) {
+                return;
+            }
 
-                roomName = roomName.trim();
-                
-                // If input is /back, go back to main menu
-                if (roomName.equalsIgnoreCase("/back")) return;
+            // Store message in history
+            String formattedMsg = "[" + username + "]: " + message;
+            privateChats.append(chatKey, formattedMsg);
+            Metrics.directMessages.increment();
 
-                // If input is empty, prompt user to input again
-                if (roomName.isEmpty()) {
-                    out.println("Room name cannot be empty. Please try again.\n");
-                    continue;
-                }
+            // Deliver message, wherever the friend is connected
+            routePrivate(username, privateTarget, message);
+        }
 
-                // If room name already exists, prompt user to input again
-                synchronized (rooms) {
-                    if (rooms.containsKey(roomName)) {
-                        out.println("Room already exists. Choose another name.");
-                        continue;
-                    }
+        // Rate limits for one chat message, the client's own and then the room's. Going over the
+        // client's rate is reported once per run of dropped messages; a client that keeps sending
+        // at twice its rate or more runs out of flood allowance and is disconnected.
+        // A busy room is reported every time, it is nobody's fault
+        private boolean admit(ChatRoom room, byte requestType) {
+            if (!rate.tryAcquire()) {
+                Metrics.throttledMessages.increment();
+                if (floodLimit > 0 && !floodAllowance.tryAcquire()) {
+                    Metrics.floodDisconnects.increment();
+                    Log.warn("flood_disconnect", "user", username, "addr", connection.remoteAddress());
+                    refuse(requestType, "Disconnected for flooding.");
+                    disconnect();
+                } else if (!throttled) {
+                    throttled = true;
+                    refuse(requestType, "You're sending too fast, messages are dropped. Slow down.");
+                }
+                return false;
+            }
+            throttled = false;
+            if (room != null && !room.rate.tryAcquire()) {
+                Metrics.throttledRoomMessages.increment();
+                refuse(requestType, "Room is too busy, message not sent.");
+                return false;
+            }
+            return true;
+        }
 
-                    // Find available room index
-                    int roomIndex = rooms.size();
+        private void refuse(byte requestType, String reason) {
+            send(binary ? Frames.ack(requestType, false, reason) : Connection.encode("[Server] " + reason));
+        }
 
-                    out.println("Set password for '" + roomName + "':");
-                    String password = in.readLine();
+        // Friends that came online or went offline in the last presence batch; called from the presence thread
+        void presenceChanged(Map<String, Boolean> changes) {
+            if (binary) {
+                changes.forEach((friend, online) -> send(Frames.presence(friend, online)));
+                return;
+            }
+            StringBuilder line = new StringBuilder("[Server] ");
+            changes.forEach((friend, online) -> {
+                if (line.length() > 9) line.append(", ");
+                line.append(friend).append(online ? " is online" : " went offline");
+            });
+            send(line.toString());
+        }
 
-                    if (password == null) {
-                        throw new IOException("Client disconnected during password input");
-                    }
-                    password = password.trim();
+        // ===== Mail =====
 
-                    ChatRoom newRoom = new ChatRoom(roomName, password, roomIndex);
-                    rooms.put(roomName, newRoom);
-                    enterRoom(newRoom);
-                    break;
-                }
+        // New mail in this user's mailbox; pushed from the delivery thread, never from the sender's session
+        void mailArrived() {
+            if (mailScheduled.compareAndSet(false, true)) {
+                mailDelivery.execute(() -> {
+                    mailScheduled.set(false);
+                    connection.execute(this::pushMail);
+                });
             }
         }
 
-        // Leave the current room and notify others
-        private void leaveCurrentRoom() {
-            if (currentRoom != null) {
-                synchronized (userRoomJoinHistory) {
-                    // Free this user's slot in the room
-                    for (int i = 0; i < MAX_USERS; i++) {
-                        if (userRoomJoinHistory[i][currentRoom.roomIndex]) {
-                            userRoomJoinHistory[i][currentRoom.roomIndex] = false;
-                            break;
-                        }
+        // Send the mail not in flight yet. Binary clients acknowledge by protocol and keep at most
+        // MAIL_WINDOW unacknowledged; text clients get everything, and mail shown in the open
+        // conversation counts as read unless something before it is still unread
+        private void pushMail() {
+            if (!authenticated || state == State.CLOSED || state == State.PARKED) return;
+            int acked = mailbox.acknowledged(username);
+            int limit = binary ? acked + MAIL_WINDOW : Integer.MAX_VALUE;
+            for (Mailbox.Mail mail : mailbox.read(username, mailSent, limit)) {
+                if (binary) {
+                    send(Frames.dm(mail.from, mail.text, mail.id));
+                } else if (state == State.IN_PRIVATE_CHAT && mail.from.equals(privateTarget)) {
+                    send("[" + mail.from + "]: " + mail.text);      // Part of the open conversation
+                    if (mail.id == acked) {
+                        mailbox.acknowledge(username, mail.id);
+                        acked++;
                     }
+                } else {
+                    send("[DM from " + mail.from + "]: " + mail.text);
                 }
-        
-                    currentRoom.members.remove(this);
-                    currentRoom.broadcast("left the room", this);
-                    currentRoom = null;
-                    out.println("[Server] You left the room");
+                mailSent = mail.id + 1;
+            }
+            if (!binary && !ackExplained && mailSent > acked) {
+                ackExplained = true;
+                send("[Server] Type " + ACK + " once you have read your messages, unread ones are shown again next time you log in.");
             }
         }
 
-        // Handles viewing, adding, and messaging friends
-        private void handleFriendMenu() throws IOException {
-            while (true) {
-                out.println("\n=== FRIEND MENU ===");
-                out.println("1. View friends");
-                out.println("2. Add friend");
-                out.println("3. Message friend");
-                out.println("4. Back to main");
-                out.println("Enter: ");
-                out.flush();
-                
-                String input = in.readLine();
+        private void handleDeliveredFrame(int mailId) {
+            if (mailId < mailSent) {
+                mailbox.acknowledge(username, mailId);
+                pushMail();
+            }
+        }
 
-                // Check for client disconnect
-                if (input == null) {
-                    throw new IOException("Client disconnected during friend menu");
-                }
+        // Show the page of DMs before the oldest one shown so far
+        private void showOlderMessages() {
+            ConversationHistory.Page older = privateChats.before(chatKey, historyCursor, historyPageSize);
+            if (older.entries.isEmpty()) {
+                send("(No older messages)");
+                return;
+            }
+            historyCursor = older.firstIndex;
+            send("\n--- Older Messages ---");
+            for (MessageLog.Entry entry : older.entries) {
+                send(entry.message);
+            }
+            send("-------------------");
+        }
 
-                input = input.trim();
+        // ===== Binary protocol =====
 
-                // Check for empty input
-                if (input.isEmpty()) {
-                    out.println("Input cannot be empty. Please enter a Friend Menu option.");
-                    continue;
-                }
+        // Client asked for frames instead of menus
+        private void switchToBinary() {
+            send(Frames.ACCEPTED);      // Last text line of this session
+            binary = true;
+            connection.switchToBinary();
+            state = State.BINARY;
+        }
+
+        // Called by the transport for every frame received from a binary client
+        void onFrame(byte type, ByteBuffer payload) {
+            if (type == Frames.PING) return;    // Answer to a heartbeat, the transport already saw it arrive
+            if (state == State.AUTHENTICATING || state == State.AWAITING_NODE) {
+                defer(() -> onFrame(type, payload), type, payload.remaining());
+                return;
+            }
+            if (state != State.BINARY) return;
 
-                // Process user choice
-                switch (input) {
-                    case "1": showFriends(); break;
-                    case "2": addFriend(); break;
-                    case "3": startPrivateChat(); break;
-                    case "4": return;
-                    case "/exit":
-                        out.println("[Server] Goodbye! Disconnecting ...");
-                        out.flush();
-                        throw new IOException("Normal exit from friend menu");
-                    default: out.println("Invalid option. Please enter 1, 2, 3, or 4.");
+            if (!authenticated && type != Frames.LOGIN) {
+                send(Frames.ack(type, false, "Log in first."));
+                return;
+            }
+            try {
+                switch (type) {
+                    case Frames.LOGIN: handleLoginFrame(Frames.readString(payload), Frames.readString(payload)); break;
+                    case Frames.JOIN: handleJoinFrame(payload.get() != 0, Frames.readString(payload), Frames.readString(payload)); break;
+                    case Frames.LEAVE: handleLeaveFrame(); break;
+                    case Frames.MESSAGE: handleMessageFrame(Frames.readString(payload)); break;
+                    case Frames.DM: handleDmFrame(Frames.readString(payload), Frames.readString(payload)); break;
+                    case Frames.PRESENCE: handlePresenceFrame(Frames.readString(payload)); break;
+                    case Frames.DELIVERED: handleDeliveredFrame(payload.getInt()); break;
+                    default: send(Frames.ack(type, false, "Unknown frame type " + type));
                 }
+            } catch (BufferUnderflowException e) {
+                send(Frames.ack(type, false, "Malformed frame."));
             }
         }
 
-        // Show list of friends
-        private void showFriends() {
-            if (friends.isEmpty()) {
-                out.println("You have no friends yet.");
+        // Username and password in one go, then the same hashing as the text login
+        private void handleLoginFrame(String name, String password) {
+            if (authenticated) {
+                send(Frames.ack(Frames.LOGIN, false, "Already logged in."));
                 return;
             }
-            out.println("\n=== Your Friends ===");
-            
-            // Active status 
-            for (String friend : friends) {
-                boolean isOnline = clients.containsKey(friend);
-                out.println("- " + friend + " [" + (isOnline ? "Online" : "Offline") + "]");
+            name = name.trim();
+            if (name.isEmpty() || password.trim().isEmpty()) {
+                send(Frames.ack(Frames.LOGIN, false, "Username and password cannot be empty."));
+                return;
+            }
+            if (Frames.utf8Length(name) > Frames.MAX_NAME_BYTES) {
+                send(Frames.ack(Frames.LOGIN, false, "Username is too long (max " + Frames.MAX_NAME_BYTES + " bytes)."));
+                return;
+            }
+            if (nameTaken(name) || pendingLogins.putIfAbsent(name, this) != null) {
+                send(Frames.ack(Frames.LOGIN, false, "The username is already taken."));
+                return;
+            }
+
+            username = name;
+            if (users.exists(username)) {
+                verifyPassword(password);
+            } else {
+                registerPassword(password);
             }
         }
 
-        // Add another online user to the friend list
-        private void addFriend() throws IOException {
-            while (true) { 
-                out.println("\nEnter your friend's username (or /back to cancel):");
-                String friend = in.readLine().trim();
+        // Join a room, or create it first; moves out of the current room if there is one
+        private void handleJoinFrame(boolean create, String roomName, String password) {
+            roomName = roomName.trim();
+            if (roomName.isEmpty()) {
+                send(Frames.ack(Frames.JOIN, false, "Room name cannot be empty."));
+                return;
+            }
+            if (Frames.utf8Length(roomName) > Frames.MAX_NAME_BYTES) {
+                send(Frames.ack(Frames.JOIN, false, "Room name is too long (max " + Frames.MAX_NAME_BYTES + " bytes)."));
+                return;
+            }
+            if (Frames.utf8Length(password.trim()) > Frames.MAX_PASSWORD_BYTES) {
+                send(Frames.ack(Frames.JOIN, false, "Password is too long (max " + Frames.MAX_PASSWORD_BYTES + " bytes)."));
+                return;
+            }
 
-                // If input is /back, return back to friend menu
-                if (friend.equalsIgnoreCase("/back")) {
-                    out.println("Canceling Adding Friends...");
-                    return;
-                }
-                
-                // Check for empty input
-                if (friend.isEmpty()) {
-                    out.println("Username cannot be empty. Please try again.");
-                    continue;
-                }
-                
-                // Check if friend exist even if not online
-                if (!userPasswords.containsKey(friend)) {
-                    out.println("User does not exist. Please try again.");
-                } else if (friend.equals(username)) {
-                    out.println("You can't add yourself!");
-                } else if (friends.contains(friend)) {
-                    out.println(friend + " is already in your friend list.");
+            if (!homedHere(roomName)) {
+                if (currentRoom != null && currentRoom.roomName.equals(roomName)) {
+                    send(Frames.ack(Frames.JOIN, true, "Already in '" + roomName + "'"));
                 } else {
-                    friends.add(friend);
-                    out.println(friend + " has been added to your friend list.");
-                    return;
+                    joinRemoteRoom(roomName, create, password.trim());
                 }
+                return;
             }
-        }
 
-        // Start a private chat with a friend
-        private void startPrivateChat() throws IOException {
-            while (true) { 
-                out.println("\nEnter your friend's username to chat with (or /back to cancel):");
-                String target = in.readLine().trim();
-
-                // Do /back to go back to menu
-                if (target.equalsIgnoreCase("/back")) {
-                    out.println("Private chat cancelled...");
+            ChatRoom room;
+            if (create) {
+                if (!reserveRoomSlot()) {
+                    send(Frames.ack(Frames.JOIN, false, "Maximum rooms (" + maxRooms + ") reached."));
                     return;
                 }
-
-                // Handles empty input
-                if (target.isEmpty()) {
-                    out.println("Username cannot be empty. Please try again.");
-                    continue;
+                room = new ChatRoom(roomName, password.trim());
+                if (rooms.putIfAbsent(roomName, room) != null) {
+                    roomCount.decrementAndGet();
+                    send(Frames.ack(Frames.JOIN, false, "Room already exists."));
+                    return;
                 }
-
-                // Handles non existing friend
-                if (!friends.contains(target)) {
-                    out.println("Not in your friends list. Please try again.");
-                    continue;
+                roomCreated(room);
+            } else {
+                room = rooms.get(roomName);
+                if (room == null) {
+                    send(Frames.ack(Frames.JOIN, false, "Room doesn't exist."));
+                    return;
                 }
-
-                // When the friend is not connected to the server
-                ClientHandler targetHandler = clients.get(target);
-                if (targetHandler == null) {
-                    out.println("User is currently offline.");
+                if (!room.password.equals(password.trim())) {
+                    send(Frames.ack(Frames.JOIN, false, "Wrong password."));
                     return;
                 }
+            }
 
-                // Generate consistent chat key (alphabetical order)
-                String chatKey = username.compareTo(target) < 0 ? 
-                    username + "::" + target : target + "::" + username;
-            
-                // Display previous messages if available
-                List<String> history = privateChats.getOrDefault(chatKey, new ArrayList<>());
-                if (!history.isEmpty()) {
-                    out.println("\n--- Chat History ---");
-                    history.forEach(out::println);
-                    out.println("-------------------");
-                }
+            if (room == currentRoom) {
+                send(Frames.ack(Frames.JOIN, true, "Already in '" + roomName + "'"));
+                return;
+            }
+            String joined = "You're in '" + room.roomName + "'";
+            if (!room.enter(this, () -> send(Frames.ack(Frames.JOIN, true, joined)))) {
+                send(Frames.ack(Frames.JOIN, false, "Room is full (max " + maxUsersPerRoom + " users)"));
+                return;
+            }
+            leaveCurrentRoom();
+            currentRoom = room;
+            room.broadcast("joined the room", this);
+        }
 
-                // Start private chat session
-                privateTarget = target;
-                out.println("\n[Private chat with " + target + "] (type /back to leave the DMs)");
-                
-                String message;
-                while ((message = in.readLine()) != null) {
+        private void handleLeaveFrame() {
+            if (currentRoom == null) {
+                send(Frames.ack(Frames.LEAVE, false, "Not in a room."));
+                return;
+            }
+            leaveCurrentRoom();
+            send(Frames.ack(Frames.LEAVE, true, "You left the room"));
+        }
 
-                    // If message is /back, leave DMs
-                    if (message.equalsIgnoreCase("/back")) {
-                        privateTarget = null;
-                        break;
-                    }
+        // Room messages are only acknowledged when they could not be sent
+        private void handleMessageFrame(String message) {
+            if (currentRoom == null) {
+                send(Frames.ack(Frames.MESSAGE, false, "Join a room first."));
+            } else if (message.trim().isEmpty()) {
+                send(Frames.ack(Frames.MESSAGE, false, "Empty message not sent"));
+            } else if (Frames.utf8Length(message) > Frames.MAX_TEXT_BYTES) {
+                send(Frames.ack(Frames.MESSAGE, false, "Message too long (max " + Frames.MAX_TEXT_BYTES + " bytes), not sent"));
+            } else if (admit(currentRoom, Frames.MESSAGE)) {
+                currentRoom.broadcast(message, this);
+            }
+        }
 
-                    // Check for empty input
-                    if (message.trim().isEmpty()) {
-                        out.println("(Empty message not sent)");
-                        continue;
-                    }
+        // DMs go to history even when the friend is offline, and straight to them when online
+        private void handleDmFrame(String target, String message) {
+            int targetId = users.id(target);
+            if (targetId < 0 || !friendGraph.contains(userId, targetId)) {
+                send(Frames.ack(Frames.DM, false, "Not in your friends list."));
+                return;
+            }
+            if (message.trim().isEmpty()) {
+                send(Frames.ack(Frames.DM, false, "Empty message not sent"));
+                return;
+            }
+            if (Frames.utf8Length(message) > Frames.MAX_TEXT_BYTES) {
+                send(Frames.ack(Frames.DM, false, "Message too long (max " + Frames.MAX_TEXT_BYTES + " bytes), not sent"));
+                return;
+            }
+            if (!admit(null, Frames.DM)) {
+                return;
+            }
 
-                    // Store message in history
-                    String formattedMsg = "[" + username + "]: " + message;
-                    privateChats.computeIfAbsent(chatKey, k -> new ArrayList<>()).add(formattedMsg);
+            String formattedMsg = "[" + username + "]: " + message;
+            privateChats.append(ConversationHistory.key(userId, targetId), formattedMsg);
+            Metrics.directMessages.increment();
+            routePrivate(username, target, message);
+        }
 
-                    // Deliver message
-                    if (targetHandler.privateTarget != null &&
-                        targetHandler.privateTarget.equals(username)) {
-                        // Target is in chat with us - show immediately
-                        targetHandler.out.println(formattedMsg);
-                    } 
+        // Follow a user (adding them as a friend) and report whether they are online
+        private void handlePresenceFrame(String friend) {
+            friend = friend.trim();
+            int friendId = users.id(friend);
+            if (friendId < 0) {
+                send(Frames.ack(Frames.PRESENCE, false, "User does not exist."));
+            } else if (friendId == userId) {
+                send(Frames.ack(Frames.PRESENCE, false, "You can't add yourself!"));
+            } else {
+                if (friendGraph.add(userId, friendId)) {
+                    presence.follow(friend, this);
+                    friendAdded(username, friend);
                 }
-                break;
-            }  
+                send(Frames.presence(friend, isOnline(friend)));
+            }
         }
 
         private void cleanup() {
             leaveCurrentRoom();
+            privateTarget = null;
 
-            synchronized (Server.class) {
-                if (username != null) {
-                    clients.remove(username);
-                }
-                Server.currentUsers--;
-                System.out.println("\nNow has (" + Server.currentUsers + "/" + MAX_USERS + " users)");
+            if (userId >= 0) {
+                friendGraph.forEachFollowing(userId, friend -> presence.unfollow(users.name(friend), this));
             }
 
-            // Close all I/O resource abd the socket connection
-            try {
-                if (in != null) in.close();            // Close input stream
-                if (out != null) out.close();          // Close output stream
-                if (socket != null) socket.close();    // Close socket
-            } catch (IOException e) {
-                System.out.println("Cleanup error: " + e.getMessage());
+            // Only drop the entry if it is ours, the name may belong to another session
+            if (username != null) {
+                if (clients.remove(username, this)) {
+                    presence.changed(username, false);
+                    if (cluster != null) {
+                        cluster.userOffline(username);
+                    }
+                }
+                pendingLogins.remove(username, this);
+            }
+            if (token != null) {
+                sessions.remove(token, this);
             }
-        }
-    }
-
-    // Password hashing with SHA-256
-    private static String hashPassword(String password) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] hash = md.digest(password.getBytes());
-            return Base64.getEncoder().encodeToString(hash);
-        } catch (Exception e) {
-            throw new RuntimeException("Hashing failed", e);
         }
     }
 }
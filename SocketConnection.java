@@ -0,0 +1,203 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocking transport: one thread per client reads lines or frames from the socket and feeds
+ * them to the ClientHandler, a second one drains the outbound queue to the socket.
+ */
+class SocketConnection implements Connection, Runnable, InputDecoder.Sink {
+    private final Socket socket;            // Client connection socket
+    private final Executor executor;        // Runs the writer (platform or virtual thread)
+    private final OutboundQueue outbound = new OutboundQueue();
+    private InputStream in;                 // Input stream from client, client --> server
+    private final InputDecoder decoder = new InputDecoder();
+    private final Heartbeat heartbeat = new Heartbeat(this);
+    private volatile Server.ClientHandler handler;
+    private OutputStream out;               // Output stream to client, server --> client (writer thread only)
+    private OutputDeflater deflater;        // Writer thread only, once compression was negotiated
+    // Messages are copied here once, then written in bulk; big enough for a whole --flush-bytes batch
+    private final byte[] writeBuffer = new byte[Math.max(8192, OutboundQueue.flushBytes)];
+    private int buffered = 0;
+
+    // The reader thread is blocked in read(), so tasks from other threads run on the
+    // calling thread instead, with this lock making sure only one thread is in the handler at a time
+    private final ReentrantLock handlerLock = new ReentrantLock();
+
+    SocketConnection(Socket socket, Executor executor) {
+        this.socket = socket;
+        this.executor = executor;
+    }
+
+    @Override
+    public void run() {
+        handler = new Server.ClientHandler(this);
+        try {
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+            executor.execute(this::drainOutbound);
+            execute(handler::start);
+            heartbeat.start();
+
+            // Feed every complete line or frame to the handler until the client goes away
+            byte[] readBuffer = new byte[8192];
+            int read;
+            while (!socket.isClosed() && (read = in.read(readBuffer)) != -1) {
+                heartbeat.onRead();
+                if (!decoder.feed(ByteBuffer.wrap(readBuffer, 0, read), this)) {
+                    Log.warn("line_too_long", "addr", remoteAddress());
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // Socket was closed or reset, handled below
+        } finally {
+            heartbeat.stop();
+            closeNow();
+            execute(handler::onDisconnect);
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer encodedLine) {
+        // Own position/limit over the shared bytes, nothing is copied here
+        if (!outbound.offer(encodedLine.duplicate())) {
+            // Queue overflowed under the DISCONNECT policy
+            Log.warn("slow_client_disconnect", "addr", remoteAddress());
+            closeNow();
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        handlerLock.lock();
+        try {
+            task.run();
+        } finally {
+            handlerLock.unlock();
+        }
+    }
+
+    @Override
+    public void attach(Server.ClientHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void onLine(String line) {
+        execute(() -> handler.onLine(line));
+    }
+
+    @Override
+    public void onFrame(byte type, ByteBuffer payload) {
+        execute(() -> handler.onFrame(type, payload));
+    }
+
+    @Override
+    public void switchToBinary() {
+        decoder.switchToBinary();
+        heartbeat.switchToBinary();
+    }
+
+    @Override
+    public void compress() {
+        decoder.switchToCompressed();
+        outbound.offerControl(OutputDeflater.START);
+    }
+
+    @Override
+    public void close() {
+        outbound.close();   // Writer closes the socket once everything queued is written
+    }
+
+    @Override
+    public void abort() {
+        closeNow();         // The reader wakes up and cleans up
+    }
+
+    @Override
+    public String remoteAddress() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public OutboundQueue outboundQueue() {
+        return outbound;
+    }
+
+    // Writer loop: collects queued messages into batches and writes each batch at once
+    private void drainOutbound() {
+        try {
+            ByteBuffer message;
+            while ((message = outbound.take()) != null) {
+                long batchStart = System.nanoTime();
+                long deadline = batchStart + OutboundQueue.flushWindowNanos;
+                int messages = 0;
+                long bytes = 0;
+
+                // Keep adding messages until the queue stays empty past the window or the batch is big enough
+                while (message != null) {
+                    if (message == OutputDeflater.START) {
+                        flush();    // Whatever is ahead of it goes out plain
+                        deflater = new OutputDeflater();
+                    }
+                    bytes += message.remaining();
+                    write(message);
+                    messages++;
+                    if (buffered >= OutboundQueue.flushBytes) break;
+
+                    message = outbound.poll();
+                    if (message == null) {
+                        long wait = deadline - System.nanoTime();
+                        if (wait > 0) {
+                            message = outbound.poll(wait);
+                        }
+                    }
+                }
+                long waited = System.nanoTime() - batchStart;
+                flush();
+                FlushStats.record(messages, bytes, waited);
+            }
+        } catch (IOException | InterruptedException e) {
+            // Socket closed under us, the reader notices and cleans up
+        } finally {
+            closeNow();
+        }
+    }
+
+    // Copy the message into the write buffer, writing the buffer out whenever it fills up
+    private void write(ByteBuffer message) throws IOException {
+        while (message.hasRemaining()) {
+            if (buffered == writeBuffer.length) {
+                flush();
+            }
+            int length = Math.min(writeBuffer.length - buffered, message.remaining());
+            message.get(writeBuffer, buffered, length);
+            buffered += length;
+        }
+    }
+
+    private void flush() throws IOException {
+        if (buffered > 0) {
+            if (deflater != null) {
+                ByteBuffer compressed = deflater.compress(writeBuffer, 0, buffered);
+                out.write(compressed.array(), 0, compressed.limit());
+            } else {
+                out.write(writeBuffer, 0, buffered);
+            }
+            buffered = 0;
+        }
+    }
+
+    // Close right away, dropping anything still queued
+    private void closeNow() {
+        outbound.discard();
+        try {
+            socket.close();     // Also unblocks the reader thread
+        } catch (IOException e) {
+            Log.warn("close_failed", "error", e.getMessage());
+        }
+    }
+}
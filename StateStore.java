@@ -0,0 +1,421 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Durable server state: accounts, friend lists and the rooms homed on this node.
+ * Every change is appended to a write-ahead log, but appending only copies the record into a
+ * buffer; a background thread writes whatever piled up and fsyncs it in one go (group commit),
+ * so logins and friend requests never wait for the disk. A crash loses at most the last sync
+ * interval. After --snapshot-records changes the whole state goes into a compact snapshot and
+ * the log starts over, so startup loads one snapshot and replays a short log tail.
+ *
+ * Files are numbered by generation: snapshot-N holds the state at the start of wal-N. Recovery
+ * loads the newest complete snapshot and replays every log from its generation on. Records in
+ * a log may already be in the snapshot written after it started, so replay skips what exists.
+ *
+ * Log record layout: [int length][byte type][payload][int crc32 of type and payload].
+ * Strings are [int length][UTF-8 bytes]. Files from before that used DataOutput.writeUTF, whose
+ * modified UTF-8 is capped at 65535 bytes and grows 4-byte characters to 6; they are still read.
+ */
+final class StateStore {
+    private static final byte LEGACY_ACCOUNT = 1;   // Like ACCOUNT, with writeUTF strings
+    private static final byte LEGACY_ROOM = 2;      // Like ROOM, with writeUTF strings
+    private static final byte FRIEND = 3;           // int follower, int followed
+    private static final byte ACCOUNT = 4;          // int id, name, password hash
+    private static final byte ROOM = 5;             // name, password, long created
+
+    private static final int SNAPSHOT_MAGIC = 0x43485332;         // "CHS2"
+    private static final int LEGACY_SNAPSHOT_MAGIC = 0x43485331;  // "CHS1", writeUTF strings
+    private static final int MAX_STRING_BYTES = 1 << 20;         // Anything longer is a corrupt length
+
+    // A room homed on this node, as stored
+    static final class Room {
+        final String name;
+        final String password;
+        final long created;         // Creation time, part of the room's history key
+
+        Room(String name, String password, long created) {
+            this.name = name;
+            this.password = password;
+            this.created = created;
+        }
+    }
+
+    private final Path directory;
+    private final long syncNanos;
+    private final int snapshotRecords;
+
+    private UserRegistry users;
+    private FriendGraph friends;
+    private Supplier<List<Room>> rooms;         // Rooms to snapshot, read from the server
+
+    // Records not written yet, swapped with `writing` by the log thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(64 * 1024);     // Guarded by lock
+    private ByteArrayOutputStream writing = new ByteArrayOutputStream(64 * 1024);     // Log thread only
+    private int pendingRecords = 0;             // Guarded by lock
+    private long sinceSnapshot = 0;             // Guarded by lock
+    private boolean closing = false;            // Guarded by lock
+    private final CRC32 crc = new CRC32();      // Guarded by lock
+
+    private long generation = 0;
+    private FileChannel wal;                    // Log thread only once started
+    private Thread thread;
+
+    StateStore(Path directory, long syncMillis, int snapshotRecords) throws IOException {
+        this.directory = directory;
+        this.syncNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, syncMillis));
+        this.snapshotRecords = snapshotRecords;
+        Files.createDirectories(directory);
+    }
+
+    // Load the newest snapshot and replay the logs after it into `users` and `friends`; returns the rooms
+    List<Room> recover(UserRegistry users, FriendGraph friends) throws IOException {
+        this.users = users;
+        this.friends = friends;
+        Map<String, Room> restored = new LinkedHashMap<>();
+
+        long snapshot = -1;
+        List<Long> logs = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.matches("snapshot-\\d+\\.bin")) {
+                    snapshot = Math.max(snapshot, Long.parseLong(name.substring(9, name.length() - 4)));
+                } else if (name.matches("wal-\\d+\\.log")) {
+                    logs.add(Long.parseLong(name.substring(4, name.length() - 4)));
+                }
+            }
+        }
+        if (snapshot >= 0) {
+            readSnapshot(snapshotPath(snapshot), restored);
+            generation = snapshot;
+        }
+        logs.sort(null);
+        int replayed = 0;
+        for (long log : logs) {
+            if (log < generation) continue;     // Left over from before the snapshot, already in it
+            replayed += replay(walPath(log), restored);
+            generation = log;
+        }
+        Log.info("state_recovered", "accounts", users.size(), "friendships", friends.size(), "rooms", restored.size());
+        Log.info("state_replayed", "snapshot", snapshot, "records", replayed);
+
+        // Continue in a fresh log, the replayed ones go away with the next snapshot
+        generation++;
+        wal = FileChannel.open(walPath(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        sinceSnapshot = replayed;
+        return new ArrayList<>(restored.values());
+    }
+
+    // Start the log thread; `rooms` lists the rooms to snapshot
+    void start(Supplier<List<Room>> rooms) {
+        this.rooms = rooms;
+        thread = new Thread(this::run, "state-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Callers hold the registry's monitor, so the log has accounts in id order
+    void accountCreated(int id, String name, String hash) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(8 + name.length() + hash.length());
+        DataOutputStream out = new DataOutputStream(payload);
+        try {
+            out.writeInt(id);
+            writeString(out, name);
+            writeString(out, hash);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        append(ACCOUNT, payload.toByteArray());
+    }
+
+    void roomCreated(String name, String password, long created) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(16 + name.length() + password.length());
+        DataOutputStream out = new DataOutputStream(payload);
+        try {
+            writeString(out, name);
+            writeString(out, password);
+            out.writeLong(created);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        append(ROOM, payload.toByteArray());
+    }
+
+    void friendAdded(int follower, int followed) {
+        append(FRIEND, ByteBuffer.allocate(8).putInt(follower).putInt(followed).array());
+    }
+
+    // Write and sync what is pending, snapshot, and stop the log thread
+    void close() {
+        lock.lock();
+        try {
+            closing = true;
+            appended.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (thread != null) thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ===== Appending =====
+
+    private void append(byte type, byte[] payload) {
+        lock.lock();
+        try {
+            crc.reset();
+            crc.update(type);
+            crc.update(payload);
+            int length = 1 + payload.length + 4;
+            pending.write(length >>> 24);
+            pending.write(length >>> 16);
+            pending.write(length >>> 8);
+            pending.write(length);
+            pending.write(type);
+            pending.write(payload, 0, payload.length);
+            int sum = (int) crc.getValue();
+            pending.write(sum >>> 24);
+            pending.write(sum >>> 16);
+            pending.write(sum >>> 8);
+            pending.write(sum);
+            if (pendingRecords++ == 0) {
+                appended.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Log thread: wait for records, give others a sync interval to add theirs, write and fsync them together
+    private void run() {
+        while (true) {
+            boolean last;
+            boolean snapshot;
+            int records;
+            lock.lock();
+            try {
+                while (pendingRecords == 0 && !closing) {
+                    appended.awaitUninterruptibly();
+                }
+                if (!closing) {
+                    appended.awaitNanos(syncNanos);     // Gather the group
+                }
+                ByteArrayOutputStream swap = pending;
+                pending = writing;
+                writing = swap;
+                records = pendingRecords;
+                pendingRecords = 0;
+                sinceSnapshot += records;
+                last = closing;
+                snapshot = sinceSnapshot >= snapshotRecords || last;
+                if (snapshot) sinceSnapshot = 0;
+            } catch (InterruptedException e) {
+                continue;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                if (records > 0) {
+                    long start = System.nanoTime();
+                    ByteBuffer bytes = ByteBuffer.wrap(writing.toByteArray());
+                    while (bytes.hasRemaining()) {
+                        wal.write(bytes);
+                    }
+                    wal.force(false);
+                    Metrics.stateRecords.add(records);
+                    Metrics.stateSyncs.increment();
+                    Metrics.stateSyncTime.recordSince(start);
+                }
+                writing.reset();
+                if (snapshot) {
+                    snapshot();
+                }
+            } catch (IOException e) {
+                Log.error("state_log_error", "error", e);
+            }
+            if (last) {
+                return;
+            }
+        }
+    }
+
+    // ===== Snapshots =====
+
+    // Start the next log, then write the state as of now; everything in older logs is in it
+    private void snapshot() throws IOException {
+        long previous = generation;
+        generation++;
+        wal.close();
+        wal = FileChannel.open(walPath(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        long start = System.nanoTime();
+
+        // Append records go to `pending` meanwhile and land in the new log
+        Path temporary = directory.resolve("snapshot.tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            out.writeInt(SNAPSHOT_MAGIC);
+            users.writeTo(out);
+            List<Room> current = rooms.get();
+            out.writeInt(current.size());
+            for (Room room : current) {
+                writeString(out, room.name);
+                writeString(out, room.password);
+                out.writeLong(room.created);
+            }
+            friends.writeTo(out);
+            out.writeInt(SNAPSHOT_MAGIC);       // Trailer, a complete file ends with it
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, snapshotPath(generation), StandardCopyOption.ATOMIC_MOVE);
+
+        // The new snapshot covers the older files
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if ((name.matches("snapshot-\\d+\\.bin") && !name.equals(snapshotPath(generation).getFileName().toString()))
+                        || (name.matches("wal-\\d+\\.log") && Long.parseLong(name.substring(4, name.length() - 4)) <= previous)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        Log.info("state_snapshot", "generation", generation, "ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void readSnapshot(Path path, Map<String, Room> restored) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+            int magic = in.readInt();
+            if (magic != SNAPSHOT_MAGIC && magic != LEGACY_SNAPSHOT_MAGIC) {
+                throw new IOException("Not a state snapshot: " + path);
+            }
+            boolean legacy = magic == LEGACY_SNAPSHOT_MAGIC;
+            users.readFrom(in, legacy);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Room room = new Room(readString(in, legacy), readString(in, legacy), in.readLong());
+                restored.put(room.name, room);
+            }
+            friends.readFrom(in);
+            if (in.readInt() != magic) {
+                throw new IOException("Truncated state snapshot: " + path);
+            }
+        }
+    }
+
+    // ===== Replay =====
+
+    // Apply one log's records, stopping at the first torn or corrupt one; returns how many were applied
+    private int replay(Path path, Map<String, Room> restored) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        CRC32 check = new CRC32();
+        int applied = 0;
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt(buffer.position());
+            if (length < 5 || length > buffer.remaining() - 4) break;
+            int start = buffer.position() + 4;
+            check.reset();
+            check.update(bytes, start, length - 4);
+            if ((int) check.getValue() != buffer.getInt(start + length - 4)) break;
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, start + 1, length - 5));
+            try {
+                apply(bytes[start], in, restored);
+            } catch (EOFException e) {
+                break;
+            }
+            applied++;
+            buffer.position(start + length);
+        }
+        if (buffer.hasRemaining()) {
+            Log.warn("state_log_torn", "file", path.getFileName(), "ignored_bytes", buffer.remaining());
+        }
+        return applied;
+    }
+
+    private void apply(byte type, DataInputStream in, Map<String, Room> restored) throws IOException {
+        switch (type) {
+            case ACCOUNT:
+            case LEGACY_ACCOUNT:
+                int id = in.readInt();
+                String name = readString(in, type == LEGACY_ACCOUNT);
+                String hash = readString(in, type == LEGACY_ACCOUNT);
+                if (id >= users.size()) {
+                    users.restore(name, hash);
+                }
+                break;
+            case ROOM:
+            case LEGACY_ROOM:
+                Room room = new Room(readString(in, type == LEGACY_ROOM), readString(in, type == LEGACY_ROOM), in.readLong());
+                restored.putIfAbsent(room.name, room);
+                break;
+            case FRIEND:
+                friends.restore(in.readInt(), in.readInt());
+                break;
+            default:
+                throw new IOException("Unknown state record type " + type);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // `legacy` reads a writeUTF string, from files written before the length became an int
+    static String readString(DataInputStream in, boolean legacy) throws IOException {
+        if (legacy) {
+            return in.readUTF();
+        }
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("Corrupt string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Path snapshotPath(long generation) {
+        return directory.resolve(String.format("snapshot-%08d.bin", generation));
+    }
+
+    private Path walPath(long generation) {
+        return directory.resolve(String.format("wal-%08d.log", generation));
+    }
+}
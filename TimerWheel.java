@@ -0,0 +1,132 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hashed timer wheel for many long, mostly rescheduled timeouts. Timers hash into one slot per
+ * tick by deadline and sit in intrusive doubly linked lists, so scheduling, moving and cancelling
+ * a timer is O(1) and a tick only touches the timers due in it. One thread drives the wheel, no
+ * matter how many timers are on it, and no task objects are allocated per timeout.
+ * Deadlines are rounded up to whole ticks. The wheel covers `slots` ticks ahead; a timer further
+ * out fires at the edge of the wheel instead, early, and its owner reschedules it.
+ */
+final class TimerWheel {
+    // One timeout, reused for every deadline of its owner
+    abstract static class Timer {
+        private Timer previous;
+        private Timer next;
+        private int slot = -1;      // -1 when not on the wheel
+
+        // The deadline passed (or the wheel's edge was reached), runs on the wheel thread
+        protected abstract void expire(long now);
+    }
+
+    private final long tickNanos;
+    private final Timer[] slots;        // Head of each slot's list
+    private final int mask;
+    private final long start = System.nanoTime();
+    private long tick = 0;              // Ticks processed so far, guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Timer> due = new ArrayList<>();      // Wheel thread only
+    private final ScheduledExecutorService thread;
+
+    // A wheel of at least `horizonNanos` (rounded up to a power of two ticks), driven by a thread called `name`
+    TimerWheel(String name, long tickNanos, long horizonNanos) {
+        this.tickNanos = Math.max(1, tickNanos);
+        int size = Integer.highestOneBit((int) Math.min(1 << 20, horizonNanos / this.tickNanos + 2) - 1) << 1;
+        this.slots = new Timer[size];
+        this.mask = size - 1;
+        this.thread = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread t = new Thread(task, name);
+            t.setDaemon(true);
+            return t;
+        });
+        thread.scheduleAtFixedRate(this::advance, this.tickNanos, this.tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // Put the timer on the wheel at `deadline` (System.nanoTime()), moving it if it already is
+    void schedule(Timer timer, long deadline) {
+        lock.lock();
+        try {
+            unlink(timer);
+            // Never into the slot being processed or behind it, and never past the edge
+            long at = Math.max(tick + 1, Math.min(tick + slots.length - 1, (deadline - start + tickNanos - 1) / tickNanos));
+            int slot = (int) (at & mask);
+            timer.slot = slot;
+            timer.next = slots[slot];
+            if (timer.next != null) {
+                timer.next.previous = timer;
+            }
+            slots[slot] = timer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Take the timer off the wheel, harmless when it is not on it
+    void cancel(Timer timer) {
+        lock.lock();
+        try {
+            unlink(timer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void shutdown() {
+        thread.shutdownNow();
+    }
+
+    // Wheel thread: fire the slots of every tick that passed, catching up if it fell behind
+    private void advance() {
+        long now = System.nanoTime();
+        long target = (now - start) / tickNanos;
+        while (true) {
+            lock.lock();
+            try {
+                if (tick >= target) return;
+                tick++;
+                // Unhook the whole slot, the timers may reschedule themselves while they run
+                int slot = (int) (tick & mask);
+                for (Timer timer = slots[slot]; timer != null; ) {
+                    Timer next = timer.next;
+                    timer.previous = null;
+                    timer.next = null;
+                    timer.slot = -1;
+                    due.add(timer);
+                    timer = next;
+                }
+                slots[slot] = null;
+            } finally {
+                lock.unlock();
+            }
+            for (Timer timer : due) {
+                try {
+                    timer.expire(now);
+                } catch (RuntimeException e) {
+                    Log.error("timer_failed", "error", e);
+                }
+            }
+            due.clear();
+        }
+    }
+
+    // Caller holds the lock
+    private void unlink(Timer timer) {
+        if (timer.slot < 0) return;
+        if (timer.previous != null) {
+            timer.previous.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        timer.previous = null;
+        timer.next = null;
+        timer.slot = -1;
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Key material and shared pieces of the optional TLS listener (see TlsSession).
+ * The server context keeps a session cache, so a client that reconnects with the same
+ * context resumes its TLS session instead of running a full handshake. The expensive
+ * handshake steps run on a small pool of their own, never on an event loop.
+ * Without --tls-keystore a self-signed certificate is generated once with the JDK's keytool,
+ * under a random password kept in an owner-only file, and clients trust it by pointing
+ * --tls-trust at the exported certificate. Passwords never go on a command line.
+ */
+final class Tls {
+    // The JDK's well-known default, refused for keystores that hold a real key
+    static final String JDK_DEFAULT_PASSWORD = "changeit";
+
+    // Delegated SSLEngine tasks: key exchange and certificate work of handshakes in progress
+    private static final AtomicInteger handshakeThreads = new AtomicInteger();
+    static final ExecutorService handshakes = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors()), task -> {
+                Thread thread = new Thread(task, "tls-handshake-" + handshakeThreads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private Tls() {
+    }
+
+    // Server side: the key and certificate from a PKCS12 keystore, with a session cache for resumption
+    static SSLContext serverContext(Path keystore, char[] password, int cacheSize, int cacheSeconds)
+            throws IOException, GeneralSecurityException {
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(load(keystore, password), password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(cacheSize);
+        sessions.setSessionTimeout(cacheSeconds);
+        return context;
+    }
+
+    // Client side: trusts the certificates in `certificates` (PEM or DER, e.g. the one exported
+    // next to a self-signed keystore), or the JVM's default authorities when it is null
+    static SSLContext clientContext(Path certificates) throws IOException, GeneralSecurityException {
+        KeyStore trusted = null;
+        if (certificates != null) {
+            trusted = KeyStore.getInstance(KeyStore.getDefaultType());
+            trusted.load(null, null);
+            try (InputStream in = Files.newInputStream(certificates)) {
+                int i = 0;
+                for (Certificate certificate : CertificateFactory.getInstance("X.509").generateCertificates(in)) {
+                    trusted.setCertificateEntry("trusted-" + i++, certificate);
+                }
+            }
+        }
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(trusted);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust.getTrustManagers(), null);
+        return context;
+    }
+
+    // Generate a self-signed certificate for localhost into `keystore` unless it is already there,
+    // locked with a random password written to `passwordFile` (readable by the owner only), and
+    // export the certificate to `certificate` for clients. keytool reads the password from the file.
+    static void selfSigned(Path keystore, Path passwordFile, Path certificate) throws IOException {
+        if (Files.exists(keystore) && Files.exists(passwordFile) && Files.exists(certificate)) return;
+        // A partial set (or a keystore from before passwords were generated) is replaced whole
+        Files.deleteIfExists(keystore);
+        Files.deleteIfExists(passwordFile);
+        Files.deleteIfExists(certificate);
+        for (Path path : new Path[] {keystore, passwordFile, certificate}) {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null && !Files.exists(parent)) {
+                if (posix()) {
+                    Files.createDirectories(parent, PosixFilePermissions.asFileAttribute(
+                            PosixFilePermissions.fromString("rwx------")));
+                } else {
+                    Files.createDirectories(parent);
+                }
+            }
+        }
+        byte[] random = new byte[18];
+        new SecureRandom().nextBytes(random);
+        if (posix()) {
+            Files.createFile(passwordFile, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(passwordFile);
+        }
+        Files.write(passwordFile, Base64.getUrlEncoder().encode(random));
+        String storePassword = passwordFile.toString();
+        keytool("-genkeypair", "-alias", "chat", "-keyalg", "EC",
+                "-groupname", "secp256r1", "-sigalg", "SHA256withECDSA", "-validity", "3650",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-storetype", "PKCS12", "-keystore", keystore.toString(),
+                "-storepass:file", storePassword, "-keypass:file", storePassword);
+        keytool("-exportcert", "-rfc", "-alias", "chat", "-storetype", "PKCS12", "-keystore", keystore.toString(),
+                "-storepass:file", storePassword, "-file", certificate.toString());
+    }
+
+    // The password in the first line of `file`
+    static char[] readPassword(Path file) throws IOException {
+        String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        int end = text.indexOf('\n');
+        return (end >= 0 ? text.substring(0, end) : text).trim().toCharArray();
+    }
+
+    private static boolean posix() {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    }
+
+    private static void keytool(String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString());
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        try {
+            if (!process.waitFor(60, TimeUnit.SECONDS) || process.exitValue() != 0) {
+                throw new IOException("keytool failed: " + output.trim());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running keytool");
+        }
+    }
+
+    private static KeyStore load(Path path, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(path)) {
+            store.load(in, password);
+        }
+        return store;
+    }
+}
@@ -0,0 +1,244 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * TLS for one NioConnection, on top of its non-blocking channel. Reads decrypt into a buffer
+ * the connection drains like plain socket input, writes encrypt the queued messages into one
+ * buffer of records and hand that to the socket. Handshake messages are produced and consumed
+ * on the event loop as they come, but the delegated tasks (key exchange, signing) run on
+ * Tls.handshakes; meanwhile the connection stops reading and the loop serves everyone else.
+ * Event loop thread only, apart from those tasks.
+ */
+final class TlsSession {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final EventLoop loop;
+    private final Runnable progress;    // Handshake moved on after its tasks, the connection reads and flushes again
+
+    private ByteBuffer netIn;           // Received records not decrypted yet, write mode
+    private ByteBuffer netOut;          // Encrypted records not on the socket yet, read mode
+    private ByteBuffer appIn;           // Decrypted input not handed out yet, read mode
+    private boolean tasksRunning = false;
+    private boolean established = false;
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+
+    TlsSession(SSLEngine engine, SocketChannel channel, SelectionKey key, EventLoop loop, Runnable progress) throws SSLException {
+        this.engine = engine;
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.progress = progress;
+        int packet = engine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocate(packet);
+        netOut = ByteBuffer.allocate(packet).flip();
+        appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize()).flip();
+        engine.beginHandshake();
+    }
+
+    boolean established() {
+        return established;
+    }
+
+    // Encrypted output is waiting for the socket to take it
+    boolean hasPendingOutput() {
+        return netOut.hasRemaining();
+    }
+
+    // Decrypted input is left over after the last read()
+    boolean hasBufferedInput() {
+        return appIn.hasRemaining();
+    }
+
+    // Decrypted input into `dst`: 0 when none is ready yet, -1 once the client is gone
+    int read(ByteBuffer dst) throws IOException {
+        if (!appIn.hasRemaining() && !tasksRunning) {
+            int read = channel.read(netIn);
+            if (read < 0) return -1;
+            unwrap();
+        }
+        int length = Math.min(appIn.remaining(), dst.remaining());
+        ByteBuffer slice = appIn.duplicate();
+        slice.limit(slice.position() + length);
+        dst.put(slice);
+        appIn.position(appIn.position() + length);
+        return length;
+    }
+
+    // Encrypt as much of `sources` as the socket takes; returns the plain bytes consumed,
+    // 0 while the handshake is still going
+    long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+        if (!flush() || !established) return 0;
+        long consumed = 0;
+        while (true) {
+            SSLEngineResult result = wrap(sources, offset, length);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS session closed");
+            }
+            consumed += result.bytesConsumed();
+            if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                handshake();       // A post-handshake message, e.g. a key update
+            }
+            if (!flushNet() || result.bytesConsumed() == 0) {
+                return consumed;
+            }
+        }
+    }
+
+    // Write out the records still waiting and move the handshake along; false while the socket is full
+    boolean flush() throws IOException {
+        if (!flushNet()) return false;
+        if (!established) {
+            handshake();
+            return flushNet();
+        }
+        return true;
+    }
+
+    // Send close_notify if the socket takes it right away, the connection closes anyway
+    void close() {
+        engine.closeOutbound();
+        try {
+            wrap(new ByteBuffer[] {EMPTY}, 0, 1);
+            flushNet();
+        } catch (IOException e) {
+            // Closing regardless
+        }
+    }
+
+    // Resume after the delegated tasks: consume what arrived meanwhile, answer what is due
+    void resume() throws IOException {
+        handshake();
+        unwrap();
+        flushNet();
+    }
+
+    // Decrypt what was received, driving the handshake along the way
+    private void unwrap() throws IOException {
+        netIn.flip();
+        try {
+            while (netIn.hasRemaining() && !tasksRunning) {
+                appIn.compact();
+                SSLEngineResult result;
+                try {
+                    result = engine.unwrap(netIn, appIn);
+                } finally {
+                    appIn.flip();
+                }
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        if (netIn.remaining() == netIn.capacity()) {
+                            netIn = grow(netIn.compact(), engine.getSession().getPacketBufferSize()).flip();
+                            continue;
+                        }
+                        return;     // Rest of the record still on its way
+                    case BUFFER_OVERFLOW:
+                        appIn = grow(appIn.compact(), engine.getSession().getApplicationBufferSize()).flip();
+                        continue;
+                    case CLOSED:
+                        throw new SSLException("Client closed the TLS session");
+                    default:
+                        break;
+                }
+                if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                    handshake();
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) return;
+            }
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    // Do whatever the handshake needs next that doesn't wait for the client
+    private void handshake() throws IOException {
+        while (!tasksRunning) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runTasks();
+                    return;
+                case NEED_WRAP:
+                    wrap(new ByteBuffer[] {EMPTY}, 0, 1);
+                    if (!flushNet()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    return;     // unwrap() goes on once more records arrive
+                default:
+                    if (engine.isOutboundDone()) {
+                        throw new SSLException("TLS handshake failed");
+                    }
+                    if (!established) {
+                        established = true;
+                        Metrics.tlsHandshakes.increment();
+                        // A resumed session keeps the creation time of the handshake that made it
+                        if (engine.getSession().getCreationTime() < startMillis) {
+                            Metrics.tlsResumed.increment();
+                        }
+                        Metrics.tlsHandshakeTime.recordSince(startNanos);
+                    }
+                    return;
+            }
+        }
+    }
+
+    // Hand the delegated tasks to the handshake pool and stop reading until they are done
+    private void runTasks() {
+        tasksRunning = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        Tls.handshakes.execute(() -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            loop.execute(() -> {
+                tasksRunning = false;
+                if (!key.isValid()) return;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                progress.run();
+            });
+        });
+    }
+
+    private SSLEngineResult wrap(ByteBuffer[] sources, int offset, int length) throws SSLException {
+        netOut.compact();
+        try {
+            while (true) {
+                SSLEngineResult result = engine.wrap(sources, offset, length, netOut);
+                if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    return result;
+                }
+                netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+            }
+        } finally {
+            netOut.flip();
+        }
+    }
+
+    // Write out the encrypted records, false when the socket is full
+    private boolean flushNet() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) return false;
+        }
+        return true;
+    }
+
+    // A bigger buffer in write mode with the contents of `buffer` (in write mode) in it
+    private static ByteBuffer grow(ByteBuffer buffer, int atLeast) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + atLeast));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
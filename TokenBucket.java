@@ -0,0 +1,35 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket: refills at `rate` tokens per second and holds at most `burst`.
+ * Stored as the single time at which the bucket would be full again, so taking a token is one
+ * compare-and-set and nothing has to refill it in the background.
+ * A rate of zero or less lets everything through.
+ */
+final class TokenBucket {
+    private final long interval;        // Nanoseconds to refill one token
+    private final long depth;           // Nanoseconds to refill the whole bucket
+    private final AtomicLong fullAt;    // System.nanoTime() when the bucket is full again
+
+    TokenBucket(double rate, int burst) {
+        this.interval = rate > 0 ? Math.max(1, (long) (1e9 / rate)) : 0;
+        this.depth = interval * Math.max(1, burst);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    // Take one token, false when the bucket is empty
+    boolean tryAcquire() {
+        if (interval == 0) return true;
+        long now = System.nanoTime();
+        while (true) {
+            long full = fullAt.get();
+            long next = (full - now > 0 ? full : now) + interval;
+            if (next - now > depth) {
+                return false;
+            }
+            if (fullAt.compareAndSet(full, next)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.BiConsumer;
+
+/**
+ * Registered accounts. Every user gets a dense int id in registration order, and what the server
+ * knows about them is stored by id in plain arrays: name, password hash and, in FriendGraph, who
+ * they follow. Names are found through an open-addressing table of ids, so a lookup probes int
+ * slots and compares with the stored name without allocating anything.
+ * Lookups are lock-free. Registrations are serialized and logged to the StateStore in id order,
+ * so ids stay the same across restarts and can be used in keys on disk.
+ */
+final class UserRegistry {
+    // One generation of the arrays, replaced as a whole when it is full
+    private static final class Table {
+        final String[] names;
+        final String[] hashes;
+        final AtomicIntegerArray slots;     // id + 1, by name hash; 0 is empty, at most half are used
+
+        Table(int capacity) {
+            names = new String[capacity];
+            hashes = new String[capacity];
+            slots = new AtomicIntegerArray(capacity * 2);
+        }
+    }
+
+    private volatile Table table = new Table(1024);
+    private volatile int size = 0;
+    private StateStore state;               // Null keeps the accounts in memory only
+
+    // Log new accounts to `state` from now on
+    void persistTo(StateStore state) {
+        this.state = state;
+    }
+
+    // Id of a registered user, -1 for unknown names
+    int id(String name) {
+        Table current = table;
+        int mask = current.slots.length() - 1;
+        for (int i = spread(name.hashCode()) & mask; ; i = (i + 1) & mask) {
+            int slot = current.slots.get(i);
+            if (slot == 0) return -1;
+            if (current.names[slot - 1].equals(name)) return slot - 1;
+        }
+    }
+
+    boolean exists(String name) {
+        return id(name) >= 0;
+    }
+
+    String name(int id) {
+        return table.names[id];
+    }
+
+    String hash(int id) {
+        return table.hashes[id];
+    }
+
+    int size() {
+        return size;
+    }
+
+    // New account, returns its id; -1 when the name is taken
+    synchronized int register(String name, String hash) {
+        if (id(name) >= 0) return -1;
+        int id = insert(name, hash);
+        if (state != null) {
+            state.accountCreated(id, name, hash);
+        }
+        return id;
+    }
+
+    // Every account, in id order
+    void forEach(BiConsumer<String, String> action) {
+        int count = size;       // Read first: the table is published before the size
+        Table current = table;
+        for (int id = 0; id < count; id++) {
+            action.accept(current.names[id], current.hashes[id]);
+        }
+    }
+
+    // An account from the state log, already logged
+    synchronized void restore(String name, String hash) {
+        insert(name, hash);
+    }
+
+    // Snapshot of every account, in id order
+    void writeTo(DataOutputStream out) throws IOException {
+        int count = size;
+        Table current = table;
+        out.writeInt(count);
+        for (int id = 0; id < count; id++) {
+            StateStore.writeString(out, current.names[id]);
+            StateStore.writeString(out, current.hashes[id]);
+        }
+    }
+
+    // `legacy` for a snapshot written with writeUTF strings, see StateStore
+    synchronized void readFrom(DataInputStream in, boolean legacy) throws IOException {
+        int count = in.readInt();
+        for (int id = 0; id < count; id++) {
+            insert(StateStore.readString(in, legacy), StateStore.readString(in, legacy));
+        }
+    }
+
+    // Caller holds the monitor
+    private int insert(String name, String hash) {
+        int id = size;
+        Table current = table;
+        if (id == current.names.length) {
+            // Fill the bigger table completely before readers can see it
+            Table grown = new Table(id * 2);
+            System.arraycopy(current.names, 0, grown.names, 0, id);
+            System.arraycopy(current.hashes, 0, grown.hashes, 0, id);
+            for (int existing = 0; existing < id; existing++) {
+                place(grown, existing);
+            }
+            table = grown;
+            current = grown;
+        }
+        current.names[id] = name;
+        current.hashes[id] = hash;
+        place(current, id);     // Volatile write, publishes the name and hash with it
+        size = id + 1;
+        return id;
+    }
+
+    private static void place(Table table, int id) {
+        int mask = table.slots.length() - 1;
+        int i = spread(table.names[id].hashCode()) & mask;
+        while (table.slots.get(i) != 0) {
+            i = (i + 1) & mask;
+        }
+        table.slots.set(i, id + 1);
+    }
+
+    // Mix the high bits in, String hashes of similar names differ mostly in the low ones
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16) ^ (hash >>> 7);
+    }
+}
@@ -0,0 +1,426 @@
+import chatbench.ServerHooks;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * Default-package side of the benchmarks: builds real server objects and hands them out
+ * through the ServerHooks interface. Server statics that main() normally sets up are
+ * filled in by reflection, and the server's console logging is switched off.
+ */
+public class ServerHooksImpl implements ServerHooks {
+    // Fake transport that only counts what it is sent; tasks run on the calling thread
+    static class CountingConnection implements Connection {
+        private final OutboundQueue queue = new OutboundQueue();
+        private final ReentrantLock handlerLock = new ReentrantLock();
+        volatile CountDownLatch completed;
+        long bytes = 0;
+        long wireBytes = 0;
+        private OutputDeflater deflater;    // Each message is deflated and flushed on its own, like an idle client's
+
+        @Override
+        public void send(ByteBuffer encodedLine) {
+            bytes += encodedLine.remaining();
+            if (deflater != null) {
+                wireBytes += deflater.compress(new ByteBuffer[] {encodedLine.duplicate()}, 0, 1).remaining();
+            } else {
+                wireBytes += encodedLine.remaining();
+            }
+        }
+
+        @Override
+        public void switchToBinary() {
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            handlerLock.lock();
+            try {
+                task.run();
+            } finally {
+                handlerLock.unlock();
+            }
+            CountDownLatch latch = completed;
+            if (latch != null) {
+                latch.countDown();     // The benchmark thread calls the handler directly, so this is the async login result
+            }
+        }
+
+        @Override
+        public void attach(Server.ClientHandler handler) {
+        }
+
+        @Override
+        public void compress() {
+            deflater = new OutputDeflater();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public String remoteAddress() {
+            return "bench";
+        }
+
+        @Override
+        public OutboundQueue outboundQueue() {
+            return queue;
+        }
+    }
+
+    // A client and a server engine joined by two buffers instead of a socket; single-threaded,
+    // the delegated tasks run inline so a handshake's whole CPU cost lands on the caller
+    static class MemoryTls implements TlsPeers {
+        private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+        private static final int RESUME_PORT = 1;      // Client sessions are cached per peer host and port
+
+        private final SSLContext server;
+        private final SSLContext client;
+        private final ByteBuffer toServer = ByteBuffer.allocate(64 * 1024);    // Records in flight, write mode
+        private final ByteBuffer toClient = ByteBuffer.allocate(64 * 1024);
+        private final ByteBuffer app = ByteBuffer.allocate(64 * 1024);
+        private final ByteBuffer message = ByteBuffer.allocate(16 * 1024);
+        private SSLEngine clientEngine;     // Of the last handshake, send() uses them
+        private SSLEngine serverEngine;
+        private int freshPort = RESUME_PORT;
+        private boolean resumed;
+
+        MemoryTls(SSLContext server, SSLContext client) {
+            this.server = server;
+            this.client = client;
+            for (int i = 0; i < message.capacity(); i++) {
+                message.put((byte) ('a' + i % 26));
+            }
+            handshake(true);        // Nothing to resume yet, this one leaves a session behind for later
+            try {
+                Thread.sleep(2);    // Creation times are in milliseconds, see resumed()
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void handshake(boolean resume) {
+            long start = System.currentTimeMillis();
+            // A port never used before has no session to offer
+            clientEngine = client.createSSLEngine("localhost", resume ? RESUME_PORT : ++freshPort);
+            clientEngine.setUseClientMode(true);
+            SSLParameters parameters = clientEngine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");     // Like Client does
+            clientEngine.setSSLParameters(parameters);
+            serverEngine = server.createSSLEngine();
+            serverEngine.setUseClientMode(false);
+            toServer.clear();
+            toClient.clear();
+            try {
+                clientEngine.beginHandshake();
+                serverEngine.beginHandshake();
+                // Until neither side can move, which includes the client taking in its session ticket
+                while (step(clientEngine, toServer, toClient) | step(serverEngine, toClient, toServer)) {
+                }
+            } catch (SSLException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (clientEngine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                    || serverEngine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                throw new IllegalStateException("TLS handshake got stuck");
+            }
+            // Same test as the server's: a resumed session keeps its first handshake's creation time
+            resumed = serverEngine.getSession().getCreationTime() < start;
+        }
+
+        @Override
+        public boolean resumed() {
+            return resumed;
+        }
+
+        @Override
+        public int send(int length, boolean tls) {
+            message.clear().limit(length);
+            app.clear();
+            if (!tls) {
+                app.put(message);
+                return app.position();
+            }
+            toServer.clear();
+            try {
+                while (message.hasRemaining()) {
+                    check(clientEngine.wrap(message, toServer));
+                }
+                toServer.flip();
+                int delivered = 0;
+                while (toServer.hasRemaining()) {
+                    delivered += check(serverEngine.unwrap(toServer, app)).bytesProduced();
+                }
+                return delivered;
+            } catch (SSLException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Whatever `engine` can do next: run its tasks, or produce records into `out` or consume them from `in`
+        private boolean step(SSLEngine engine, ByteBuffer out, ByteBuffer in) throws SSLException {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    return true;
+                case NEED_WRAP:
+                    SSLEngineResult result = check(engine.wrap(EMPTY, out));
+                    return result.bytesProduced() > 0 || result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP;
+                default:
+                    in.flip();
+                    try {
+                        app.clear();
+                        return in.hasRemaining() && check(engine.unwrap(in, app)).bytesConsumed() > 0;
+                    } finally {
+                        in.compact();
+                    }
+            }
+        }
+
+        private static SSLEngineResult check(SSLEngineResult result) {
+            if (result.getStatus() != SSLEngineResult.Status.OK) {
+                throw new IllegalStateException("Unexpected TLS result " + result.getStatus());
+            }
+            return result;
+        }
+    }
+
+    public ServerHooksImpl() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @Override
+    public Room newRoom(int members, boolean binary, boolean deflate) {
+        setStatic("maxUsersPerRoom", members);
+        Server.ChatRoom room = new Server.ChatRoom("bench", "");
+        CountingConnection[] connections = new CountingConnection[members];
+        for (int i = 0; i < members; i++) {
+            connections[i] = new CountingConnection();
+            if (deflate) {
+                connections[i].compress();
+            }
+            Server.ClientHandler member = new Server.ClientHandler(connections[i]);
+            setField(member, "username", "member" + i);
+            setField(member, "binary", binary);
+            room.members.join(member);
+        }
+        Server.ClientHandler sender = new Server.ClientHandler(new CountingConnection());
+        setField(sender, "username", "sender");
+
+        return new Room() {
+            @Override
+            public void broadcast(String message) {
+                room.broadcast(message, sender);
+            }
+
+            @Override
+            public long bytesSent() {
+                long total = 0;
+                for (CountingConnection connection : connections) {
+                    total += connection.bytes;
+                }
+                return total;
+            }
+
+            @Override
+            public long wireBytes() {
+                long total = 0;
+                for (CountingConnection connection : connections) {
+                    total += connection.wireBytes;
+                }
+                return total;
+            }
+        };
+    }
+
+    @Override
+    public Hasher newHasher(int iterations) {
+        PasswordHasher hasher = new PasswordHasher(iterations, 1, 1);
+        return new Hasher() {
+            @Override
+            public String hash(String password) {
+                return hasher.hashNow(password);
+            }
+
+            @Override
+            public boolean verify(String password, String stored) {
+                return hasher.verifyNow(password, stored);
+            }
+        };
+    }
+
+    @Override
+    public History newHistory(Path directory, int ringCapacity, int cachedConversations) throws IOException {
+        MessageLog log = new MessageLog(directory, 64 * 1024 * 1024, 100_000, 200);
+        ConversationHistory history = new ConversationHistory(log, ringCapacity, 0, cachedConversations);
+        return new History() {
+            @Override
+            public long key(int userA, int userB) {
+                return ConversationHistory.key(userA, userB);
+            }
+
+            @Override
+            public void append(long key, String message) {
+                history.append(key, message);
+            }
+
+            @Override
+            public int latest(long key, int count) {
+                return history.latest(key, count).entries.size();
+            }
+
+            @Override
+            public int before(long key, int index, int count) {
+                return history.before(key, index, count).entries.size();
+            }
+
+            @Override
+            public int size(long key) {
+                return history.latest(key, 0).firstIndex;
+            }
+
+            @Override
+            public void close() {
+                history.close();
+            }
+        };
+    }
+
+    @Override
+    public Members newMembers(int capacity) {
+        RoomMembers members = new RoomMembers(capacity);
+        return new Members() {
+            @Override
+            public Object newMember() {
+                return new Server.ClientHandler(new CountingConnection());
+            }
+
+            @Override
+            public boolean join(Object member) {
+                return members.join((Server.ClientHandler) member);
+            }
+
+            @Override
+            public void leave(Object member) {
+                members.leave((Server.ClientHandler) member);
+            }
+
+            @Override
+            public int snapshotSize() {
+                return members.snapshot().length;
+            }
+        };
+    }
+
+    @Override
+    public Login newLogin(int iterations) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        setStatic("passwordHasher", new PasswordHasher(iterations, threads, 1024));
+        // A login also opens the user's mailbox and announces them to followers
+        setStatic("presence", new Presence(250));
+        try {
+            setStatic("mailbox", new Mailbox(new MessageLog(Files.createTempDirectory("chat-bench-mailbox"),
+                    1024 * 1024, 1000, 1000)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Field authenticated = field(Server.ClientHandler.class, "authenticated");
+
+        return new Login() {
+            @Override
+            public void register(String username, String password) {
+                try {
+                    if (!login(username, password)) {
+                        throw new IllegalStateException("Could not register " + username);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public boolean login(String username, String password) throws InterruptedException {
+                CountingConnection connection = new CountingConnection();
+                connection.completed = new CountDownLatch(1);
+                Server.ClientHandler handler = new Server.ClientHandler(connection);
+                handler.start();
+                handler.onLine(username);
+                handler.onLine(password);
+                connection.completed.await();   // Result of the hash, delivered through execute()
+
+                boolean loggedIn;
+                try {
+                    loggedIn = authenticated.getBoolean(handler);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+                handler.onLine("/exit");
+                handler.onDisconnect();
+                return loggedIn;
+            }
+        };
+    }
+
+    @Override
+    public TlsPeers newTls(Path directory) throws IOException {
+        Path keystore = directory.resolve("bench.p12");
+        Path passwordFile = directory.resolve("bench.pass");
+        Path certificate = directory.resolve("bench.crt");
+        Tls.selfSigned(keystore, passwordFile, certificate);
+        try {
+            return new MemoryTls(Tls.serverContext(keystore, Tls.readPassword(passwordFile), 20_000, 86_400),
+                    Tls.clientContext(certificate));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static Field field(Class<?> type, String name) {
+        try {
+            Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void setField(Object target, String name, Object value) {
+        try {
+            field(target.getClass(), name).set(target, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void setStatic(String name, Object value) {
+        try {
+            field(Server.class, name).set(null, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One room message fanned out to every member. Members sit on fake connections that only
+ * count bytes, so this is the cost of formatting, encoding and handing out the shared buffer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"2", "16", "128", "1024"})
+    int members;
+
+    @Param({"false", "true"})
+    boolean binary;
+
+    private ServerHooks.Room room;
+
+    @Setup
+    public void setup() {
+        room = ServerHooks.load().newRoom(members, binary, false);
+    }
+
+    @Benchmark
+    public void broadcast() {
+        room.broadcast("hello everyone, how is it going?");
+    }
+
+    @TearDown
+    public void check() {
+        if (room.bytesSent() == 0) {
+            throw new IllegalStateException("Broadcast reached no members");
+        }
+    }
+}
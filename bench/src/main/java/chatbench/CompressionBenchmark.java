@@ -0,0 +1,70 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Room broadcasts with and without per-connection deflate. The time per broadcast is the CPU
+ * side (every member compresses the message on its own stream); after each iteration the
+ * bytes that would go on the wire are printed next to the plain size, which is the bandwidth side.
+ * Messages cycle through a small set of chat lines with a changing number in each, the kind
+ * of repetition a long-lived deflate window is meant to catch without making it trivial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+    private static final String[] LINES = {
+            "hey, is anyone around?",
+            "just got back, what did I miss",
+            "the build is green again after the last fix",
+            "lunch in ten minutes? same place as yesterday",
+            "can someone review my change before the release",
+            "lol",
+            "I'll be offline for an hour, ping me if it breaks",
+            "did you see the numbers from the load test this morning",
+    };
+
+    @Param({"2", "16", "128"})
+    int members;
+
+    @Param({"false", "true"})
+    boolean deflate;
+
+    private ServerHooks.Room room;
+    private int next = 0;
+    private long broadcasts;
+    private long plainBefore;
+    private long wireBefore;
+
+    @Setup
+    public void setup() {
+        room = ServerHooks.load().newRoom(members, false, deflate);
+    }
+
+    @Setup(Level.Iteration)
+    public void mark() {
+        broadcasts = 0;
+        plainBefore = room.bytesSent();
+        wireBefore = room.wireBytes();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        room.broadcast(LINES[next & 7] + " #" + next++);
+        broadcasts++;
+    }
+
+    // Server output is switched off by the hooks, so this goes to stderr
+    @TearDown(Level.Iteration)
+    public void report() {
+        long plain = room.bytesSent() - plainBefore;
+        long wire = room.wireBytes() - wireBefore;
+        System.err.printf("  members=%d deflate=%b: %.1f bytes per member per message on the wire, %.1f plain (%.0f%%)%n",
+                members, deflate, (double) wire / broadcasts / members, (double) plain / broadcasts / members,
+                100.0 * wire / plain);
+    }
+}
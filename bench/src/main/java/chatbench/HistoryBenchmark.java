@@ -0,0 +1,68 @@
+package chatbench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * DM history: appending to the memory-mapped log, replaying the newest page from the
+ * ring buffer, and paging back into older messages that have to come from the log.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryBenchmark {
+    private static final int PAGE = 20;
+    private static final int PREFILL = 10_000;
+
+    @Param({"100"})
+    int ringCapacity;
+
+    private Path directory;
+    private ServerHooks.History history;
+    private long conversation;      // Users 0 and 1
+    private long other;             // Users 2 and 3
+    private int counter = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("chat-bench");
+        history = ServerHooks.load().newHistory(directory, ringCapacity, 10_000);
+        conversation = history.key(0, 1);
+        other = history.key(2, 3);
+        for (int i = 0; i < PREFILL; i++) {
+            history.append(conversation, "[alice]: message number " + i);
+        }
+    }
+
+    @TearDown
+    public void cleanup() throws IOException {
+        history.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    // Goes to a separate conversation so the replay benchmarks always see the same data
+    @Benchmark
+    public void append() {
+        history.append(other, "[carol]: message number " + counter++);
+    }
+
+    @Benchmark
+    public int replayLatest() {
+        return history.latest(conversation, PAGE);
+    }
+
+    @Benchmark
+    public int replayOlderPage() {
+        return history.before(conversation, PREFILL / 2, PAGE);
+    }
+}
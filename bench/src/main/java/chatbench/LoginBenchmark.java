@@ -0,0 +1,48 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Password hashing on its own, and the whole login of an existing user through the
+ * ClientHandler state machine (prompts, reservation, async verification, main menu, logout).
+ * The difference between verify and login is what the login path adds on top of the hash.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoginBenchmark {
+    @Param({"10000", "100000"})
+    int iterations;
+
+    private ServerHooks.Hasher hasher;
+    private ServerHooks.Login login;
+    private String stored;
+
+    @Setup
+    public void setup() {
+        ServerHooks hooks = ServerHooks.load();
+        hasher = hooks.newHasher(iterations);
+        stored = hasher.hash("secret");
+        login = hooks.newLogin(iterations);
+        login.register("alice", "secret");
+    }
+
+    @Benchmark
+    public String hashPassword() {
+        return hasher.hash("secret");
+    }
+
+    @Benchmark
+    public boolean verifyPassword() {
+        return hasher.verify("secret", stored);
+    }
+
+    @Benchmark
+    public boolean login() throws InterruptedException {
+        return login.login("alice", "secret");
+    }
+}
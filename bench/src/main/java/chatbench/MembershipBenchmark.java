@@ -0,0 +1,55 @@
+package chatbench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Room membership under contention: three threads keep joining and leaving a shared room
+ * while a fourth takes the broadcast snapshot, the way a busy room is used.
+ */
+@State(Scope.Group)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MembershipBenchmark {
+    @Param({"16", "256"})
+    int residents;      // Members that stay in the room the whole time
+
+    private ServerHooks.Members members;
+
+    @State(Scope.Thread)
+    public static class Visitor {
+        Object member;
+
+        @Setup
+        public void setup(MembershipBenchmark room) {
+            member = room.members.newMember();
+        }
+    }
+
+    @Setup
+    public void setup() {
+        members = ServerHooks.load().newMembers(Integer.MAX_VALUE);
+        for (int i = 0; i < residents; i++) {
+            members.join(members.newMember());
+        }
+    }
+
+    @Benchmark
+    @Group("room")
+    @GroupThreads(3)
+    public boolean joinLeave(Visitor visitor) {
+        boolean joined = members.join(visitor.member);
+        members.leave(visitor.member);
+        return joined;
+    }
+
+    @Benchmark
+    @Group("room")
+    @GroupThreads(1)
+    public int snapshot() {
+        return members.snapshotSize();
+    }
+}
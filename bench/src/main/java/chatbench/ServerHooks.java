@@ -0,0 +1,106 @@
+package chatbench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * What the benchmarks need from the server. The server classes live in the default package,
+ * which code in a named package can't import, so ServerHooksImpl (compiled into the default
+ * package next to them) implements this interface and the benchmarks only see it.
+ */
+public interface ServerHooks {
+    // A room with `members` clients whose connections only count what they are sent, deflated or not
+    Room newRoom(int members, boolean binary, boolean deflate);
+
+    // PBKDF2 hashing with the given cost, run on the calling thread
+    Hasher newHasher(int iterations);
+
+    // DM history over a fresh message log in the given directory
+    History newHistory(Path directory, int ringCapacity, int cachedConversations) throws IOException;
+
+    // A room's membership set and a supply of distinct members for it
+    Members newMembers(int capacity);
+
+    // Registers users for Login.login() with the given hashing cost
+    Login newLogin(int iterations);
+
+    // The TLS listener's server context and a client context trusting it, over a self-signed
+    // certificate generated in `directory`; their engines talk to each other in memory
+    TlsPeers newTls(Path directory) throws IOException;
+
+    static ServerHooks load() {
+        try {
+            return (ServerHooks) Class.forName("ServerHooksImpl").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Server classes are missing from the benchmark jar", e);
+        }
+    }
+
+    interface Room {
+        // One ChatRoom.broadcast() from a sender outside the room
+        void broadcast(String message);
+
+        // Bytes handed to all fake connections so far
+        long bytesSent();
+
+        // The same after per-connection compression, equal to bytesSent() without it
+        long wireBytes();
+    }
+
+    interface Hasher {
+        String hash(String password);
+
+        boolean verify(String password, String stored);
+    }
+
+    interface History {
+        // Conversation key of two user ids
+        long key(int userA, int userB);
+
+        void append(long key, String message);
+
+        // Messages in the newest page, served from the ring buffer
+        int latest(long key, int count);
+
+        // Messages in the page before `index`, read from the log when the ring doesn't reach back that far
+        int before(long key, int index, int count);
+
+        int size(long key);
+
+        void close();
+    }
+
+    interface Members {
+        // A new member handler, not in the room yet
+        Object newMember();
+
+        boolean join(Object member);
+
+        void leave(Object member);
+
+        // Number of members in the broadcast snapshot
+        int snapshotSize();
+    }
+
+    interface Login {
+        // Creates an account (runs one hash)
+        void register(String username, String password);
+
+        // Username prompt, password prompt, async verification, main menu, then disconnect;
+        // true when the session got logged in
+        boolean login(String username, String password) throws InterruptedException;
+    }
+
+    interface TlsPeers {
+        // One whole handshake between new engines, delegated tasks included; with `resume` the
+        // client offers the session of an earlier handshake and the server takes it from its cache
+        void handshake(boolean resume);
+
+        // Whether the last handshake was an abbreviated one
+        boolean resumed();
+
+        // Encrypt `length` bytes into records on the client and decrypt them on the server,
+        // or with `tls` false just copy them once like a plain read; returns the bytes delivered
+        int send(int length, boolean tls);
+    }
+}
@@ -0,0 +1,103 @@
+package chatbench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The TLS listener's costs, on engines from the server's own contexts with a certificate
+ * generated for the run (EC P-256, like the server's). handshake is the rate one core manages,
+ * full versus resumed from the session cache: both sides' work including the tasks the server
+ * runs on its handshake pool, without the network round trips. send is the price of encryption
+ * per message, records encrypted on one side and decrypted on the other, next to the single copy
+ * a plain connection makes; after each iteration the throughput in MB/s is printed as well.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark {
+    @State(Scope.Thread)
+    public static class Handshakes {
+        @Param({"false", "true"})
+        boolean resume;
+
+        Path directory;
+        ServerHooks.TlsPeers peers;
+
+        @Setup
+        public void setup() throws IOException {
+            directory = Files.createTempDirectory("chat-bench-tls");
+            peers = ServerHooks.load().newTls(directory);
+            peers.handshake(resume);
+            if (peers.resumed() != resume) {
+                throw new IllegalStateException("Expected resume=" + resume + ", the handshake did the opposite");
+            }
+        }
+
+        @TearDown
+        public void cleanup() throws IOException {
+            delete(directory);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Messages {
+        @Param({"64", "1024", "16384"})
+        int bytes;
+
+        @Param({"false", "true"})
+        boolean tls;
+
+        Path directory;
+        ServerHooks.TlsPeers peers;
+        long sent;
+        long started;
+
+        @Setup
+        public void setup() throws IOException {
+            directory = Files.createTempDirectory("chat-bench-tls");
+            peers = ServerHooks.load().newTls(directory);
+        }
+
+        @Setup(Level.Iteration)
+        public void mark() {
+            sent = 0;
+            started = System.nanoTime();
+        }
+
+        // Server output is switched off by the hooks, so this goes to stderr
+        @TearDown(Level.Iteration)
+        public void report() {
+            System.err.printf("  bytes=%d tls=%b: %.1f MB/s%n", bytes, tls, sent * 1e3 / (System.nanoTime() - started));
+        }
+
+        @TearDown
+        public void cleanup() throws IOException {
+            delete(directory);
+        }
+    }
+
+    @Benchmark
+    public void handshake(Handshakes state) {
+        state.peers.handshake(state.resume);
+    }
+
+    @Benchmark
+    public int send(Messages state) {
+        int delivered = state.peers.send(state.bytes, state.tls);
+        state.sent += delivered;
+        return delivered;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class FramesTest {
+    // Records what the handler sends, nothing else of a transport is needed before login
+    private static final class Recorder implements Connection {
+        final List<String> sent = new ArrayList<>();
+
+        @Override
+        public void send(ByteBuffer encodedLine) {
+            ByteBuffer copy = encodedLine.duplicate();
+            byte[] bytes = new byte[copy.remaining()];
+            copy.get(bytes);
+            sent.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+
+        @Override public void switchToBinary() { }
+        @Override public void compress() { }
+        @Override public void execute(Runnable task) { task.run(); }
+        @Override public void attach(Server.ClientHandler handler) { }
+        @Override public void close() { }
+        @Override public void abort() { }
+        @Override public String remoteAddress() { return "test"; }
+        @Override public OutboundQueue outboundQueue() { return null; }
+    }
+
+    @Test
+    void longestAllowedInputFitsEveryFrameBuiltFromIt() {
+        String name = "n".repeat(Frames.MAX_NAME_BYTES);
+        String text = "t".repeat(Frames.MAX_TEXT_BYTES);
+        assertDoesNotThrow(() -> Frames.encode(Frames.MESSAGE, name, name, text));
+        assertDoesNotThrow(() -> Frames.encode(Frames.HISTORY, name, name, text));
+        assertDoesNotThrow(() -> Frames.dm(name, text, Integer.MAX_VALUE));
+        assertDoesNotThrow(() -> Frames.encode(Cluster.ROOM_MESSAGE, name, name, text));
+        String password = "\ud83d\udd11".repeat(Frames.MAX_PASSWORD_BYTES / 4);
+        assertEquals(Frames.MAX_PASSWORD_BYTES, Frames.utf8Length(password));
+        assertDoesNotThrow(() -> Cluster.roomRequest(Integer.MAX_VALUE, true, name, password, name));
+        assertDoesNotThrow(() -> Frames.join(true, name, password));
+        assertThrows(IllegalArgumentException.class,
+                () -> Frames.encode(Frames.MESSAGE, name, name, text + "t".repeat(Frames.MAX_PAYLOAD - Frames.MAX_TEXT_BYTES)));
+    }
+
+    @Test
+    void utf8LengthMatchesTheEncoding() {
+        for (String value : new String[] {"", "abc", "w\u00f6rld", "\u20ac100", "smile \ud83d\ude00", "lone \ud83d!"}) {
+            int encoded = value.getBytes(StandardCharsets.UTF_8).length;
+            if (value.startsWith("lone")) {
+                assertTrue(Frames.utf8Length(value) >= encoded, value);
+            } else {
+                assertEquals(encoded, Frames.utf8Length(value), value);
+            }
+        }
+    }
+
+    @Test
+    void oversizedMessageIsRefusedWithANotice() {
+        Recorder connection = new Recorder();
+        Server.ClientHandler handler = new Server.ClientHandler(connection);
+        // Too long by one multi-byte character, well under InputDecoder's line limit
+        String message = "x".repeat(Frames.MAX_TEXT_BYTES - 1) + "\u00f6";
+        assertDoesNotThrow(() -> handler.onLine(message));
+        assertEquals(1, connection.sent.size());
+        assertTrue(connection.sent.get(0).startsWith("[Server] Input too long"), connection.sent.get(0));
+    }
+}
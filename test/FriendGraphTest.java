@@ -0,0 +1,87 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+
+class FriendGraphTest {
+    private static int[] expected(TreeSet<Long> edges, int user) {
+        return edges.subSet((long) user << 32, (long) (user + 1) << 32).stream()
+                .mapToInt(edge -> (int) (long) edge).toArray();
+    }
+
+    // Collects what the visitor is shown, checking the count agrees
+    private static int[] following(FriendGraph graph, int user) {
+        IntStream.Builder friends = IntStream.builder();
+        graph.forEachFollowing(user, friends::add);
+        int[] visited = friends.build().toArray();
+        assertEquals(visited.length, graph.followingCount(user), "count for user " + user);
+        return visited;
+    }
+
+    @Test
+    void addedEdgesAreSortedAndDeduplicated() {
+        FriendGraph graph = new FriendGraph();
+        assertTrue(graph.add(3, 9));
+        assertTrue(graph.add(3, 1));
+        assertTrue(graph.add(3, 5));
+        assertFalse(graph.add(3, 5));
+
+        assertArrayEquals(new int[] {1, 5, 9}, following(graph, 3));
+        assertArrayEquals(new int[0], following(graph, 2));
+        assertArrayEquals(new int[0], following(graph, 100));
+        assertTrue(graph.contains(3, 1));
+        assertFalse(graph.contains(1, 3));
+        assertEquals(3, graph.size());
+    }
+
+    @Test
+    void mergesIntoRowsWithoutLosingEdges() {
+        FriendGraph graph = new FriendGraph();
+        TreeSet<Long> edges = new TreeSet<>();
+        Random random = new Random(42);
+        // Well past the merge threshold, several merges with edges before and after them
+        for (int i = 0; i < 20_000; i++) {
+            int from = random.nextInt(500);
+            int to = random.nextInt(500);
+            assertEquals(edges.add(((long) from << 32) | to), graph.add(from, to));
+        }
+
+        assertEquals(edges.size(), graph.size());
+        for (int user = 0; user < 501; user++) {
+            assertArrayEquals(expected(edges, user), following(graph, user), "user " + user);
+        }
+        for (long edge : edges) {
+            assertTrue(graph.contains((int) (edge >>> 32), (int) edge));
+            assertFalse(graph.add((int) (edge >>> 32), (int) edge));
+        }
+    }
+
+    @Test
+    void snapshotRoundTripKeepsRowsAndLaterEdges() throws IOException {
+        FriendGraph graph = new FriendGraph();
+        for (int i = 0; i < 3000; i++) {
+            graph.add(i % 50, (i * 7) % 300);
+        }
+        graph.add(49, 1000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        graph.writeTo(new DataOutputStream(bytes));
+
+        FriendGraph restored = new FriendGraph();
+        restored.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        restored.restore(49, 1000);     // Replay may repeat what the snapshot has
+        restored.restore(60, 2);
+
+        assertEquals(graph.size() + 1, restored.size());
+        for (int user = 0; user < 50; user++) {
+            assertArrayEquals(following(graph, user), following(restored, user));
+        }
+        assertArrayEquals(new int[] {2}, following(restored, 60));
+    }
+}
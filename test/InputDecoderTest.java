@@ -0,0 +1,123 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import org.junit.jupiter.api.Test;
+
+class InputDecoderTest {
+    // Records what came out, switching to frames after the negotiation line like the server does
+    private static final class Recorder implements InputDecoder.Sink {
+        final InputDecoder decoder;
+        final List<String> received = new ArrayList<>();
+
+        Recorder(InputDecoder decoder) {
+            this.decoder = decoder;
+        }
+
+        @Override
+        public void onLine(String line) {
+            received.add("line:" + line);
+            if (line.equals(Frames.NEGOTIATE)) decoder.switchToBinary();
+        }
+
+        @Override
+        public void onFrame(byte type, ByteBuffer payload) {
+            StringBuilder fields = new StringBuilder();
+            while (payload.hasRemaining()) {
+                fields.append(fields.length() > 0 ? "," : "").append(Frames.readString(payload));
+            }
+            received.add("frame" + type + ":" + fields);
+        }
+    }
+
+    private static byte[] concat(Object... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Object part : parts) {
+            if (part instanceof String) {
+                out.writeBytes(((String) part).getBytes(StandardCharsets.UTF_8));
+            } else {
+                ByteBuffer frame = ((ByteBuffer) part).duplicate();
+                byte[] bytes = new byte[frame.remaining()];
+                frame.get(bytes);
+                out.writeBytes(bytes);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // Feeds the input in pieces of `chunk` bytes
+    private static List<String> decode(byte[] input, int chunk) {
+        InputDecoder decoder = new InputDecoder();
+        Recorder recorder = new Recorder(decoder);
+        for (int i = 0; i < input.length; i += chunk) {
+            assertTrue(decoder.feed(ByteBuffer.wrap(input, i, Math.min(chunk, input.length - i)), recorder));
+        }
+        return recorder.received;
+    }
+
+    @Test
+    void linesSplitAnywhere() {
+        byte[] input = concat("alice\r\nhello w\u00f6rld\n\n");
+        List<String> expected = List.of("line:alice", "line:hello w\u00f6rld", "line:");
+        for (int chunk = 1; chunk <= input.length; chunk++) {
+            assertEquals(expected, decode(input, chunk), "chunks of " + chunk);
+        }
+    }
+
+    @Test
+    void framesSplitAnywhereIncludingTheHeader() {
+        byte[] input = concat("/binary\n",
+                Frames.encode(Frames.LOGIN, "alice", "secret"),
+                Frames.encode(Frames.LEAVE),
+                Frames.encode(Frames.MESSAGE, "x".repeat(1000)),
+                Frames.encode(Frames.DM, "bob", "hi"));
+        List<String> expected = List.of("line:/binary", "frame1:alice,secret", "frame3:",
+                "frame4:" + "x".repeat(1000), "frame5:bob,hi");
+        for (int chunk : new int[] {1, 2, 3, 4, 7, 100, input.length}) {
+            assertEquals(expected, decode(input, chunk), "chunks of " + chunk);
+        }
+    }
+
+    @Test
+    void compressedInputAfterTheSwitch() {
+        byte[] plain = concat("second\nthird\n");
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(plain);
+        byte[] compressed = new byte[256];
+        int length = deflater.deflate(compressed, 0, compressed.length, Deflater.SYNC_FLUSH);
+        deflater.end();
+        byte[] first = concat("first\n");
+
+        InputDecoder decoder = new InputDecoder();
+        List<String> received = new ArrayList<>();
+        InputDecoder.Sink sink = new InputDecoder.Sink() {
+            @Override
+            public void onLine(String line) {
+                received.add(line);
+                if (line.equals("first")) decoder.switchToCompressed();
+            }
+
+            @Override
+            public void onFrame(byte type, ByteBuffer payload) {
+                fail("no frames expected");
+            }
+        };
+        // The switch applies to the rest of the same read
+        ByteBuffer input = ByteBuffer.allocate(first.length + length);
+        input.put(first).put(compressed, 0, length).flip();
+        assertTrue(decoder.feed(input, sink));
+        assertEquals(List.of("first", "second", "third"), received);
+    }
+
+    @Test
+    void overlongLineIsRejected() {
+        InputDecoder decoder = new InputDecoder();
+        Recorder recorder = new Recorder(decoder);
+        assertFalse(decoder.feed(ByteBuffer.wrap(new byte[64 * 1024 + 1]), recorder));
+        assertTrue(recorder.received.isEmpty());
+    }
+}
@@ -0,0 +1,76 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+    // Sub-buckets split every power of two in 16, so a bound is at most 1/16 above the value
+    private static void assertClose(long expected, long actual) {
+        assertTrue(actual >= expected && actual <= expected + expected / 16 + 1,
+                "expected about " + expected + " but was " + actual);
+    }
+
+    @Test
+    void percentilesOfAUniformRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 10_000; value++) {
+            histogram.record(value);
+        }
+
+        assertEquals(10_000, histogram.count());
+        assertEquals(10_000, histogram.max());
+        assertEquals(5_000, histogram.mean());
+        assertClose(5_000, histogram.percentile(0.5));
+        assertClose(9_000, histogram.percentile(0.9));
+        assertClose(9_900, histogram.percentile(0.99));
+        assertEquals(10_000, histogram.percentile(1.0));
+    }
+
+    @Test
+    void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 0; value < 16; value++) {
+            histogram.record(value);
+        }
+        assertEquals(7, histogram.percentile(0.5));
+        assertEquals(15, histogram.percentile(1.0));
+    }
+
+    @Test
+    void emptyAndNegative() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(0.99));
+        histogram.record(-5);
+        assertEquals(1, histogram.count());
+        assertEquals(0, histogram.max());
+    }
+
+    @Test
+    void mergedHistogramsMatchOneRecordingEverything() {
+        LatencyHistogram all = new LatencyHistogram();
+        LatencyHistogram even = new LatencyHistogram();
+        LatencyHistogram odd = new LatencyHistogram();
+        for (long value = 0; value < 100_000; value += 7) {
+            all.record(value);
+            (value % 2 == 0 ? even : odd).record(value);
+        }
+        even.add(odd);
+
+        assertEquals(all.count(), even.count());
+        assertEquals(all.sum(), even.sum());
+        assertEquals(all.max(), even.max());
+        for (double quantile : new double[] {0.1, 0.5, 0.9, 0.999}) {
+            assertEquals(all.percentile(quantile), even.percentile(quantile));
+        }
+    }
+
+    @Test
+    void bucketsGrowWithTheValue() {
+        int previous = -1;
+        for (long value = 0; value < 1 << 20; value = value * 3 / 2 + 1) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(bucket >= previous && bucket < LatencyHistogram.BUCKETS);
+            previous = bucket;
+        }
+        assertTrue(LatencyHistogram.bucket(Long.MAX_VALUE) < LatencyHistogram.BUCKETS);
+    }
+}
@@ -0,0 +1,127 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MessageLogTest {
+    private static final int SEGMENT_BYTES = 4096;
+
+    @TempDir
+    Path directory;
+
+    private MessageLog open(int retention) throws IOException {
+        return new MessageLog(directory, SEGMENT_BYTES, retention, 10);
+    }
+
+    // Without background passes during the test, so nothing changes under the assertions
+    private MessageLog reopen(int retention) throws IOException {
+        return new MessageLog(directory, SEGMENT_BYTES, retention, TimeUnit.HOURS.toMillis(1));
+    }
+
+    private static String message(MessageLog log, String key, int index) {
+        List<MessageLog.Entry> entries = log.read(key, index, index + 1);
+        return entries.isEmpty() ? null : entries.get(0).message;
+    }
+
+    // Enough for many sealed segments, so the background thread compacts
+    private static void fill(MessageLog log, int messages) {
+        for (int i = 0; i < messages; i++) {
+            log.append("a", "a" + i);
+            if (i % 10 == 0) log.append("b", "b" + i / 10);
+        }
+    }
+
+    // Waits until compaction brought a conversation down to fewer than `kept` messages and
+    // has nothing left to reclaim
+    private static void awaitCompaction(MessageLog log, String key, int kept) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        int size = log.read(key, 0, Integer.MAX_VALUE).size();
+        int stable = 0;
+        while (size >= kept || stable < 20) {
+            assertTrue(System.nanoTime() < deadline, "compaction never ran");
+            Thread.sleep(10);
+            int now = log.read(key, 0, Integer.MAX_VALUE).size();
+            stable = now == size ? stable + 1 : 0;
+            size = now;
+        }
+    }
+
+    // What is left is the newest messages, consecutive and still under their original indexes
+    private static int assertNewestKept(MessageLog log, String key, int total) {
+        List<MessageLog.Entry> kept = log.read(key, 0, Integer.MAX_VALUE);
+        int first = total - kept.size();
+        for (int i = 0; i < kept.size(); i++) {
+            assertEquals(key + (first + i), kept.get(i).message);
+            assertEquals(key + (first + i), message(log, key, first + i));
+        }
+        assertNull(message(log, key, first - 1));
+        return kept.size();
+    }
+
+    @Test
+    void recoversEverythingAfterRestart() throws IOException {
+        MessageLog log = open(1_000_000);
+        fill(log, 500);
+        log.appendLater("b", "queued");
+        log.close();
+
+        log = reopen(1_000_000);
+        assertEquals(500, log.count("a"));
+        assertEquals(51, log.count("b"));
+        assertEquals("a0", message(log, "a", 0));
+        assertEquals("a499", message(log, "a", 499));
+        assertEquals("queued", message(log, "b", 50));
+        assertEquals(0, log.count("nobody"));
+        log.close();
+    }
+
+    @Test
+    void compactionKeepsTheNewestAndTheirIndexes() throws IOException, InterruptedException {
+        MessageLog log = open(5);
+        fill(log, 3000);
+        awaitCompaction(log, "b", 100);
+
+        assertEquals(3000, log.count("a"));
+        assertEquals(300, log.count("b"));
+        assertNewestKept(log, "a", 3000);
+        assertTrue(assertNewestKept(log, "b", 300) >= 5);
+        log.close();
+    }
+
+    @Test
+    void indexesSurviveCompactionAndRestart() throws IOException, InterruptedException {
+        MessageLog log = open(5);
+        fill(log, 3000);
+        awaitCompaction(log, "b", 100);
+        log.close();
+
+        log = reopen(5);
+        assertEquals(3000, log.count("a"));
+        assertEquals(300, log.count("b"));
+        assertTrue(assertNewestKept(log, "a", 3000) < 3000);
+        assertNewestKept(log, "b", 300);
+
+        // New messages go after the newest one, wherever compaction put its output
+        log.append("a", "a3000");
+        log.close();
+        log = reopen(5);
+        assertEquals(3001, log.count("a"));
+        assertNewestKept(log, "a", 3001);
+        log.close();
+    }
+
+    @Test
+    void pinnedMessagesSurviveCompaction() throws IOException, InterruptedException {
+        MessageLog log = open(5);
+        log.pin(key -> key.equals("b") ? 100 : Integer.MAX_VALUE);
+        fill(log, 3000);
+        awaitCompaction(log, "a", 1000);    // Compacts both conversations in the same pass
+
+        assertEquals(200, assertNewestKept(log, "b", 300));
+        log.close();
+    }
+}
@@ -0,0 +1,68 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ReplayBufferTest {
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String text(List<ByteBuffer> buffers) {
+        StringBuilder out = new StringBuilder();
+        for (ByteBuffer buffer : buffers) {
+            out.append(StandardCharsets.US_ASCII.decode(buffer.duplicate()));
+        }
+        return out.toString();
+    }
+
+    @Test
+    void replaysFromAnyOffsetIncludingMidMessage() {
+        ReplayBuffer replay = new ReplayBuffer(1024);
+        replay.append(bytes("aaaa"));
+        replay.append(bytes("bbbb"));
+        replay.append(bytes("cccc"));
+
+        assertEquals("aaaabbbbcccc", text(replay.since(0)));
+        assertEquals("bbbbcccc", text(replay.since(4)));
+        assertEquals("bbcccc", text(replay.since(6)));
+        assertEquals("", text(replay.since(12)));
+        assertNull(replay.since(13), "offset past what was sent");
+    }
+
+    @Test
+    void dropsOldestMessagesPastCapacity() {
+        ReplayBuffer replay = new ReplayBuffer(8);
+        replay.append(bytes("aaaa"));
+        replay.append(bytes("bbbb"));
+        replay.append(bytes("cccc"));
+
+        assertNull(replay.since(0));
+        assertNull(replay.since(3));
+        assertEquals("bbbbcccc", text(replay.since(4)));
+        assertEquals("c", text(replay.since(11)));
+    }
+
+    @Test
+    void keepsTheNewestMessageEvenWhenItAloneIsTooBig() {
+        ReplayBuffer replay = new ReplayBuffer(4);
+        replay.append(bytes("aa"));
+        replay.append(bytes("0123456789"));
+
+        assertNull(replay.since(0));
+        assertEquals("456789", text(replay.since(6)));
+    }
+
+    @Test
+    void replayDoesNotConsumeTheAppendedBuffers() {
+        ReplayBuffer replay = new ReplayBuffer(1024);
+        ByteBuffer message = bytes("hello");
+        replay.append(message);
+        replay.since(0).get(0).position(5);
+
+        assertEquals(5, message.remaining());
+        assertEquals("hello", text(replay.since(0)));
+    }
+}
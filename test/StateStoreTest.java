@@ -0,0 +1,168 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StateStoreTest {
+    // [int length][byte type][int id][int 2]["uN"][int 2]["hN"][int crc]
+    private static final int ACCOUNT_RECORD_BYTES = 4 + 1 + 4 + 6 + 6 + 4;
+    // A key emoji, 4 bytes in UTF-8 but 6 in writeUTF's modified UTF-8
+    private static final String KEY = "\ud83d\udd11";
+
+    @TempDir
+    Path directory;
+
+    private UserRegistry users;
+    private FriendGraph friends;
+
+    private StateStore open() throws IOException {
+        users = new UserRegistry();
+        friends = new FriendGraph();
+        StateStore state = new StateStore(directory, 1, Integer.MAX_VALUE);
+        state.recover(users, friends);
+        users.persistTo(state);
+        friends.persistTo(state);
+        state.start(List::of);
+        return state;
+    }
+
+    // Like a crash: the log thread has synced, nothing was snapshotted
+    private void awaitSynced(Path wal, long bytes) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (Files.size(wal) < bytes) {
+            assertTrue(System.nanoTime() < deadline, "the log was never synced");
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void replaysTheLogUpToATornTail() throws IOException, InterruptedException {
+        open();
+        for (int i = 0; i < 3; i++) {
+            users.register("u" + i, "h" + i);
+        }
+        Path wal = directory.resolve("wal-00000001.log");
+        awaitSynced(wal, 3 * ACCOUNT_RECORD_BYTES);
+
+        // The last record was half written when the process died
+        try (FileChannel channel = FileChannel.open(wal, StandardOpenOption.WRITE)) {
+            channel.truncate(3 * ACCOUNT_RECORD_BYTES - 5);
+        }
+
+        StateStore state = open();
+        assertEquals(2, users.size());
+        assertEquals(0, users.id("u0"));
+        assertEquals(1, users.id("u1"));
+        assertEquals(-1, users.id("u2"));
+
+        // The next id is the torn one, and the log carries on in a fresh file
+        assertEquals(2, users.register("u2", "h2"));
+        state.close();
+        open();
+        assertEquals(3, users.size());
+        assertEquals("h2", users.hash(users.id("u2")));
+    }
+
+    @Test
+    void ignoresGarbageAfterTheLastRecord() throws IOException, InterruptedException {
+        open();
+        users.register("u0", "h0");
+        users.register("u1", "h1");
+        friends.add(0, 1);
+        Path wal = directory.resolve("wal-00000001.log");
+        awaitSynced(wal, 2 * ACCOUNT_RECORD_BYTES + 4 + 1 + 8 + 4);
+        Files.write(wal, new byte[] {0, 0, 0, 9, 3, 1, 2}, StandardOpenOption.APPEND);
+
+        open();
+        assertEquals(2, users.size());
+        assertTrue(friends.contains(0, 1));
+        assertEquals(1, friends.size());
+    }
+
+    @Test
+    void snapshotOnCloseThenReplayAfterIt() throws IOException, InterruptedException {
+        StateStore state = open();
+        users.register("u0", "h0");
+        users.register("u1", "h1");
+        state.close();
+
+        open();
+        users.register("u2", "h2");
+        friends.add(2, 0);
+        awaitSynced(directory.resolve("wal-00000003.log"), ACCOUNT_RECORD_BYTES + 4 + 1 + 8 + 4);
+
+        open();
+        assertEquals(3, users.size());
+        assertEquals(1, friends.followingCount(2));
+        assertTrue(friends.contains(2, 0));
+    }
+
+    @Test
+    void roomWithANonBmpPasswordSurvivesTheLogAndASnapshot() throws IOException, InterruptedException {
+        // 48001 bytes of UTF-8, more than the 65535 bytes writeUTF could hold once it made them 72002
+        String password = KEY.repeat(12_000) + "\u0000";
+        List<StateStore.Room> rooms = new ArrayList<>();
+        StateStore state = open();
+        state.roomCreated("lobby", password, 42);
+        rooms.add(new StateStore.Room("lobby", password, 42));
+        awaitSynced(directory.resolve("wal-00000001.log"), 4 + 1 + 4 + 5 + 4 + 48_001 + 8 + 4);
+
+        // Replayed from the log
+        StateStore.Room restored = recover().get(0);
+        assertEquals(password, restored.password);
+        assertEquals(42, restored.created);
+
+        // Then written to a snapshot and read back from it
+        StateStore reopened = new StateStore(directory, 1, Integer.MAX_VALUE);
+        reopened.recover(users, friends);
+        reopened.start(() -> rooms);
+        reopened.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().startsWith("wal-")) Files.delete(file);
+            }
+        }
+        assertEquals(password, recover().get(0).password);
+    }
+
+    @Test
+    void readsRecordsWrittenWithWriteUtf() throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeUTF("lobby");
+        out.writeUTF(KEY);
+        out.writeLong(7);
+        byte[] body = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(2);      // The old ROOM record type
+        crc.update(body);
+        ByteBuffer record = ByteBuffer.allocate(4 + 1 + body.length + 4);
+        record.putInt(1 + body.length + 4).put((byte) 2).put(body).putInt((int) crc.getValue());
+        Files.write(directory.resolve("wal-00000001.log"), record.array());
+
+        StateStore.Room room = recover().get(0);
+        assertEquals("lobby", room.name);
+        assertEquals(KEY, room.password);
+        assertEquals(7, room.created);
+    }
+
+    // Recovers into a fresh registry and graph and returns the rooms, leaving the store unstarted
+    private List<StateStore.Room> recover() throws IOException {
+        users = new UserRegistry();
+        friends = new FriendGraph();
+        return new StateStore(directory, 1, Integer.MAX_VALUE).recover(users, friends);
+    }
+}
@@ -0,0 +1,76 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest {
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final TimerWheel wheel = new TimerWheel("test-wheel", TICK, TimeUnit.SECONDS.toNanos(1));
+
+    // Counts expiries and remembers when the last one ran
+    private static final class Probe extends TimerWheel.Timer {
+        final AtomicInteger fired = new AtomicInteger();
+        final AtomicLong firedAt = new AtomicLong();
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        @Override
+        protected void expire(long now) {
+            firedAt.set(System.nanoTime());
+            fired.incrementAndGet();
+            latch.countDown();
+        }
+    }
+
+    @AfterEach
+    void shutdown() {
+        wheel.shutdown();
+    }
+
+    @Test
+    void firesOnceNoEarlierThanTheDeadline() throws InterruptedException {
+        Probe probe = new Probe();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(30);
+        wheel.schedule(probe, deadline);
+
+        assertTrue(probe.latch.await(2, TimeUnit.SECONDS));
+        assertTrue(probe.firedAt.get() >= deadline, "fired before its deadline");
+        Thread.sleep(50);
+        assertEquals(1, probe.fired.get());
+    }
+
+    @Test
+    void cancelledTimerNeverFires() throws InterruptedException {
+        Probe probe = new Probe();
+        wheel.schedule(probe, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(20));
+        wheel.cancel(probe);
+        wheel.cancel(probe);    // Harmless when it is off the wheel already
+
+        assertFalse(probe.latch.await(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void reschedulingMovesTheTimer() throws InterruptedException {
+        Probe probe = new Probe();
+        wheel.schedule(probe, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10));
+        long later = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(80);
+        wheel.schedule(probe, later);
+
+        assertTrue(probe.latch.await(2, TimeUnit.SECONDS));
+        assertTrue(probe.firedAt.get() >= later, "fired at the old deadline");
+        assertEquals(1, probe.fired.get());
+    }
+
+    @Test
+    void deadlineBeyondTheWheelFiresAtItsEdge() throws InterruptedException {
+        Probe probe = new Probe();
+        wheel.schedule(probe, System.nanoTime() + TimeUnit.HOURS.toNanos(1));
+
+        // The wheel covers at least a second, the owner is expected to reschedule from there
+        assertTrue(probe.latch.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,31 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class TokenBucketTest {
+    @Test
+    void allowsTheBurstThenRefuses() {
+        TokenBucket bucket = new TokenBucket(1, 5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryAcquire(), "token " + i);
+        }
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    void refillsOverTime() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100, 1);
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        Thread.sleep(30);
+        assertTrue(bucket.tryAcquire());
+    }
+
+    @Test
+    void zeroRateIsUnlimited() {
+        TokenBucket bucket = new TokenBucket(0, 1);
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(bucket.tryAcquire());
+        }
+    }
+}
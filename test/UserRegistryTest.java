@@ -0,0 +1,77 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class UserRegistryTest {
+    @Test
+    void idsAreDenseAndNamesUnique() {
+        UserRegistry users = new UserRegistry();
+        assertEquals(0, users.register("alice", "h1"));
+        assertEquals(1, users.register("bob", "h2"));
+        assertEquals(-1, users.register("alice", "other"));
+
+        assertEquals(2, users.size());
+        assertEquals(1, users.id("bob"));
+        assertEquals(-1, users.id("carol"));
+        assertEquals("alice", users.name(0));
+        assertEquals("h1", users.hash(0));
+    }
+
+    @Test
+    void growsPastTheInitialTable() {
+        UserRegistry users = new UserRegistry();
+        int count = 10_000;     // Several generations of the table
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, users.register("user" + i, "hash" + i));
+        }
+
+        assertEquals(count, users.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, users.id("user" + i));
+            assertEquals("hash" + i, users.hash(i));
+        }
+        assertFalse(users.exists("user" + count));
+        List<String> names = new ArrayList<>();
+        users.forEach((name, hash) -> names.add(name));
+        assertEquals(count, names.size());
+        assertEquals("user9999", names.get(9999));
+    }
+
+    @Test
+    void lookupsDuringGrowthSeeEveryRegisteredName() throws InterruptedException {
+        UserRegistry users = new UserRegistry();
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 50_000; i++) users.register("user" + i, "h");
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            int size = users.size();
+            if (size > 0) {
+                assertEquals(size - 1, users.id("user" + (size - 1)));
+            }
+        }
+        writer.join();
+        assertEquals(49_999, users.id("user49999"));
+    }
+
+    @Test
+    void snapshotRoundTripKeepsIds() throws IOException {
+        UserRegistry users = new UserRegistry();
+        for (int i = 0; i < 2000; i++) users.register("user" + i, "hash" + i);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        users.writeTo(new DataOutputStream(bytes));
+
+        UserRegistry restored = new UserRegistry();
+        restored.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), false);
+        assertEquals(2000, restored.size());
+        assertEquals(1234, restored.id("user1234"));
+        assertEquals(2000, restored.register("new", "h"));
+    }
+}